@@ -0,0 +1,138 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import jetbrains.buildServer.agent.*;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.PluginConfigFactory;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRootEntry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Deletes 'premerge/&lt;buildId&gt;' branches of previous builds from checkout directories
+ * when a build with the preliminary merge step finishes. The branch of the finishing build
+ * and the given number of the most recent ones are kept.
+ */
+public class PremergeBranchCleaner extends AgentLifeCycleAdapter {
+  private static final String BRANCHES_PREFIX = "refs/heads/" + PremergeConstants.PRELIMINARY_MERGE_BRANCH_PREFIX + "/";
+  static final int DEFAULT_KEEP_BRANCHES = 10;
+
+  @NotNull private final PluginConfigFactory myConfigFactory;
+
+  public PremergeBranchCleaner(@NotNull EventDispatcher<AgentLifeCycleListener> dispatcher,
+                               @NotNull PluginConfigFactory configFactory) {
+    myConfigFactory = configFactory;
+    dispatcher.addListener(this);
+  }
+
+  @Override
+  public void beforeBuildFinish(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildStatus) {
+    if (!hasPremergeStep(build)) {
+      return;
+    }
+    int keep = getKeepBranches(build);
+    if (keep < 0) {
+      return;
+    }
+    for (VcsRootEntry entry : build.getVcsRootEntries()) {
+      File repositoryDir = new File(build.getCheckoutDirectory(), entry.getCheckoutRules().map("."));
+      if (!new File(repositoryDir, ".git").exists()) {
+        continue;
+      }
+      try {
+        PremergeGitCommandLine git = new PremergeGitCommandLine(myConfigFactory.createConfig(build, entry.getVcsRoot()).getPathToGit(), repositoryDir);
+        int deleted = deleteOldBranches(git, build.getBuildId(), keep);
+        if (deleted > 0) {
+          build.getBuildLogger().message("Deleted " + deleted + " old preliminary merge branch(es) in " + repositoryDir.getAbsolutePath());
+        }
+      } catch (VcsException e) {
+        build.getBuildLogger().warning("Cannot delete old preliminary merge branches in " + repositoryDir.getAbsolutePath() + ": " + e.getMessage());
+      }
+    }
+  }
+
+  private static boolean hasPremergeStep(@NotNull AgentRunningBuild build) {
+    for (BuildRunnerSettings runner : build.getBuildRunners()) {
+      if (PremergeConstants.TYPE.equals(runner.getRunType())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int getKeepBranches(@NotNull AgentRunningBuild build) {
+    String value = build.getSharedConfigParameters().get(PremergeConstants.KEEP_BRANCHES_PARAM);
+    if (StringUtil.isEmpty(value)) {
+      return DEFAULT_KEEP_BRANCHES;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      build.getBuildLogger().warning("Wrong value of '" + PremergeConstants.KEEP_BRANCHES_PARAM + "': " + value + ". Default value " + DEFAULT_KEEP_BRANCHES + " is used.");
+      return DEFAULT_KEEP_BRANCHES;
+    }
+  }
+
+  private static int deleteOldBranches(@NotNull PremergeGitCommandLine git, long buildId, int keep) throws VcsException {
+    String headRef = git.run(null, "symbolic-ref", "-q", "HEAD").getStdout().trim();
+    List<String> refs = Arrays.asList(git.call("for-each-ref", "--format=%(refname)", BRANCHES_PREFIX).split("\\r?\\n"));
+    List<String> toDelete = selectBranchesToDelete(refs, buildId, headRef, keep);
+    if (toDelete.isEmpty()) {
+      return 0;
+    }
+    StringBuilder commands = new StringBuilder();
+    for (String ref : toDelete) {
+      commands.append("delete ").append(ref).append('\n');
+    }
+    git.call(commands.toString().getBytes(StandardCharsets.UTF_8), "update-ref", "--stdin");
+    return toDelete.size();
+  }
+
+  /**
+   * @return premerge branches except the branch of the current build, the checked out one,
+   * and {@code keep} branches of the most recent other builds
+   */
+  @NotNull
+  public static List<String> selectBranchesToDelete(@NotNull List<String> refs, long buildId, @Nullable String headRef, int keep) {
+    TreeMap<Long, String> byBuildId = new TreeMap<>();
+    for (String ref : refs) {
+      String name = ref.trim();
+      if (!name.startsWith(BRANCHES_PREFIX) || name.equals(headRef)) {
+        continue;
+      }
+      try {
+        long id = Long.parseLong(name.substring(BRANCHES_PREFIX.length()));
+        if (id != buildId) {
+          byBuildId.put(id, name);
+        }
+      } catch (NumberFormatException e) {
+        // not created by the plugin
+      }
+    }
+    List<String> result = new ArrayList<>(byBuildId.values());
+    return result.subList(0, Math.max(0, result.size() - keep));
+  }
+}
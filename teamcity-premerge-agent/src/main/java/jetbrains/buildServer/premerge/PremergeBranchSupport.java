@@ -31,8 +31,14 @@ public interface PremergeBranchSupport {
 
   public void fetch(String branch) throws VcsException;
   public void checkout(String branch) throws VcsException;
+  public void checkoutDetached(String revision) throws VcsException;
   public void createBranch(String branch) throws VcsException;
+  public void createBranch(String branch, String startPoint) throws VcsException;
   public void merge(String branch) throws VcsException;
+  public boolean isAncestor(String ancestor, String descendant) throws VcsException;
+  @Nullable public String getCachedMerge(String branch) throws VcsException;
+  @Nullable public String getPrecomputedMerge(String branch) throws VcsException;
+  public void cacheMerge(String branch) throws VcsException;
   @NotNull String constructBranchName();
   @Nullable public String getParameter(String parameter) throws VcsException;
 }
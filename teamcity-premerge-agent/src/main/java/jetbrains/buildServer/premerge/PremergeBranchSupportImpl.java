@@ -17,12 +17,23 @@
 package jetbrains.buildServer.premerge;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildProgressLogger;
 import jetbrains.buildServer.agent.oauth.AgentTokenStorage;
 import jetbrains.buildServer.buildTriggers.vcs.git.AuthSettings;
+import jetbrains.buildServer.buildTriggers.vcs.git.Constants;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitUtils;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitVersion;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.*;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.command.MergeCommand;
+import jetbrains.buildServer.buildTriggers.vcs.git.command.FetchCommand;
 import jetbrains.buildServer.ssh.SshKnownHostsManager;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.vcs.VcsException;
@@ -33,7 +44,15 @@ import org.jetbrains.annotations.Nullable;
 import static jetbrains.buildServer.buildTriggers.vcs.git.agent.GitUtilsAgent.detectExtraHTTPCredentialsInBuild;
 
 public class PremergeBranchSupportImpl implements PremergeBranchSupport {
+  private static final int MAX_SHALLOW_DEPTH = 8192;
+  private static final int INFINITE_DEPTH = Integer.MAX_VALUE;
+  static final String MERGE_USER_NAME = "PremergeRobot";
+  static final String MERGE_USER_EMAIL = "premerge.plugin@jetbrains.com";
+  private static final String[] AUTH_PROPERTIES = {Constants.AUTH_METHOD, Constants.USERNAME, Constants.PASSWORD, Constants.PRIVATE_KEY_PATH,
+                                                   Constants.PASSPHRASE, Constants.TEAMCITY_SSH_KEY_ID, Constants.TOKEN_ID};
+
   @NotNull private final AgentGitFacade myFacade;
+  @NotNull private final File myRepositoryDir;
   @NotNull private final VcsRoot myRoot;
   @NotNull private final AgentPluginConfig myConfig;
   @NotNull protected final PremergeBuildProcess myProcess;
@@ -42,20 +61,24 @@ public class PremergeBranchSupportImpl implements PremergeBranchSupport {
   @NotNull private final SshKnownHostsManager mySshKnownHostsManager;
 
   @NotNull private final AgentRunningBuild myBuild;
+  @NotNull private final BuildProgressLogger myLogger;
 
   public PremergeBranchSupportImpl(@NotNull PremergeBuildProcess process,
                                    @NotNull VcsRoot root,
                                    @NotNull String repoRelativePath,
                                    @NotNull AgentTokenStorage tokenStorage,
                                    @NotNull AgentRunningBuild build,
-                                   @NotNull SshKnownHostsManager sshKnownHostsManager) throws VcsException {
+                                   @NotNull SshKnownHostsManager sshKnownHostsManager,
+                                   @NotNull BuildProgressLogger logger) throws VcsException {
     myTokenStorage = tokenStorage;
     myRoot = root;
     myProcess = process;
     myBuild = build;
     mySshKnownHostsManager = sshKnownHostsManager;
+    myLogger = logger;
     myConfig = createPluginConfig();
     myVcsRoot = createGitVcsRoot(root);
+    myRepositoryDir = new File(myProcess.getBuild().getCheckoutDirectory().getAbsolutePath() + "/" + repoRelativePath);
     myFacade = getFacade(repoRelativePath);
   }
 
@@ -72,15 +95,27 @@ public class PremergeBranchSupportImpl implements PremergeBranchSupport {
   }
 
   protected AgentGitFacade getFacade(String repoRelativePath) {
-    GitFactory gitFactory = myProcess.getGitMetaFactory().createFactory(myProcess.getSshService(),
-                                                                        new BuildContext(myProcess.getBuild(), myConfig, mySshKnownHostsManager));
-    return gitFactory.create(new File(myProcess.getBuild().getCheckoutDirectory().getAbsolutePath() + "/" + repoRelativePath));
+    return getFacade(new File(myProcess.getBuild().getCheckoutDirectory().getAbsolutePath() + "/" + repoRelativePath));
+  }
+
+  protected AgentGitFacade getFacade(File repositoryDir) {
+    return myProcess.getGitFactory(myConfig).create(repositoryDir);
+  }
+
+  @NotNull
+  protected PremergeGitCommandLine getCommandLine() {
+    return new PremergeGitCommandLine(myConfig.getPathToGit(), myRepositoryDir);
   }
 
   protected AuthSettings retrieveAuthSettings() {
     return myVcsRoot.getAuthSettings();
   }
 
+  @NotNull
+  protected String getFetchUrl() {
+    return myVcsRoot.getRepositoryFetchURL().toString();
+  }
+
   @Override
   @NotNull
   public String constructBranchName() {
@@ -89,25 +124,316 @@ public class PremergeBranchSupportImpl implements PremergeBranchSupport {
 
   @Override
   public void fetch(String branch) throws VcsException {
+    PremergeStatistics.ObjectsCount objectsBefore = countObjects();
+    doFetch(branch);
+    if (objectsBefore != null) {
+      PremergeStatistics.ObjectsCount objectsAfter = countObjects();
+      if (objectsAfter != null) {
+        PremergeStatistics.ObjectsCount fetched = objectsAfter.since(objectsBefore);
+        myProcess.getStatistics().add(myRoot.getExternalId(), "fetchedObjects", fetched.getCount());
+        myProcess.getStatistics().add(myRoot.getExternalId(), "fetchedBytes", fetched.getSizeBytes());
+      }
+    }
+  }
+
+  private void doFetch(String branch) throws VcsException {
+    String pinnedSHA = myProcess.isParameterEnabled(PremergeConstants.PIN_TARGET_PARAM)
+                       ? myBuild.getSharedConfigParameters().get(PremergeConstants.PINNED_TARGET_SHA_SHARED_PARAM + "." + myRoot.getExternalId())
+                       : null;
     try {
-      myFacade.fetch()
-              .setAuthSettings(retrieveAuthSettings())
-              .setUseNativeSsh(myConfig.isUseNativeSSH())
-              .setTimeout(getTimeout())
-              .setRefspec("+" + branch + ":" + branch)
-              .setFetchTags(myConfig.isFetchTags())
-              .setQuite(true)
-              .call();
+      if (pinnedSHA != null && hasCommit(getCommandLine(), pinnedSHA)) {
+        updateBranch(branch, pinnedSHA);
+        myLogger.message("Revision " + pinnedSHA + " of '" + branch + "' is already present, fetch is skipped");
+        return;
+      }
+
+      int shallowDepth = myProcess.getIntParameter(PremergeConstants.SHALLOW_FETCH_DEPTH_PARAM, 0);
+      String partialCloneFilter = myProcess.getConfigParameter(PremergeConstants.PARTIAL_CLONE_FILTER_PARAM);
+      boolean groupFetches = shallowDepth <= 0 && StringUtil.isEmpty(partialCloneFilter) &&
+                             myProcess.isParameterEnabled(PremergeConstants.GROUP_FETCHES_PARAM);
+      if (groupFetches) {
+        fetchInGroup(branch, pinnedSHA);
+      }
+      else {
+        fetchFromRemote(branch, pinnedSHA, shallowDepth, partialCloneFilter);
+      }
+
+      if (pinnedSHA != null) {
+        if (hasCommit(getCommandLine(), pinnedSHA)) {
+          updateBranch(branch, pinnedSHA);
+        }
+        else {
+          myLogger.warning("Revision " + pinnedSHA + " of '" + branch + "' is not found after fetch, the fetched branch head is merged");
+        }
+      }
     } catch (Exception e) {
-      myProcess.getBuild().getBuildLogger().warning("Fetching '" + branch + "' error");
+      myLogger.warning("Fetching '" + branch + "' error");
       throw new VcsException(e);
     }
-    myProcess.getBuild().getBuildLogger().message("'" + branch + "' fetched");
+    myLogger.message("'" + branch + "' fetched");
+  }
+
+  private void fetchFromRemote(String branch, @Nullable String pinnedSHA, int shallowDepth, @Nullable String partialCloneFilter) throws VcsException {
+    try (PremergeHostSemaphore.Permit ignored = acquireHostPermit(PremergeHostSemaphore.FETCH, PremergeConstants.HOST_FETCH_PERMITS_PARAM)) {
+      doFetchFromRemote(branch, pinnedSHA, shallowDepth, partialCloneFilter);
+    }
+  }
+
+  private void doFetchFromRemote(String branch, @Nullable String pinnedSHA, int shallowDepth, @Nullable String partialCloneFilter) throws VcsException {
+    if (myProcess.isParameterEnabled(PremergeConstants.FETCH_VIA_MIRROR_PARAM) ||
+        myProcess.isParameterEnabled(PremergeConstants.PREFETCH_TARGET_PARAM) ||
+        myProcess.isParameterEnabled(PremergeConstants.PRECOMPUTE_MERGE_PARAM)) {
+      if (shallowDepth > 0) {
+        myLogger.warning("'" + PremergeConstants.SHALLOW_FETCH_DEPTH_PARAM + "' is ignored: '" + branch + "' is fetched through the mirror in full");
+      }
+      if (!StringUtil.isEmpty(partialCloneFilter)) {
+        myLogger.warning("'" + PremergeConstants.PARTIAL_CLONE_FILTER_PARAM + "' is ignored: '" + branch + "' is fetched through the mirror in full");
+      }
+      fetchViaMirror(branch, pinnedSHA);
+    }
+    else if (!StringUtil.isEmpty(partialCloneFilter) && !setupPartialClone(partialCloneFilter)) {
+      createFetchCommand(myFacade, branchRefspec(branch)).call();
+    }
+    else if (shallowDepth > 0) {
+      fetchShallow(branch, shallowDepth);
+    }
+    else {
+      createFetchCommand(myFacade, branchRefspec(branch)).call();
+    }
+  }
+
+  /**
+   * Roots of the build with the same fetch URL and credentials share one remote fetch:
+   * the first root fetches from the remote, the others fetch the branch locally from its repository.
+   * If the first fetch fails, every other root of the group tries the remote itself.
+   */
+  private void fetchInGroup(String branch, @Nullable String pinnedSHA) throws VcsException {
+    CompletableFuture<File> ownFetch = new CompletableFuture<>();
+    CompletableFuture<File> groupFetch = myProcess.getFetchGroups().putIfAbsent(getFetchGroupKey(), ownFetch);
+    if (groupFetch == null) {
+      File fetchedDir = null;
+      try {
+        fetchFromRemote(branch, pinnedSHA, 0, null);
+        fetchedDir = myRepositoryDir;
+      } finally {
+        ownFetch.complete(fetchedDir);
+      }
+      return;
+    }
+
+    File groupDir;
+    try {
+      groupDir = groupFetch.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException("Interrupted while waiting for fetch of '" + branch + "'", e);
+    } catch (ExecutionException e) {
+      groupDir = null;
+    }
+
+    if (groupDir == null) {
+      fetchFromRemote(branch, pinnedSHA, 0, null);
+    }
+    else if (groupDir.equals(myRepositoryDir)) {
+      myLogger.message("'" + branch + "' is already fetched into this directory by another VCS root");
+    }
+    else {
+      createFetchCommand(myFacade, branchRefspec(branch)).setRemote(groupDir.getAbsolutePath()).call();
+      myLogger.message("'" + branch + "' fetched from " + groupDir.getAbsolutePath() + " which has the same fetch URL");
+    }
+  }
+
+  @NotNull
+  private String getFetchGroupKey() {
+    StringBuilder key = new StringBuilder(getFetchUrl());
+    for (String property : AUTH_PROPERTIES) {
+      key.append('\n').append(StringUtil.emptyIfNull(myRoot.getProperty(property)));
+    }
+    return key.toString();
+  }
+
+  private void fetchViaMirror(String branch, @Nullable String pinnedSHA) throws VcsException {
+    String fetchUrl = getFetchUrl();
+    File mirrorDir = myProcess.getMirrorManager().getMirrorDir(fetchUrl);
+    boolean prefetching = PremergeTargetPrefetcher.isPrefetching(mirrorDir);
+    if (prefetching) {
+      myLogger.message("Waiting for prefetch of '" + branch + "' into mirror " + mirrorDir.getName());
+    }
+    long lockTimeout = TimeUnit.SECONDS.toMillis(myProcess.getIntParameter(PremergeConstants.MIRROR_LOCK_TIMEOUT_SECONDS_PARAM, PremergeMirrorLock.DEFAULT_TIMEOUT_SECONDS));
+    try (PremergeMirrorLock mirrorLock = PremergeMirrorLock.acquire(mirrorDir, lockTimeout, myLogger)) {
+      AgentGitFacade mirrorFacade = getFacade(mirrorDir);
+      initMirror(mirrorFacade, mirrorDir);
+      if (PremergeTargetPrefetcher.isPrefetched(mirrorDir, myBuild.getBuildId(), branch)) {
+        myLogger.message("'" + branch + "' was prefetched into mirror " + mirrorDir.getName() + " during checkout");
+      }
+      else if (pinnedSHA != null && hasCommit(new PremergeGitCommandLine(myConfig.getPathToGit(), mirrorDir), pinnedSHA)) {
+        myLogger.message("Revision " + pinnedSHA + " of '" + branch + "' is already present in mirror " + mirrorDir.getName());
+      }
+      else if (mirrorLock.isFetchedSinceRequested(branch)) {
+        myLogger.message("'" + branch + "' was fetched into mirror " + mirrorDir.getName() + " by another build while waiting for the lock");
+      }
+      else {
+        fetchIntoMirror(mirrorLock, mirrorFacade, mirrorDir, myConfig, retrieveAuthSettings(), fetchUrl, branch);
+        if (prefetching) {
+          PremergeTargetPrefetcher.markPrefetched(mirrorDir, myBuild.getBuildId(), branch);
+        }
+        myLogger.message("'" + branch + "' updated in mirror " + mirrorDir.getName());
+      }
+    }
+    createFetchCommand(myFacade, branchRefspec(branch)).setRemote(mirrorDir.getAbsolutePath()).call();
+  }
+
+  /**
+   * Makes 'origin' a promisor remote, so the fetch uses the given filter and
+   * objects skipped by the filter are downloaded lazily when the merge needs them.
+   * @return false if the filter is not supported by the agent's git
+   */
+  private boolean setupPartialClone(@NotNull String filter) throws VcsException {
+    if (myConfig.getGitVersion().isLessThan(new GitVersion(2, 22, 0))) {
+      myLogger.warning("Partial clone filter '" + filter + "' requires git 2.22 or newer, the target branch is fetched in full");
+      return false;
+    }
+    PremergeGitCommandLine git = getCommandLine();
+    if (!filter.equals(git.run(null, "config", "--get", "remote.origin.partialclonefilter").getStdout().trim())) {
+      git.call("config", "remote.origin.promisor", "true");
+      git.call("config", "remote.origin.partialclonefilter", filter);
+      git.call("config", "extensions.partialclone", "origin");
+      myLogger.message("Partial clone filter '" + filter + "' is configured for 'origin'");
+    }
+    return true;
+  }
+
+  /**
+   * Fetches the target branch with the given depth and doubles the depth until
+   * a merge base with HEAD appears. In a shallow checkout the source branch is deepened
+   * together with the target, otherwise the merge base could never be reached. The source branch
+   * is checked out, so it is fetched into its remote-tracking ref.
+   */
+  private void fetchShallow(String branch, int initialDepth) throws VcsException {
+    PremergeGitCommandLine git = getCommandLine();
+    String sourceBranch = null;
+    if ("true".equals(git.call("rev-parse", "--is-shallow-repository").trim())) {
+      sourceBranch = myBuild.getSharedConfigParameters().get(GitUtils.getGitRootBranchParamName(myRoot));
+    }
+
+    int depth = initialDepth;
+    while (true) {
+      createFetchCommand(myFacade, branchRefspec(branch)).setDepth(depth).call();
+      if (sourceBranch != null) {
+        createFetchCommand(myFacade, trackingRefspec(sourceBranch)).setDepth(depth).call();
+      }
+      if (depth == INFINITE_DEPTH || git.check("merge-base", "HEAD", branch)) {
+        break;
+      }
+      depth = depth >= MAX_SHALLOW_DEPTH ? INFINITE_DEPTH : depth * 2;
+      myLogger.message("Merge base with '" + branch + "' is not found, deepening fetch to " + (depth == INFINITE_DEPTH ? "full history" : depth + " commits"));
+    }
+
+    String reportedDepth = depth == INFINITE_DEPTH ? "full" : String.valueOf(depth);
+    myLogger.message("'" + branch + "' fetched with depth " + reportedDepth);
+    myBuild.addSharedConfigParameter(PremergeConstants.FETCH_DEPTH_SHARED_PARAM + "." + myRoot.getExternalId(), reportedDepth);
+  }
+
+  private static boolean hasCommit(@NotNull PremergeGitCommandLine git, @NotNull String sha) throws VcsException {
+    return git.run(null, "cat-file", "-e", sha + "^{commit}").getExitCode() == 0;
+  }
+
+  private void updateBranch(@NotNull String branch, @NotNull String sha) throws VcsException {
+    String ref = branch.startsWith("refs/") ? branch : "refs/heads/" + branch;
+    PremergeRefStore refStore = getRefStore();
+    if (refStore != null) {
+      try {
+        refStore.updateRef(ref, sha, "premerge: pinned revision of '" + branch + "'");
+        return;
+      } catch (IOException e) {
+        myLogger.warning("Cannot update '" + ref + "' in-process, git is used: " + e.getMessage());
+      }
+    }
+    myFacade.updateRef()
+            .setRef(ref)
+            .setRevision(sha)
+            .call();
+  }
+
+  /**
+   * Fetches the branch from the remote into the agent's mirror, creating the mirror if needed.
+   * The caller holds the mirror lock, the fetch is recorded in it for builds waiting for the lock.
+   */
+  static void fetchIntoMirror(@NotNull PremergeMirrorLock mirrorLock,
+                              @NotNull AgentGitFacade mirrorFacade,
+                              @NotNull File mirrorDir,
+                              @NotNull AgentPluginConfig config,
+                              @Nullable AuthSettings authSettings,
+                              @NotNull String fetchUrl,
+                              @NotNull String branch) throws VcsException {
+    initMirror(mirrorFacade, mirrorDir);
+    mirrorLock.removeStaleRefLock(branch);
+    createFetchCommand(mirrorFacade, config, authSettings, branchRefspec(branch)).setRemote(fetchUrl).call();
+    mirrorLock.markFetched(branch);
+  }
+
+  /**
+   * Creates the agent's bare mirror repository if it does not exist yet, the caller holds the mirror lock.
+   */
+  private static void initMirror(@NotNull AgentGitFacade mirrorFacade, @NotNull File mirrorDir) throws VcsException {
+    if (!new File(mirrorDir, "config").isFile()) {
+      mirrorFacade.init().setBare(true).call();
+    }
+  }
+
+  @NotNull
+  private static String branchRefspec(@NotNull String branch) {
+    return "+" + branch + ":" + branch;
+  }
+
+  @NotNull
+  private static String trackingRefspec(@NotNull String branch) {
+    String name = branch.startsWith("refs/heads/") ? branch.substring("refs/heads/".length()) : branch;
+    if (name.startsWith("refs/")) {
+      return branchRefspec(branch);
+    }
+    return "+refs/heads/" + name + ":refs/remotes/origin/" + name;
+  }
+
+  @NotNull
+  private FetchCommand createFetchCommand(@NotNull AgentGitFacade facade, @NotNull String refspec) {
+    return createFetchCommand(facade, myConfig, retrieveAuthSettings(), refspec);
+  }
+
+  /**
+   * Fetch of the refspec with the settings of the git plugin config, used for the checkout and the agent's mirrors.
+   */
+  @NotNull
+  private static FetchCommand createFetchCommand(@NotNull AgentGitFacade facade,
+                                         @NotNull AgentPluginConfig config,
+                                         @Nullable AuthSettings authSettings,
+                                         @NotNull String refspec) {
+    return facade.fetch()
+                 .setAuthSettings(authSettings)
+                 .setUseNativeSsh(config.isUseNativeSSH())
+                 .setTimeout(getTimeout(config))
+                 .setRefspec(refspec)
+                 .setFetchTags(config.isFetchTags())
+                 .setQuite(true);
+  }
+
+  /**
+   * Limits the number of git processes of the given kind running on the host at once, null if the limit is not set.
+   */
+  @Nullable
+  private PremergeHostSemaphore.Permit acquireHostPermit(@NotNull String kind, @NotNull String permitsParam) throws VcsException {
+    int permits = myProcess.getIntParameter(permitsParam, 0);
+    if (permits <= 0) {
+      return null;
+    }
+    String lockDir = myProcess.getConfigParameter(PremergeConstants.HOST_LOCK_DIR_PARAM);
+    return PremergeHostSemaphore.acquire(StringUtil.isEmpty(lockDir) ? new File(System.getProperty("java.io.tmpdir"), "teamcity-premerge-locks") : new File(lockDir),
+                                         kind, permits, myLogger);
   }
 
   @Override
   public void checkout(String branch) throws VcsException {
-    try {
+    try (PremergeHostSemaphore.Permit ignored = acquireHostPermit(PremergeHostSemaphore.MERGE, PremergeConstants.HOST_MERGE_PERMITS_PARAM)) {
       myFacade.checkout()
               .setAuthSettings(retrieveAuthSettings())
               .setUseNativeSsh(myConfig.isUseNativeSSH())
@@ -115,71 +441,315 @@ public class PremergeBranchSupportImpl implements PremergeBranchSupport {
               .setTimeout(myConfig.getCheckoutIdleTimeoutSeconds())
               .call();
     } catch (Exception e) {
-      myProcess.getBuild().getBuildLogger().error("Checkout to '" + branch + "' error");
+      myLogger.error("Checkout to '" + branch + "' error");
       throw new VcsException(e);
     }
-    myProcess.getBuild().getBuildLogger().message("Checkout to '" + branch + "'");
+    myLogger.message("Checkout to '" + branch + "'");
+  }
+
+  /**
+   * Detaches HEAD at the given revision. For "HEAD" only the HEAD reference is rewritten,
+   * the index and the working tree stay as they are.
+   */
+  @Override
+  public void checkoutDetached(String revision) throws VcsException {
+    try {
+      if ("HEAD".equals(revision)) {
+        getCommandLine().call("update-ref", "--no-deref", "HEAD", "HEAD");
+      }
+      else {
+        try (PremergeHostSemaphore.Permit ignored = acquireHostPermit(PremergeHostSemaphore.MERGE, PremergeConstants.HOST_MERGE_PERMITS_PARAM)) {
+          getCommandLine().call("checkout", "-q", "--detach", revision);
+        }
+      }
+    } catch (Exception e) {
+      myLogger.error("Checkout to '" + revision + "' error");
+      throw new VcsException(e);
+    }
+    myLogger.message("Detached HEAD at '" + revision + "'");
   }
 
   @Override
   public void createBranch(String branch) throws VcsException {
+    if (createBranchInProcess(branch, "HEAD")) {
+      myLogger.message("Created '" + branch + "'");
+      return;
+    }
+    try {
+      myFacade.createBranch()
+              .setName(branch)
+              .call();
+    } catch (Exception e) {
+      myLogger.error("Creating '" + branch + "' error");
+      throw new VcsException(e);
+    }
+    myLogger.message("Created '" + branch + "'");
+  }
+
+  @Override
+  public void createBranch(String branch, String startPoint) throws VcsException {
+    if (createBranchInProcess(branch, startPoint)) {
+      myLogger.message("Created '" + branch + "' at '" + startPoint + "'");
+      return;
+    }
     try {
       myFacade.createBranch()
               .setName(branch)
+              .setStartPoint(startPoint)
               .call();
     } catch (Exception e) {
-      myProcess.getBuild().getBuildLogger().error("Creating '" + branch + "' error");
+      myLogger.error("Creating '" + branch + "' error");
       throw new VcsException(e);
     }
-    myProcess.getBuild().getBuildLogger().message("Created '" + branch + "'");
+    myLogger.message("Created '" + branch + "' at '" + startPoint + "'");
+  }
+
+  /**
+   * Creates the branch by writing the ref directly when in-process refs are enabled.
+   * @return false if the branch has to be created by git: the mode is off, the start point is not a ref,
+   * the branch already exists and git should report it, or the ref store cannot be updated
+   */
+  private boolean createBranchInProcess(@NotNull String branch, @NotNull String startPoint) {
+    PremergeRefStore refStore = getRefStore();
+    if (refStore == null) {
+      return false;
+    }
+    String ref = "refs/heads/" + branch;
+    try {
+      String objectId = refStore.resolve(startPoint);
+      if (objectId == null || refStore.readRef(ref) != null) {
+        return false;
+      }
+      refStore.updateRef(ref, objectId, "branch: Created from " + startPoint);
+      return true;
+    } catch (IOException e) {
+      myLogger.warning("Cannot create '" + branch + "' in-process, git is used: " + e.getMessage());
+      return false;
+    }
+  }
+
+  @Nullable
+  private PremergeRefStore getRefStore() {
+    return myProcess.isParameterEnabled(PremergeConstants.IN_PROCESS_REFS_PARAM) ? PremergeRefStore.open(myRepositoryDir) : null;
+  }
+
+  @Nullable
+  @Override
+  public String getCachedMerge(String branch) throws VcsException {
+    String[] revisions = getCommandLine().call("rev-parse", "HEAD", branch).trim().split("\\s+");
+    return getMergeCache().find(revisions[0], revisions[1]);
+  }
+
+  /**
+   * Takes the merge commit computed in the mirror during checkout, if its parents are
+   * the current HEAD and the fetched target branch.
+   */
+  @Nullable
+  @Override
+  public String getPrecomputedMerge(String branch) throws VcsException {
+    PremergeTargetPrefetcher.PrecomputedMerge merge = PremergeTargetPrefetcher.getPrecomputedMerge(myBuild.getBuildId(), myRoot.getExternalId());
+    if (merge == null) {
+      return null;
+    }
+    createFetchCommand(myFacade, merge.getRef()).setRemote(merge.getMirrorDir().getAbsolutePath()).call();
+    String[] revisions = getCommandLine().call("rev-parse", "FETCH_HEAD", "FETCH_HEAD^1", "FETCH_HEAD^2", "HEAD", branch).trim().split("\\s+");
+    if (!revisions[1].equals(revisions[3]) || !revisions[2].equals(revisions[4])) {
+      myLogger.message("Merge computed during checkout is outdated, '" + branch + "' is merged by the step");
+      return null;
+    }
+    return revisions[0];
+  }
+
+  @Override
+  public void cacheMerge(String branch) throws VcsException {
+    ExecResult result = getCommandLine().run(null, "rev-parse", "HEAD^1", "HEAD^2", "HEAD");
+    if (result.getExitCode() != 0) {
+      // HEAD is not a merge commit, e.g. the merge was a fast-forward
+      return;
+    }
+    String[] revisions = result.getStdout().trim().split("\\s+");
+    getMergeCache().put(revisions[0], revisions[1], revisions[2]);
+  }
+
+  @NotNull
+  private PremergeMergeCache getMergeCache() {
+    return new PremergeMergeCache(getCommandLine(), new File(myRepositoryDir, ".git"),
+                                  myProcess.isParameterEnabled(PremergeConstants.DETERMINISTIC_MERGE_PARAM),
+                                  myProcess.getIntParameter(PremergeConstants.MERGE_CACHE_MAX_ENTRIES_PARAM, 100),
+                                  myProcess.getIntParameter(PremergeConstants.MERGE_CACHE_MAX_AGE_DAYS_PARAM, 7));
+  }
+
+  @Override
+  public boolean isAncestor(String ancestor, String descendant) throws VcsException {
+    return getCommandLine().check("merge-base", "--is-ancestor", ancestor, descendant);
   }
 
   @Override
   public void merge(String branch) throws VcsException {
+    try (PremergeHostSemaphore.Permit ignored = acquireHostPermit(PremergeHostSemaphore.MERGE, PremergeConstants.HOST_MERGE_PERMITS_PARAM)) {
+      doMerge(branch);
+    }
+  }
+
+  private void doMerge(String branch) throws VcsException {
+    if (myProcess.isParameterEnabled(PremergeConstants.IN_MEMORY_MERGE_PARAM)) {
+      if (!myConfig.getGitVersion().isLessThan(new GitVersion(2, 38, 0))) {
+        mergeInMemory(branch);
+        return;
+      }
+      myLogger.warning("In-memory merge requires git 2.38 or newer, the working tree merge is used");
+    }
+
     try {
-      MergeCommand mergeCommand = myFacade.merge();
-      mergeCommand.addConfig("user.name", "PremergeRobot");
-      mergeCommand.addConfig("user.email", "premerge.plugin@jetbrains.com");
-      mergeCommand.setBranches(branch)
-                  .setQuiet(true)
-                  .call();
+      if (myProcess.isParameterEnabled(PremergeConstants.DETERMINISTIC_MERGE_PARAM)) {
+        String[] parents = getCommandLine().call("rev-parse", "HEAD", branch).trim().split("\\s+");
+        getCommandLine().setParentsDate(parents)
+                        .call("-c", "user.name=" + MERGE_USER_NAME, "-c", "user.email=" + MERGE_USER_EMAIL,
+                              "merge", "--quiet", "--no-edit", "-m", deterministicMergeMessage(parents[0], parents[1]), branch);
+      }
+      else {
+        MergeCommand mergeCommand = myFacade.merge();
+        mergeCommand.addConfig("user.name", MERGE_USER_NAME);
+        mergeCommand.addConfig("user.email", MERGE_USER_EMAIL);
+        mergeCommand.setBranches(branch)
+                    .setQuiet(true)
+                    .call();
+      }
       myProcess.setSuccess();
     } catch (VcsException vcsException) {
       String mergeCommits = getParameter("MERGE_HEAD");
       if (!StringUtil.isEmpty(mergeCommits)) {
-        myProcess.getBuild().getBuildLogger().warning("Preliminary merge conflict with branch '" + branch + "'");
+        myLogger.warning("Preliminary merge conflict with branch '" + branch + "'");
         mergeAbort();
       }
       throw vcsException;
     } catch (Exception e) {
-      myProcess.getBuild().getBuildLogger().error("Merging '" + branch +"' error");
+      myLogger.error("Merging '" + branch +"' error");
       throw new VcsException(e);
     }
-    myProcess.getBuild().getBuildLogger().message("'" + branch + "' was merged");
+    myLogger.message("'" + branch + "' was merged");
+  }
+
+  /**
+   * Computes the merge with 'git merge-tree' without touching the index and the working tree.
+   * A clean result is committed and HEAD is fast-forwarded to it, a conflicting one fails
+   * with the list of conflicted paths and leaves the working tree as is.
+   */
+  private void mergeInMemory(String branch) throws VcsException {
+    try {
+      PremergeGitCommandLine git = getCommandLine();
+      ExecResult result = git.run(null, "merge-tree", "--write-tree", "--name-only", "--no-messages", "HEAD", branch);
+      if (result.getExitCode() == 1) {
+        List<String> conflicts = parseMergeTreeConflicts(result.getStdout());
+        myLogger.warning("Preliminary merge conflict with branch '" + branch + "' in " + conflicts.size() + " file(s):\n" + String.join("\n", conflicts));
+        throw new VcsException("Preliminary merge conflict with branch '" + branch + "': " + String.join(", ", conflicts));
+      }
+      if (result.getExitCode() != 0) {
+        throw new VcsException("'git merge-tree' exited with code " + result.getExitCode() + ": " + result.getStderr().trim());
+      }
+
+      String tree = result.getStdout().trim().split("\\s+")[0];
+      String message = "Merge branch '" + branch + "' into " + constructBranchName();
+      if (myProcess.isParameterEnabled(PremergeConstants.DETERMINISTIC_MERGE_PARAM)) {
+        String[] parents = git.call("rev-parse", "HEAD", branch).trim().split("\\s+");
+        git = getCommandLine().setParentsDate(parents);
+        message = deterministicMergeMessage(parents[0], parents[1]);
+      }
+      String mergeCommit = git.call("-c", "user.name=" + MERGE_USER_NAME, "-c", "user.email=" + MERGE_USER_EMAIL,
+                                    "commit-tree", tree, "-p", "HEAD", "-p", branch,
+                                    "-m", message).trim();
+      MergeCommand fastForward = myFacade.merge();
+      fastForward.addConfig("merge.ff", "only");
+      fastForward.setBranches(mergeCommit)
+                 .setQuiet(true)
+                 .call();
+      myProcess.setSuccess();
+    } catch (RuntimeException e) {
+      myLogger.error("Merging '" + branch +"' error");
+      throw new VcsException(e);
+    }
+    myLogger.message("'" + branch + "' was merged");
+  }
+
+  /**
+   * @return conflicted paths from the output of 'git merge-tree --write-tree --name-only --no-messages':
+   * the lines after the tree OID up to the first empty line
+   */
+  @NotNull
+  public static List<String> parseMergeTreeConflicts(@NotNull String output) {
+    String[] lines = output.split("\\r?\\n");
+    List<String> conflicts = new ArrayList<>();
+    for (int i = 1; i < lines.length && !lines[i].isEmpty(); i++) {
+      conflicts.add(lines[i]);
+    }
+    return conflicts;
+  }
+
+  /**
+   * Message of a merge commit which does not depend on branch names or the build,
+   * so the same merge gets the same SHA in every build.
+   */
+  @NotNull
+  static String deterministicMergeMessage(@NotNull String headSHA, @NotNull String mergedSHA) {
+    return "Merge commit " + mergedSHA + " into " + headSHA;
   }
 
   public void mergeAbort() throws VcsException {
+    long startTime = System.nanoTime();
     try {
       myFacade.merge()
               .setAbort(true)
               .call();
     } catch (Exception e) {
-      myProcess.getBuild().getBuildLogger().error("Merge abort error");
+      myLogger.error("Merge abort error");
       throw new VcsException(e);
+    } finally {
+      myProcess.getStatistics().addTime(myRoot.getExternalId(), "mergeAbort", startTime);
     }
   }
 
   @Nullable
   @Override
   public String getParameter(String parameter) throws VcsException {
+    PremergeRefStore refStore = getRefStore();
+    if (refStore != null) {
+      try {
+        String objectId = refStore.resolve(parameter);
+        if (objectId != null || "MERGE_HEAD".equals(parameter)) {
+          return objectId;
+        }
+      } catch (IOException e) {
+        myLogger.warning("Cannot resolve '" + parameter + "' in-process, git is used: " + e.getMessage());
+      }
+    }
     return myFacade.revParse()
             .verify(parameter)
             .call();
   }
 
+  /**
+   * @return number and size of objects in the repository, or null if statistics are disabled or unavailable
+   */
+  @Nullable
+  private PremergeStatistics.ObjectsCount countObjects() {
+    if (!myProcess.isParameterEnabled(PremergeConstants.STATISTICS_PARAM)) {
+      return null;
+    }
+    try {
+      return PremergeStatistics.ObjectsCount.parse(getCommandLine().call("count-objects", "-v"));
+    } catch (VcsException e) {
+      myLogger.warning("Cannot count repository objects: " + e.getMessage());
+      return null;
+    }
+  }
+
   public int getTimeout() {
-    int timeout = myConfig.getIdleTimeoutSeconds();
-    GitVersion version = myConfig.getGitVersion();
+    return getTimeout(myConfig);
+  }
+
+  private static int getTimeout(@NotNull AgentPluginConfig config) {
+    int timeout = config.getIdleTimeoutSeconds();
+    GitVersion version = config.getGitVersion();
     if(version.isLessThan(new GitVersion(1, 7, 1, 0))) {
       timeout = 24 * 60 * 60; //24 hours
     }
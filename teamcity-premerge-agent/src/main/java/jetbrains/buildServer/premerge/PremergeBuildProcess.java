@@ -16,15 +16,31 @@
 
 package jetbrains.buildServer.premerge;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import jetbrains.buildServer.agent.*;
 import jetbrains.buildServer.agent.oauth.AgentTokenStorage;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitUtils;
 import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManager;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.*;
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessage;
 import jetbrains.buildServer.ssh.SshKnownHostsManager;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
 import jetbrains.buildServer.vcs.VcsRootEntry;
@@ -40,13 +56,22 @@ public class PremergeBuildProcess extends BuildProcessAdapter {
   @NotNull private final BuildRunnerContext myRunner;
   @NotNull private final AgentTokenStorage myTokenStorage;
   @NotNull private final SshKnownHostsManager mySshKnownHostsManager;
+  private static final int BUILT_TREE_TIMEOUT_MILLIS = 10000;
   private String targetBranch;
-  private final Map<String, String> targetSHAs = new HashMap<>();
-  private ResultStatus status = ResultStatus.SKIPPED;
-  private int unsuccessfulFetchesCount = 0;
+  private final Map<String, String> targetSHAs = new ConcurrentHashMap<>();
+  private final Map<String, String> mergedTrees = new ConcurrentHashMap<>();
+  private volatile ResultStatus status = ResultStatus.SKIPPED;
+  private final AtomicInteger unsuccessfulFetchesCount = new AtomicInteger();
+  private final AtomicInteger mergeCacheHits = new AtomicInteger();
+  private final AtomicInteger mergeCacheMisses = new AtomicInteger();
+  private final PremergeStatistics statistics = new PremergeStatistics();
+  private final ConcurrentMap<String, CompletableFuture<File>> fetchGroups = new ConcurrentHashMap<>();
+  private final Map<AgentPluginConfig, GitFactory> gitFactories = new ConcurrentHashMap<>();
 
   public enum ResultStatus {SUCCESS, SKIPPED, FAILED}
 
+  public enum MergeType {UP_TO_DATE, FAST_FORWARD, MERGE}
+
   public PremergeBuildProcess(@NotNull PluginConfigFactory configFactory,
                               @NotNull GitAgentSSHService sshService,
                               @NotNull GitMetaFactory gitMetaFactory,
@@ -84,41 +109,156 @@ public class PremergeBuildProcess extends BuildProcessAdapter {
 
   protected void preliminaryMerge() throws VcsException {
     targetBranch = PremergeBranchSupport.cutRefsHeads(myRunner.getRunnerParameters().get(PremergeConstants.TARGET_BRANCH));
+    String predictedConflicts = myBuild.getSharedConfigParameters().get(PremergeConstants.PREDICTED_CONFLICTS_SHARED_PARAM);
+    if (!StringUtil.isEmpty(predictedConflicts)) {
+      getBuild().getBuildLogger().warning("Both branches changed files since their merge base, a conflict is possible in: " + predictedConflicts);
+    }
     List<VcsRootEntry> vcsRootEntries = myBuild.getVcsRootEntries();
-    for (VcsRootEntry entry : vcsRootEntries) {
-      makeVcsRootPreliminaryMerge(entry.getVcsRoot(), entry.getCheckoutRules().map("."));
+    long startTime = System.nanoTime();
+    try {
+      int parallelRoots = getIntParameter(PremergeConstants.PARALLEL_ROOTS_PARAM, 1);
+      if (parallelRoots > 1 && vcsRootEntries.size() > 1) {
+        parallelPreliminaryMerge(vcsRootEntries, Math.min(parallelRoots, vcsRootEntries.size()));
+      }
+      else {
+        for (VcsRootEntry entry : vcsRootEntries) {
+          makeVcsRootPreliminaryMerge(entry.getVcsRoot(), entry.getCheckoutRules().map("."), getBuild().getBuildLogger());
+        }
+      }
+    } finally {
+      if (isParameterEnabled(PremergeConstants.STATISTICS_PARAM)) {
+        statistics.addTime(null, "total", startTime);
+        statistics.publish(getBuild().getBuildLogger());
+      }
+    }
+
+    if (isParameterEnabled(PremergeConstants.MERGE_CACHE_PARAM)) {
+      getBuild().getBuildLogger().message("Merge cache: " + mergeCacheHits.get() + " hit(s), " + mergeCacheMisses.get() + " miss(es)");
     }
 
-    if (unsuccessfulFetchesCount == vcsRootEntries.size()) {
+    if (unsuccessfulFetchesCount.get() == vcsRootEntries.size()) {
       getBuild().getBuildLogger().error("Fetching all target branches error");
       setUnsuccess();
       throw new VcsException("Fetching all target branches error");
     }
   }
 
-  protected void makeVcsRootPreliminaryMerge(VcsRoot root, String repoRelativePath) throws VcsException {
-    PremergeBranchSupport branchSupport = createPremergeBranchSupport(root, repoRelativePath);
+  private void parallelPreliminaryMerge(@NotNull List<VcsRootEntry> vcsRootEntries, int threads) throws VcsException {
+    getBuild().getBuildLogger().message("Merging " + vcsRootEntries.size() + " VCS roots in " + threads + " threads");
+    ExecutorService executor = ExecutorsFactory.newFixedDaemonExecutor("Preliminary merge", threads);
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (VcsRootEntry entry : vcsRootEntries) {
+        futures.add(executor.submit(() -> {
+          if (getStatus() == ResultStatus.FAILED) {
+            return null;
+          }
+          VcsRoot root = entry.getVcsRoot();
+          FlowLogger logger = getBuild().getBuildLogger().getFlowLogger(PremergeConstants.PRELIMINARY_MERGE_BRANCH_PREFIX + "-" + root.getExternalId());
+          logger.startFlow();
+          logger.activityStarted(root.getName(), PremergeConstants.TYPE);
+          try {
+            makeVcsRootPreliminaryMerge(root, entry.getCheckoutRules().map("."), logger);
+          } finally {
+            logger.activityFinished(root.getName(), PremergeConstants.TYPE);
+            logger.disposeFlow();
+          }
+          return null;
+        }));
+      }
+
+      VcsException firstError = null;
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          if (firstError == null) {
+            firstError = e.getCause() instanceof VcsException ? (VcsException)e.getCause() : new VcsException(e.getCause());
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          setUnsuccess();
+          throw new VcsException("Preliminary merge was interrupted", e);
+        }
+      }
+      if (firstError != null) {
+        setUnsuccess();
+        throw firstError;
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  protected void makeVcsRootPreliminaryMerge(VcsRoot root, String repoRelativePath, BuildProgressLogger logger) throws VcsException {
+    PremergeBranchSupport branchSupport = createPremergeBranchSupport(root, repoRelativePath, logger);
+    if (isParameterEnabled(PremergeConstants.STATISTICS_PARAM)) {
+      branchSupport = new TimedPremergeBranchSupport(branchSupport, statistics, root.getExternalId());
+    }
 
     String premergeBranch = branchSupport.constructBranchName();
-    getBuild().getBuildLogger().message("> " + root.getName());
+    logger.message("> " + root.getName());
 
     String rootBranch = getBuild().getSharedConfigParameters().get(GitUtils.getGitRootBranchParamName(root));
     if (PremergeBranchSupport.cutRefsHeads(rootBranch).equals(targetBranch)) {
-      getBuild().getBuildLogger().warning("Current branch is the same as the target branch. Skipping VcsRoot.");
+      logger.warning("Current branch is the same as the target branch. Skipping VcsRoot.");
+      recordTree(branchSupport, root);
     }
     else {
       try {
         branchSupport.fetch(targetBranch);
       } catch (VcsException e) {
-        unsuccessfulFetchesCount++;
+        unsuccessfulFetchesCount.incrementAndGet();
+        recordTree(branchSupport, root);
         return;
       }
 
       try {
-        branchSupport.createBranch(premergeBranch);
-        branchSupport.checkout(premergeBranch);
-        branchSupport.merge(targetBranch);
+        MergeType mergeType = MergeType.MERGE;
+        if (isParameterEnabled(PremergeConstants.PLAN_MERGE_PARAM)) {
+          mergeType = planMerge(branchSupport);
+          logger.message("Merge type: " + mergeType.name().toLowerCase());
+          getBuild().addSharedConfigParameter(PremergeConstants.MERGE_TYPE_SHARED_PARAM + "." + root.getExternalId(), mergeType.name().toLowerCase());
+        }
+
+        switch (mergeType) {
+          case UP_TO_DATE:
+            logger.message("'" + targetBranch + "' is already merged into the current revision");
+            setSuccess();
+            break;
+          case FAST_FORWARD:
+            switchTo(branchSupport, premergeBranch, targetBranch);
+            setSuccess();
+            break;
+          default:
+            String precomputedMerge = isParameterEnabled(PremergeConstants.PRECOMPUTE_MERGE_PARAM) ? branchSupport.getPrecomputedMerge(targetBranch) : null;
+            if (precomputedMerge != null) {
+              logger.message("Merge result " + precomputedMerge + " was computed while the sources were checked out");
+              switchTo(branchSupport, premergeBranch, precomputedMerge);
+              setSuccess();
+              break;
+            }
+            boolean useCache = isParameterEnabled(PremergeConstants.MERGE_CACHE_PARAM);
+            String cachedMerge = useCache ? branchSupport.getCachedMerge(targetBranch) : null;
+            if (cachedMerge != null) {
+              mergeCacheHits.incrementAndGet();
+              logger.message("Merge result " + cachedMerge + " is taken from the merge cache");
+              switchTo(branchSupport, premergeBranch, cachedMerge);
+              setSuccess();
+            }
+            else {
+              if (useCache) {
+                mergeCacheMisses.incrementAndGet();
+              }
+              switchTo(branchSupport, premergeBranch, null);
+              branchSupport.merge(targetBranch);
+              if (useCache) {
+                branchSupport.cacheMerge(targetBranch);
+              }
+            }
+        }
         targetSHAs.put(root.getExternalId(), branchSupport.getParameter(targetBranch));
+        recordTree(branchSupport, root);
       } catch (VcsException ex) {
         setUnsuccess();
         throw ex;
@@ -126,8 +266,55 @@ public class PremergeBuildProcess extends BuildProcessAdapter {
     }
   }
 
-  protected PremergeBranchSupport createPremergeBranchSupport(VcsRoot root, String repoRelativePath) throws VcsException {
-    return new PremergeBranchSupportImpl(this, root, repoRelativePath, myTokenStorage, myBuild, mySshKnownHostsManager);
+  /**
+   * Remembers the tree of HEAD of the root, merged or not, for the reuse of built merge results.
+   * If the tree cannot be read, the reuse is skipped for the build.
+   */
+  private void recordTree(@NotNull PremergeBranchSupport branchSupport, @NotNull VcsRoot root) {
+    if (!isTreeReuseEnabled()) {
+      return;
+    }
+    try {
+      String tree = branchSupport.getParameter("HEAD^{tree}");
+      if (tree != null) {
+        mergedTrees.put(root.getExternalId(), tree);
+      }
+    } catch (VcsException e) {
+      getBuild().getBuildLogger().warning("Cannot read the tree of '" + root.getName() + "', the merge result is not checked for reuse: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Switches the checkout to the preliminary merge branch created at the start point (current HEAD if null),
+   * or, in detached HEAD mode, detaches HEAD at the start point without creating a branch.
+   */
+  private void switchTo(@NotNull PremergeBranchSupport branchSupport, @NotNull String premergeBranch, @Nullable String startPoint) throws VcsException {
+    if (isParameterEnabled(PremergeConstants.DETACHED_HEAD_PARAM)) {
+      branchSupport.checkoutDetached(startPoint == null ? "HEAD" : startPoint);
+      return;
+    }
+    if (startPoint == null) {
+      branchSupport.createBranch(premergeBranch);
+    }
+    else {
+      branchSupport.createBranch(premergeBranch, startPoint);
+    }
+    branchSupport.checkout(premergeBranch);
+  }
+
+  @NotNull
+  protected MergeType planMerge(@NotNull PremergeBranchSupport branchSupport) throws VcsException {
+    if (branchSupport.isAncestor(targetBranch, "HEAD")) {
+      return MergeType.UP_TO_DATE;
+    }
+    if (branchSupport.isAncestor("HEAD", targetBranch)) {
+      return MergeType.FAST_FORWARD;
+    }
+    return MergeType.MERGE;
+  }
+
+  protected PremergeBranchSupport createPremergeBranchSupport(VcsRoot root, String repoRelativePath, BuildProgressLogger logger) throws VcsException {
+    return new PremergeBranchSupportImpl(this, root, repoRelativePath, myTokenStorage, myBuild, mySshKnownHostsManager, logger);
   }
 
   @NotNull
@@ -137,6 +324,13 @@ public class PremergeBuildProcess extends BuildProcessAdapter {
       assert targetBranch != null;
       myBuild.addSharedConfigParameter(PremergeConstants.TARGET_BRANCH_SHARED_PARAM, targetBranch);
       targetSHAs.forEach((name, sha) -> myBuild.addSharedConfigParameter(PremergeConstants.TARGET_SHA_SHARED_PARAM + "." + name, sha));
+      if (isParameterEnabled(PremergeConstants.AGENT_AFFINITY_PARAM)) {
+        reportParameter(PremergeConstants.TARGET_BRANCH_SHARED_PARAM, targetBranch);
+        targetSHAs.forEach((name, sha) -> reportParameter(PremergeConstants.TARGET_SHA_SHARED_PARAM + "." + name, sha));
+      }
+      if (isTreeReuseEnabled() && !mergedTrees.isEmpty()) {
+        checkMergedTrees();
+      }
       return BuildFinishedStatus.FINISHED_SUCCESS;
     }
     else {
@@ -144,6 +338,127 @@ public class PremergeBuildProcess extends BuildProcessAdapter {
     }
   }
 
+  private boolean isTreeReuseEnabled() {
+    String value = getConfigParameter(PremergeConstants.REUSE_TREES_PARAM);
+    return Boolean.parseBoolean(value) || PremergeConstants.REUSE_TREES_STOP.equals(value);
+  }
+
+  /**
+   * Asks the server whether the trees of all roots were already built successfully. If they were,
+   * the build is marked as reusing that build and, if configured, stopped. Otherwise the trees are reported
+   * to the server, which remembers them if the build succeeds.
+   */
+  private void checkMergedTrees() {
+    BuildProgressLogger logger = myBuild.getBuildLogger();
+    if (mergedTrees.size() < myBuild.getVcsRootEntries().size()) {
+      logger.message("Trees of not all VCS roots are known, the merge result is not checked for reuse");
+      return;
+    }
+    StringBuilder key = new StringBuilder();
+    new TreeMap<>(mergedTrees).forEach((root, tree) -> key.append(key.length() == 0 ? "" : ",").append(root).append(":").append(tree));
+    String builtBuildId = findBuiltBuild(key.toString());
+    if (builtBuildId == null) {
+      reportParameter(PremergeConstants.MERGED_TREE_SHARED_PARAM, key.toString());
+      return;
+    }
+
+    logger.message("The merge result was already built successfully in build with id " + builtBuildId);
+    myBuild.addSharedConfigParameter(PremergeConstants.REUSED_BUILD_SHARED_PARAM, builtBuildId);
+    reportParameter(PremergeConstants.REUSED_BUILD_SHARED_PARAM, builtBuildId);
+    Map<String, String> status = new HashMap<>();
+    status.put("text", "{build.status.text}, merge result was built in build id " + builtBuildId);
+    logger.message(ServiceMessage.asString("buildStatus", status));
+    if (PremergeConstants.REUSE_TREES_STOP.equals(getConfigParameter(PremergeConstants.REUSE_TREES_PARAM))) {
+      Map<String, String> stop = new HashMap<>();
+      stop.put("comment", "Merge result was already built in build id " + builtBuildId);
+      stop.put("readdToQueue", "false");
+      logger.message(ServiceMessage.asString("buildStop", stop));
+    }
+  }
+
+  /**
+   * Asks the server with the credentials of the build for the successful build of the configuration with the same trees.
+   * @return id of that build, or null if there is none or the server cannot be asked
+   */
+  @Nullable
+  protected String findBuiltBuild(@NotNull String mergedTrees) {
+    HttpURLConnection connection = null;
+    try {
+      URL url = new URL(myBuild.getAgentConfiguration().getServerUrl() + "/httpAuth" + PremergeConstants.BUILT_TREE_PATH +
+                        "?buildId=" + myBuild.getBuildId() + "&mergedTrees=" + URLEncoder.encode(mergedTrees, "UTF-8"));
+      connection = (HttpURLConnection)url.openConnection();
+      connection.setConnectTimeout(BUILT_TREE_TIMEOUT_MILLIS);
+      connection.setReadTimeout(BUILT_TREE_TIMEOUT_MILLIS);
+      String credentials = myBuild.getAccessUser() + ":" + myBuild.getAccessCode();
+      connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+        String buildId = reader.readLine();
+        return StringUtil.isEmptyOrSpaces(buildId) ? null : buildId.trim();
+      }
+    } catch (IOException e) {
+      myBuild.getBuildLogger().warning("Cannot check whether the merge result was already built: " + e.getMessage());
+      return null;
+    } finally {
+      if (connection != null) {
+        connection.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Makes the parameter visible on the server, e.g. for agent affinity of the following builds
+   */
+  private void reportParameter(@NotNull String name, @NotNull String value) {
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put("name", name);
+    attributes.put("value", value);
+    myBuild.getBuildLogger().message(ServiceMessage.asString("setParameter", attributes));
+  }
+
+  @Nullable
+  public String getConfigParameter(@NotNull String name) {
+    return myRunner.getConfigParameters().get(name);
+  }
+
+  public boolean isParameterEnabled(@NotNull String name) {
+    return Boolean.parseBoolean(getConfigParameter(name));
+  }
+
+  public int getIntParameter(@NotNull String name, int defaultValue) {
+    String value = getConfigParameter(name);
+    if (StringUtil.isEmpty(value)) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      getBuild().getBuildLogger().warning("Wrong value of '" + name + "': " + value + ". Default value " + defaultValue + " is used.");
+      return defaultValue;
+    }
+  }
+
+  @NotNull
+  public PremergeStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Target branch fetches of the build by fetch URL and credentials,
+   * completed with the repository directory or with null if the fetch failed.
+   */
+  @NotNull
+  ConcurrentMap<String, CompletableFuture<File>> getFetchGroups() {
+    return fetchGroups;
+  }
+
+  /**
+   * Git factories are bound to the build, so they are shared only between VCS roots of the build with the same config.
+   */
+  @NotNull
+  public GitFactory getGitFactory(@NotNull AgentPluginConfig config) {
+    return gitFactories.computeIfAbsent(config, key -> myGitMetaFactory.createFactory(mySshService, new BuildContext(myBuild, key, mySshKnownHostsManager)));
+  }
+
   @NotNull
   public PluginConfigFactory getConfigFactory() {
     return myConfigFactory;
@@ -178,13 +493,13 @@ public class PremergeBuildProcess extends BuildProcessAdapter {
     return status;
   }
 
-  void setSuccess() {
+  synchronized void setSuccess() {
     if (status != ResultStatus.FAILED) {
       status = ResultStatus.SUCCESS;
     }
   }
 
-  void setUnsuccess() {
+  synchronized void setUnsuccess() {
     status = ResultStatus.FAILED;
   }
 }
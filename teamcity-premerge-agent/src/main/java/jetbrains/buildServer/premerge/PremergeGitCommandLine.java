@@ -0,0 +1,120 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import com.intellij.execution.configurations.GeneralCommandLine;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.SimpleCommandLineProcessRunner;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Runs local git commands which are not provided by {@link jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentGitFacade}.
+ * Commands are executed without credentials, so they must not access remote repositories.
+ */
+public class PremergeGitCommandLine {
+  @NotNull private final String myGitPath;
+  @NotNull private final File myWorkingDir;
+  @NotNull private final Map<String, String> myEnv = new HashMap<>();
+
+  public PremergeGitCommandLine(@NotNull String gitPath, @NotNull File workingDir) {
+    myGitPath = gitPath;
+    myWorkingDir = workingDir;
+  }
+
+  @NotNull
+  public PremergeGitCommandLine setEnv(@NotNull String name, @NotNull String value) {
+    myEnv.put(name, value);
+    return this;
+  }
+
+  /**
+   * Makes commits created by the command depend on their parents only:
+   * author and committer dates are set to the latest committer date of the parents.
+   */
+  @NotNull
+  public PremergeGitCommandLine setParentsDate(@NotNull String... parents) throws VcsException {
+    String[] args = new String[parents.length + 3];
+    args[0] = "show";
+    args[1] = "-s";
+    args[2] = "--format=%ct";
+    System.arraycopy(parents, 0, args, 3, parents.length);
+    long date = 0;
+    for (String line : call(args).trim().split("\\r?\\n")) {
+      date = Math.max(date, Long.parseLong(line.trim()));
+    }
+    String gitDate = date + " +0000";
+    setEnv("GIT_AUTHOR_DATE", gitDate);
+    return setEnv("GIT_COMMITTER_DATE", gitDate);
+  }
+
+  @NotNull
+  public ExecResult run(@Nullable byte[] input, @NotNull String... args) throws VcsException {
+    GeneralCommandLine cmd = new GeneralCommandLine();
+    cmd.setExePath(myGitPath);
+    cmd.setWorkingDirectory(myWorkingDir);
+    cmd.addParameters(args);
+    if (!myEnv.isEmpty()) {
+      Map<String, String> env = new HashMap<>(System.getenv());
+      env.putAll(myEnv);
+      cmd.setEnvParams(env);
+    }
+    ExecResult result = SimpleCommandLineProcessRunner.runCommand(cmd, input);
+    if (result.getException() != null) {
+      throw new VcsException("'git " + String.join(" ", args) + "' failed", result.getException());
+    }
+    return result;
+  }
+
+  /**
+   * @return stdout of the command
+   * @throws VcsException if the command exits with non-zero code
+   */
+  @NotNull
+  public String call(@NotNull String... args) throws VcsException {
+    return call(null, args);
+  }
+
+  @NotNull
+  public String call(@Nullable byte[] input, @NotNull String... args) throws VcsException {
+    ExecResult result = run(input, args);
+    if (result.getExitCode() != 0) {
+      throw new VcsException("'git " + String.join(" ", args) + "' exited with code " + result.getExitCode() + ": " + result.getStderr().trim());
+    }
+    return result.getStdout();
+  }
+
+  /**
+   * For predicate commands like 'merge-base --is-ancestor' or 'cat-file -e'.
+   * @return true if the command exits with 0, false if it exits with 1
+   * @throws VcsException for other exit codes
+   */
+  public boolean check(@NotNull String... args) throws VcsException {
+    ExecResult result = run(null, args);
+    if (result.getExitCode() == 0) {
+      return true;
+    }
+    if (result.getExitCode() == 1) {
+      return false;
+    }
+    throw new VcsException("'git " + String.join(" ", args) + "' exited with code " + result.getExitCode() + ": " + result.getStderr().trim());
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Counting semaphore shared by all agents of a host. Each permit is a file lock on one of
+ * the &lt;kind&gt;.&lt;n&gt;.lock files in the lock directory, so permits of a killed process are released by the OS.
+ */
+public class PremergeHostSemaphore {
+  public static final String FETCH = "fetch";
+  public static final String MERGE = "merge";
+  private static final long POLL_MILLIS = 200;
+  // closing any channel of a locked file may release the lock of the whole process, so held slots are never reopened
+  private static final Set<String> ourHeldSlots = ConcurrentHashMap.newKeySet();
+
+  private PremergeHostSemaphore() {
+
+  }
+
+  /**
+   * Blocks until one of the permits is free. The wait is reported to the build log if it took longer than a second.
+   */
+  @NotNull
+  public static Permit acquire(@NotNull File lockDir, @NotNull String kind, int permits, @Nullable BuildProgressLogger logger) throws VcsException {
+    if (!lockDir.isDirectory() && !lockDir.mkdirs()) {
+      throw new VcsException("Cannot create lock directory " + lockDir.getAbsolutePath());
+    }
+    long startTime = System.currentTimeMillis();
+    boolean reported = false;
+    try {
+      while (true) {
+        for (int i = 0; i < permits; i++) {
+          Permit permit = tryAcquire(new File(lockDir, kind + "." + i + ".lock"));
+          if (permit != null) {
+            long waited = System.currentTimeMillis() - startTime;
+            if (waited > 1000 && logger != null) {
+              logger.message("Waited " + waited / 1000 + " seconds for one of " + permits + " host " + kind + " slots");
+            }
+            return permit;
+          }
+        }
+        if (!reported && logger != null) {
+          logger.message("All " + permits + " host " + kind + " slots are busy, waiting");
+          reported = true;
+        }
+        Thread.sleep(POLL_MILLIS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException("Interrupted while waiting for a host " + kind + " slot", e);
+    }
+  }
+
+  @Nullable
+  private static Permit tryAcquire(@NotNull File file) throws VcsException {
+    String slot = file.getAbsolutePath();
+    if (!ourHeldSlots.add(slot)) {
+      return null;
+    }
+    FileChannel channel = null;
+    try {
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      FileLock lock = channel.tryLock();
+      if (lock != null) {
+        return new Permit(slot, channel, lock);
+      }
+    } catch (OverlappingFileLockException e) {
+      // the slot is taken by another build of this agent
+    } catch (IOException e) {
+      FileUtil.close(channel);
+      ourHeldSlots.remove(slot);
+      throw new VcsException("Cannot lock " + slot, e);
+    }
+    FileUtil.close(channel);
+    ourHeldSlots.remove(slot);
+    return null;
+  }
+
+  public static class Permit implements Closeable {
+    @NotNull private final String mySlot;
+    @NotNull private final FileChannel myChannel;
+    @NotNull private final FileLock myLock;
+
+    private Permit(@NotNull String slot, @NotNull FileChannel channel, @NotNull FileLock lock) {
+      mySlot = slot;
+      myChannel = channel;
+      myLock = lock;
+    }
+
+    @Override
+    public void close() {
+      try {
+        myLock.release();
+      } catch (IOException e) {
+        // the lock is released with the channel
+      } finally {
+        FileUtil.close(myChannel);
+        ourHeldSlots.remove(mySlot);
+      }
+    }
+  }
+}
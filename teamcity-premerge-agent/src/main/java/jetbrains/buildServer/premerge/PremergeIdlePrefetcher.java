@@ -0,0 +1,207 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.agent.*;
+import jetbrains.buildServer.agent.oauth.AgentTokenStorage;
+import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManager;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentGitVcsRoot;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.PluginConfigFactory;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.VcsRootEntry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.agent.GitUtilsAgent.detectExtraHTTPCredentialsInBuild;
+
+/**
+ * Periodically fetches target branches of recent premerge builds into the agent's git mirrors while no build runs,
+ * so the step finds the target branch up to date in the mirror. Targets are keyed by the fetch URL
+ * the step uses for the mirror, so the same mirror is updated.
+ * Configured with agent configuration parameters, disabled unless the interval is set.
+ * The fetch runs without build credentials, so only repositories accessible with the agent host's git
+ * credentials (ssh agent, credential helpers) are prefetched.
+ */
+public class PremergeIdlePrefetcher extends AgentLifeCycleAdapter {
+  public static final String INTERVAL_MINUTES_PARAM = "teamcity.premerge.idlePrefetch.intervalMinutes";
+  public static final String MAX_CONCURRENCY_PARAM = "teamcity.premerge.idlePrefetch.maxConcurrency";
+  public static final String MAX_BRANCHES_PARAM = "teamcity.premerge.idlePrefetch.maxBranches";
+  private static final long TICK_SECONDS = 60;
+  private static final long MAX_TARGET_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+  @NotNull private final BuildAgentConfiguration myAgentConfiguration;
+  @NotNull private final PluginConfigFactory myConfigFactory;
+  @NotNull private final MirrorManager myMirrorManager;
+  @NotNull private final AgentTokenStorage myTokenStorage;
+  private final Map<String, Target> myTargets = new ConcurrentHashMap<>();
+  private final AtomicInteger myRunningBuilds = new AtomicInteger();
+  private final ScheduledExecutorService myScheduler = ExecutorsFactory.newFixedScheduledDaemonExecutor("Premerge idle prefetch", 1);
+  private volatile long myLastRun;
+
+  public PremergeIdlePrefetcher(@NotNull EventDispatcher<AgentLifeCycleListener> dispatcher,
+                                @NotNull BuildAgentConfiguration agentConfiguration,
+                                @NotNull PluginConfigFactory configFactory,
+                                @NotNull MirrorManager mirrorManager,
+                                @NotNull AgentTokenStorage tokenStorage) {
+    myAgentConfiguration = agentConfiguration;
+    myConfigFactory = configFactory;
+    myMirrorManager = mirrorManager;
+    myTokenStorage = tokenStorage;
+    dispatcher.addListener(this);
+  }
+
+  @Override
+  public void agentStarted(@NotNull BuildAgent agent) {
+    myScheduler.scheduleWithFixedDelay(this::tick, TICK_SECONDS, TICK_SECONDS, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public void agentShutdown() {
+    myScheduler.shutdownNow();
+  }
+
+  @Override
+  public void buildStarted(@NotNull AgentRunningBuild runningBuild) {
+    myRunningBuilds.incrementAndGet();
+  }
+
+  @Override
+  public void buildFinished(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildStatus) {
+    myRunningBuilds.decrementAndGet();
+    String targetBranch = build.getSharedConfigParameters().get(PremergeConstants.TARGET_BRANCH_SHARED_PARAM);
+    if (targetBranch == null || getIntParameter(INTERVAL_MINUTES_PARAM, 0) <= 0) {
+      return;
+    }
+    for (VcsRootEntry entry : build.getVcsRootEntries()) {
+      VcsRoot root = entry.getVcsRoot();
+      if (!PremergeConstants.GIT_VCS_NAME.equals(root.getVcsName())) {
+        continue;
+      }
+      try {
+        String url = getFetchUrl(build, root);
+        String gitPath = myConfigFactory.createConfig(build, root).getPathToGit();
+        myTargets.computeIfAbsent(url + "#" + targetBranch, key -> new Target(url, targetBranch)).seen(gitPath);
+      } catch (VcsException e) {
+        // the target is not recorded
+      }
+    }
+  }
+
+  /**
+   * @return the URL the build step fetches the root from and maps to the mirror, including the user name
+   */
+  @NotNull
+  protected String getFetchUrl(@NotNull AgentRunningBuild build, @NotNull VcsRoot root) throws VcsException {
+    return new AgentGitVcsRoot(myMirrorManager, build.getCheckoutDirectory(), root, myTokenStorage, detectExtraHTTPCredentialsInBuild(build))
+      .getRepositoryFetchURL().toString();
+  }
+
+  protected void tick() {
+    int intervalMinutes = getIntParameter(INTERVAL_MINUTES_PARAM, 0);
+    long now = System.currentTimeMillis();
+    if (intervalMinutes <= 0 || myRunningBuilds.get() > 0 || now - myLastRun < TimeUnit.MINUTES.toMillis(intervalMinutes)) {
+      return;
+    }
+    myLastRun = now;
+    myTargets.values().removeIf(target -> now - target.myLastSeen > MAX_TARGET_AGE_MILLIS);
+    List<Target> targets = new ArrayList<>(myTargets.values());
+    targets.sort(Comparator.comparingInt((Target target) -> target.myBuilds).reversed());
+    targets = targets.subList(0, Math.min(targets.size(), Math.max(0, getIntParameter(MAX_BRANCHES_PARAM, 5))));
+    if (targets.isEmpty()) {
+      return;
+    }
+
+    ExecutorService executor = ExecutorsFactory.newFixedDaemonExecutor("Premerge idle prefetch fetch", Math.max(1, getIntParameter(MAX_CONCURRENCY_PARAM, 1)));
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (Target target : targets) {
+        futures.add(executor.submit(() -> prefetch(target)));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      // prefetch does not throw
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void prefetch(@NotNull Target target) {
+    if (myRunningBuilds.get() > 0) {
+      return;
+    }
+    File mirrorDir = myMirrorManager.getMirrorDir(target.myUrl);
+    if (!new File(mirrorDir, "config").isFile()) {
+      // mirrors are created by builds, where credentials are available
+      return;
+    }
+    // a busy mirror is being updated by a build anyway
+    try (PremergeMirrorLock mirrorLock = PremergeMirrorLock.acquire(mirrorDir, 0, null)) {
+      if (mirrorLock.isHostWide()) {
+        new PremergeGitCommandLine(target.myGitPath, mirrorDir)
+          .setEnv("GIT_TERMINAL_PROMPT", "0")
+          .setEnv("GIT_SSH_COMMAND", "ssh -o BatchMode=yes")
+          .call("fetch", "--quiet", "--no-tags", target.myUrl, "+" + target.myBranch + ":" + target.myBranch);
+        mirrorLock.markFetched(target.myBranch);
+      }
+    } catch (VcsException e) {
+      // the next attempt is made on the next run
+    }
+  }
+
+  private int getIntParameter(@NotNull String name, int defaultValue) {
+    String value = myAgentConfiguration.getConfigurationParameters().get(name);
+    if (StringUtil.isEmpty(value)) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  private static class Target {
+    @NotNull private final String myUrl;
+    @NotNull private final String myBranch;
+    private volatile String myGitPath;
+    private volatile long myLastSeen;
+    private volatile int myBuilds;
+
+    Target(@NotNull String url, @NotNull String branch) {
+      myUrl = url;
+      myBranch = branch;
+    }
+
+    synchronized void seen(@Nullable String gitPath) {
+      myGitPath = gitPath;
+      myLastSeen = System.currentTimeMillis();
+      myBuilds++;
+    }
+  }
+}
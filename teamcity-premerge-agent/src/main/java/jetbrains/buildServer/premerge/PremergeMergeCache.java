@@ -0,0 +1,143 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Agent-local cache of preliminary merge results of one repository, keyed by the merge mode and source and target revisions.
+ * Merge commits are kept reachable by refs under {@link #REFS_PREFIX}. Access times are stored
+ * in a file inside the git directory and are used for LRU eviction.
+ */
+public class PremergeMergeCache {
+  static final String REFS_PREFIX = "refs/premerge-cache/";
+  private static final String INDEX_FILE_NAME = "premerge-cache.properties";
+  private static final ConcurrentMap<String, Object> ourLocks = new ConcurrentHashMap<>();
+
+  @NotNull private final PremergeGitCommandLine myGit;
+  @NotNull private final File myIndexFile;
+  @NotNull private final String myMode;
+  private final int myMaxEntries;
+  private final long myMaxAgeMillis;
+
+  /**
+   * @param deterministic whether merge commits are created deterministically, they are cached separately from the other ones
+   */
+  public PremergeMergeCache(@NotNull PremergeGitCommandLine git, @NotNull File gitDir, boolean deterministic, int maxEntries, int maxAgeDays) {
+    myGit = git;
+    myIndexFile = new File(gitDir, INDEX_FILE_NAME);
+    myMode = deterministic ? "deterministic" : "merge";
+    myMaxEntries = maxEntries;
+    myMaxAgeMillis = TimeUnit.DAYS.toMillis(maxAgeDays);
+  }
+
+  /**
+   * @return merge commit of the given revisions, or null if it is not cached
+   */
+  @Nullable
+  public String find(@NotNull String sourceSHA, @NotNull String targetSHA) throws VcsException {
+    String key = getKey(sourceSHA, targetSHA);
+    ExecResult result = myGit.run(null, "rev-parse", "--verify", "-q", REFS_PREFIX + key + "^{commit}");
+    if (result.getExitCode() != 0) {
+      return null;
+    }
+    synchronized (getLock()) {
+      Properties index = loadIndex();
+      index.setProperty(key, String.valueOf(System.currentTimeMillis()));
+      saveIndex(index);
+    }
+    return result.getStdout().trim();
+  }
+
+  public void put(@NotNull String sourceSHA, @NotNull String targetSHA, @NotNull String mergeSHA) throws VcsException {
+    String key = getKey(sourceSHA, targetSHA);
+    myGit.call("update-ref", REFS_PREFIX + key, mergeSHA);
+    synchronized (getLock()) {
+      Properties index = loadIndex();
+      index.setProperty(key, String.valueOf(System.currentTimeMillis()));
+      evict(index);
+      saveIndex(index);
+    }
+  }
+
+  private void evict(@NotNull Properties index) throws VcsException {
+    List<String> keys = new ArrayList<>(index.stringPropertyNames());
+    keys.sort((key1, key2) -> Long.compare(getAccessTime(index, key2), getAccessTime(index, key1)));
+    long now = System.currentTimeMillis();
+    StringBuilder commands = new StringBuilder();
+    for (int i = 0; i < keys.size(); i++) {
+      String key = keys.get(i);
+      if (i >= myMaxEntries || now - getAccessTime(index, key) > myMaxAgeMillis) {
+        commands.append("delete ").append(REFS_PREFIX).append(key).append('\n');
+        index.remove(key);
+      }
+    }
+    if (commands.length() > 0) {
+      myGit.call(commands.toString().getBytes(StandardCharsets.UTF_8), "update-ref", "--stdin");
+    }
+  }
+
+  private static long getAccessTime(@NotNull Properties index, @NotNull String key) {
+    try {
+      return Long.parseLong(index.getProperty(key));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  @NotNull
+  private Properties loadIndex() throws VcsException {
+    Properties index = new Properties();
+    if (myIndexFile.isFile()) {
+      try (InputStream in = new FileInputStream(myIndexFile)) {
+        index.load(in);
+      } catch (IOException e) {
+        throw new VcsException("Cannot read merge cache index " + myIndexFile.getAbsolutePath(), e);
+      }
+    }
+    return index;
+  }
+
+  private void saveIndex(@NotNull Properties index) throws VcsException {
+    try (OutputStream out = new FileOutputStream(myIndexFile)) {
+      index.store(out, null);
+    } catch (IOException e) {
+      throw new VcsException("Cannot write merge cache index " + myIndexFile.getAbsolutePath(), e);
+    }
+  }
+
+  @NotNull
+  private Object getLock() {
+    return ourLocks.computeIfAbsent(myIndexFile.getAbsolutePath(), key -> new Object());
+  }
+
+  @NotNull
+  private String getKey(@NotNull String sourceSHA, @NotNull String targetSHA) {
+    return myMode + "/" + sourceSHA + "/" + targetSHA;
+  }
+}
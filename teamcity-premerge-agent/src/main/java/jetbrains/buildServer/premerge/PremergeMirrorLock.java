@@ -0,0 +1,236 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Host-wide exclusive lock of a git mirror for fetches of the plugin. Threads of the agent are serialized
+ * with an in-process lock, agent processes sharing the mirror with a file lock on premerge.lock in the mirror.
+ * File locks are released by the OS when a process dies, so they never become stale. Lock files which git
+ * takes in the mirror for the fetches of the plugin are removed when they are left by killed git processes.
+ * Waiting threads of the agent get the lock in the order they asked for it. The lock also records when the fetches
+ * of branches started, so a build which waited for the lock skips its fetch if another build fetched the branch meanwhile.
+ */
+public class PremergeMirrorLock implements Closeable {
+  private static final ConcurrentMap<String, ReentrantLock> ourLocks = new ConcurrentHashMap<>();
+  private static final String LOCK_FILE = "premerge.lock";
+  private static final String FETCHES_FILE = "premerge-fetches.properties";
+  private static final String[] GIT_LOCK_FILES = {"shallow.lock", "packed-refs.lock", "config.lock", "FETCH_HEAD.lock"};
+  private static final long STALE_GIT_LOCK_MILLIS = TimeUnit.MINUTES.toMillis(10);
+  private static final long POLL_MILLIS = 100;
+  public static final int DEFAULT_TIMEOUT_SECONDS = 600;
+
+  @NotNull private final File myMirrorDir;
+  @Nullable private final ReentrantLock myThreadLock;
+  @Nullable private final FileChannel myChannel;
+  @Nullable private final FileLock myFileLock;
+  private final long myWaitStartTime;
+  private final long myAcquireTime = System.currentTimeMillis();
+
+  private PremergeMirrorLock(@NotNull File mirrorDir, @Nullable ReentrantLock threadLock, @Nullable FileChannel channel, @Nullable FileLock fileLock, long waitStartTime) {
+    myMirrorDir = mirrorDir;
+    myThreadLock = threadLock;
+    myChannel = channel;
+    myFileLock = fileLock;
+    myWaitStartTime = waitStartTime;
+  }
+
+  /**
+   * Waits up to the timeout for the lock. If another build of the agent holds the mirror longer,
+   * a warning is logged and the caller proceeds without the lock. If another process holds the file lock longer,
+   * a warning is logged and the caller proceeds with the in-process lock only.
+   */
+  @NotNull
+  public static PremergeMirrorLock acquire(@NotNull File mirrorDir, long timeoutMillis, @Nullable BuildProgressLogger logger) throws VcsException {
+    ReentrantLock threadLock = ourLocks.computeIfAbsent(mirrorDir.getAbsolutePath(), key -> new ReentrantLock(true));
+    long startTime = System.currentTimeMillis();
+    try {
+      if (!threadLock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        if (logger != null) {
+          logger.warning("Mirror " + mirrorDir.getName() + " is locked by another build of the agent for more than " + timeoutMillis / 1000 + " seconds, proceeding without the lock");
+        }
+        return new PremergeMirrorLock(mirrorDir, null, null, null, startTime);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException("Interrupted while waiting for the lock of mirror " + mirrorDir.getAbsolutePath(), e);
+    }
+
+    FileChannel channel = null;
+    FileLock fileLock = null;
+    try {
+      if (!mirrorDir.isDirectory() && !mirrorDir.mkdirs()) {
+        throw new VcsException("Cannot create mirror directory " + mirrorDir.getAbsolutePath());
+      }
+      channel = FileChannel.open(new File(mirrorDir, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      while ((fileLock = tryLock(channel)) == null && System.currentTimeMillis() - startTime < timeoutMillis) {
+        Thread.sleep(POLL_MILLIS);
+      }
+      if (fileLock == null) {
+        FileUtil.close(channel);
+        channel = null;
+        if (logger != null) {
+          logger.warning("Mirror " + mirrorDir.getName() + " is locked by another process for more than " + timeoutMillis / 1000 + " seconds, proceeding without the lock");
+        }
+      }
+      else {
+        long waited = System.currentTimeMillis() - startTime;
+        if (waited > 1000 && logger != null) {
+          logger.message("Waited " + waited / 1000 + " seconds for the lock of mirror " + mirrorDir.getName());
+        }
+        removeStaleGitLocks(mirrorDir, logger);
+      }
+      return new PremergeMirrorLock(mirrorDir, threadLock, channel, fileLock, startTime);
+    } catch (IOException | InterruptedException | RuntimeException | VcsException e) {
+      FileUtil.close(channel);
+      threadLock.unlock();
+      if (e instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      throw e instanceof VcsException ? (VcsException)e : new VcsException("Cannot lock mirror " + mirrorDir.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * @return false if another build or process held the mirror longer than the timeout and the file lock is not taken
+   */
+  public boolean isHostWide() {
+    return myFileLock != null;
+  }
+
+  /**
+   * @return true if a fetch of the branch into the mirror by this or another agent started after this lock was requested,
+   * so it got everything pushed before the caller asked for the lock
+   */
+  public boolean isFetchedSinceRequested(@NotNull String branch) {
+    String timestamp = readFetches().getProperty(branch);
+    try {
+      return timestamp != null && Long.parseLong(timestamp) > myWaitStartTime;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Records the fetch of the branch under this lock. The time the lock was taken is stored, since the fetch started after it.
+   */
+  public void markFetched(@NotNull String branch) {
+    Properties fetches = readFetches();
+    fetches.setProperty(branch, String.valueOf(myAcquireTime));
+    File file = new File(myMirrorDir, FETCHES_FILE);
+    File tmp = new File(myMirrorDir, FETCHES_FILE + ".tmp");
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+      fetches.store(writer, null);
+    } catch (IOException e) {
+      FileUtil.delete(tmp);
+      return;
+    }
+    if (!tmp.renameTo(file)) {
+      FileUtil.delete(file);
+      if (!tmp.renameTo(file)) {
+        FileUtil.delete(tmp);
+      }
+    }
+  }
+
+  @NotNull
+  private Properties readFetches() {
+    Properties fetches = new Properties();
+    File file = new File(myMirrorDir, FETCHES_FILE);
+    if (file.isFile()) {
+      try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+        fetches.load(reader);
+      } catch (IOException e) {
+        // treated as never fetched
+      }
+    }
+    return fetches;
+  }
+
+  @Override
+  public void close() {
+    try {
+      if (myFileLock != null) {
+        myFileLock.release();
+      }
+    } catch (IOException e) {
+      // the lock is released with the channel
+    } finally {
+      FileUtil.close(myChannel);
+      if (myThreadLock != null) {
+        myThreadLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Removes the lock file of the branch ref if it is older than {@link #STALE_GIT_LOCK_MILLIS}.
+   * Does nothing unless the lock is host-wide, since otherwise another fetch may be updating the ref.
+   */
+  public void removeStaleRefLock(@NotNull String branch) {
+    if (isHostWide()) {
+      String ref = branch.startsWith("refs/") ? branch : "refs/heads/" + branch;
+      removeIfStale(new File(myMirrorDir, ref + ".lock"), System.currentTimeMillis(), null);
+    }
+  }
+
+  /**
+   * @return the file lock, or null if it is held by another process or by another channel of this process
+   */
+  @Nullable
+  private static FileLock tryLock(@NotNull FileChannel channel) throws IOException {
+    try {
+      return channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Removes the lock files a fetch takes in the mirror if they are older than {@link #STALE_GIT_LOCK_MILLIS}:
+   * git holds them only for the duration of a command, so old ones are left by killed processes and fail every
+   * following fetch. Ref locks are checked per fetched branch by {@link #removeStaleRefLock(String)}.
+   */
+  private static void removeStaleGitLocks(@NotNull File mirrorDir, @Nullable BuildProgressLogger logger) {
+    long now = System.currentTimeMillis();
+    for (String name : GIT_LOCK_FILES) {
+      removeIfStale(new File(mirrorDir, name), now, logger);
+    }
+  }
+
+  private static void removeIfStale(@NotNull File lockFile, long now, @Nullable BuildProgressLogger logger) {
+    if (lockFile.isFile() && now - lockFile.lastModified() > STALE_GIT_LOCK_MILLIS && lockFile.delete() && logger != null) {
+      logger.warning("Removed stale git lock " + lockFile.getAbsolutePath());
+    }
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentGitFacade;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * AgentGitFacade which runs the git commands of the plugin with {@link PremergeGitCommandLine}, in place of
+ * the facade of the git plugin, which needs a running agent. It runs the build step in tests and benchmarks.
+ * Options are collected from the command setters and turned into git arguments on call().
+ * Commands the plugin does not use fail with a VcsException.
+ */
+public class PremergeNativeGitFacade {
+  @NotNull private final String myPathToGit;
+  @NotNull private final File myRepositoryDir;
+  @NotNull private final List<String> myConfigs = new ArrayList<>();
+  @Nullable private List<String> mySequence;
+
+  public PremergeNativeGitFacade(@NotNull String pathToGit, @NotNull File repositoryDir) {
+    myPathToGit = pathToGit;
+    myRepositoryDir = repositoryDir;
+  }
+
+  /**
+   * Passes the config to every command, as 'git -c name=value'.
+   */
+  @NotNull
+  public PremergeNativeGitFacade addConfig(@NotNull String name, @NotNull String value) {
+    myConfigs.add("-c");
+    myConfigs.add(name + "=" + value);
+    return this;
+  }
+
+  /**
+   * Records every executed command without options, e.g. "fetch /path/to/mirror +main:main".
+   */
+  @NotNull
+  public PremergeNativeGitFacade setSequence(@NotNull List<String> sequence) {
+    mySequence = sequence;
+    return this;
+  }
+
+  @NotNull
+  public AgentGitFacade build() {
+    return proxy(AgentGitFacade.class, (proxy, method, args) -> command(method.getReturnType(), method.getName()));
+  }
+
+  @NotNull
+  private Object command(@NotNull Class<?> type, @NotNull String name) {
+    Map<String, Object[]> options = new HashMap<>();
+    List<String> configs = new ArrayList<>(myConfigs);
+    return proxy(type, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "call":
+          return call(name, options, configs);
+        case "addConfig":
+          configs.add("-c");
+          configs.add(args[0] + "=" + args[1]);
+          return null;
+        default:
+          options.put(method.getName(), args);
+          return method.getReturnType().isInstance(proxy) ? proxy : defaultValue(method.getReturnType());
+      }
+    });
+  }
+
+  @Nullable
+  private Object call(@NotNull String name, @NotNull Map<String, Object[]> options, @NotNull List<String> configs) throws VcsException {
+    List<String> args = new ArrayList<>(configs);
+    String recorded;
+    switch (name) {
+      case "fetch":
+        String remote = option(options, "setRemote", "origin");
+        args.addAll(Arrays.asList("fetch", "-q", Boolean.TRUE.equals(option(options, "setFetchTags", false)) ? "--tags" : "--no-tags"));
+        int depth = option(options, "setDepth", 0);
+        if (depth == Integer.MAX_VALUE) {
+          args.add("--unshallow");
+        }
+        else if (depth > 0) {
+          args.add("--depth=" + depth);
+        }
+        args.add(remote);
+        args.add(option(options, "setRefspec", null));
+        recorded = "fetch " + remote + " " + option(options, "setRefspec", null);
+        break;
+      case "merge":
+        if (Boolean.TRUE.equals(option(options, "setAbort", false))) {
+          args.addAll(Arrays.asList("merge", "--abort"));
+          recorded = "merge --abort";
+        }
+        else {
+          String[] branches = (String[])options.get("setBranches")[0];
+          args.addAll(Arrays.asList("merge", "-q", "--no-edit"));
+          args.addAll(Arrays.asList(branches));
+          recorded = "merge " + String.join(" ", branches);
+        }
+        break;
+      case "checkout":
+        args.addAll(Arrays.asList("checkout", "-q", option(options, "setBranch", null)));
+        recorded = "checkout " + option(options, "setBranch", null);
+        break;
+      case "createBranch":
+        args.addAll(Arrays.asList("branch", option(options, "setName", null)));
+        if (options.containsKey("setStartPoint")) {
+          args.add(option(options, "setStartPoint", null));
+        }
+        recorded = "branch " + option(options, "setName", null);
+        break;
+      case "updateRef":
+        args.addAll(Arrays.asList("update-ref", option(options, "setRef", null), option(options, "setRevision", null)));
+        recorded = "update-ref " + option(options, "setRef", null);
+        break;
+      case "revParse":
+        String ref = options.containsKey("verify") ? option(options, "verify", null) : option(options, "setRef", null);
+        args.addAll(Arrays.asList("rev-parse", "-q", "--verify", ref));
+        ExecResult revision = getCommandLine().run(null, args.toArray(new String[0]));
+        return revision.getExitCode() == 0 ? revision.getStdout().trim() : null;
+      case "init":
+        if (!myRepositoryDir.isDirectory() && !myRepositoryDir.mkdirs()) {
+          throw new VcsException("Cannot create directory " + myRepositoryDir.getAbsolutePath());
+        }
+        args.addAll(Arrays.asList("init", "-q"));
+        if (Boolean.TRUE.equals(option(options, "setBare", false))) {
+          args.add("--bare");
+        }
+        recorded = "init";
+        break;
+      default:
+        throw new VcsException("git " + name + " is not supported without the git plugin");
+    }
+    if (mySequence != null) {
+      mySequence.add(recorded);
+    }
+    getCommandLine().call(args.toArray(new String[0]));
+    return null;
+  }
+
+  @NotNull
+  private PremergeGitCommandLine getCommandLine() {
+    return new PremergeGitCommandLine(myPathToGit, myRepositoryDir);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T option(@NotNull Map<String, Object[]> options, @NotNull String setter, T defaultValue) {
+    Object[] args = options.get(setter);
+    return args == null ? defaultValue : (T)args[0];
+  }
+
+  @Nullable
+  private static Object defaultValue(@NotNull Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    }
+    if (type == int.class) {
+      return 0;
+    }
+    if (type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+
+  @NotNull
+  private static <T> T proxy(@NotNull Class<T> type, @NotNull InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(PremergeNativeGitFacade.class.getClassLoader(), new Class[]{type}, (proxy, method, args) -> {
+      if (method.getDeclaringClass() == Object.class) {
+        switch (method.getName()) {
+          case "equals":
+            return proxy == args[0];
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          default:
+            return type.getSimpleName();
+        }
+      }
+      return handler.invoke(proxy, method, args);
+    }));
+  }
+}
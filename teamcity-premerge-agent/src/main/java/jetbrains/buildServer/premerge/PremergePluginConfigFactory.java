@@ -0,0 +1,73 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import jetbrains.buildServer.agent.*;
+import jetbrains.buildServer.buildTriggers.vcs.git.Constants;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Detects the git executable and its version once per agent instead of once per VCS root of every build.
+ * Detection depends only on the git path of the VCS root and the TEAMCITY_GIT_PATH environment variable,
+ * so its result is cached by these values for the agent's lifetime and dropped when the agent configuration
+ * is reloaded. Configs themselves read build and root settings, they are created for every call around
+ * the cached executable.
+ */
+public class PremergePluginConfigFactory extends AgentLifeCycleAdapter implements PluginConfigFactory {
+  private static final String GIT_PATH_ENV = "TEAMCITY_GIT_PATH";
+
+  @NotNull private final PluginConfigFactory myDelegate;
+  @NotNull private final GitDetector myGitDetector;
+  @NotNull private final BuildAgentConfiguration myAgentConfig;
+  private final Map<String, GitExec> myGitExecs = new ConcurrentHashMap<>();
+
+  public PremergePluginConfigFactory(@NotNull PluginConfigFactory delegate,
+                                     @NotNull GitDetector gitDetector,
+                                     @NotNull BuildAgentConfiguration agentConfig,
+                                     @NotNull EventDispatcher<AgentLifeCycleListener> dispatcher) {
+    myDelegate = delegate;
+    myGitDetector = gitDetector;
+    myAgentConfig = agentConfig;
+    dispatcher.addListener(this);
+  }
+
+  @NotNull
+  @Override
+  public AgentPluginConfig createConfig(@NotNull AgentRunningBuild build, @NotNull VcsRoot root) throws VcsException {
+    if (!Boolean.parseBoolean(build.getSharedConfigParameters().get(PremergeConstants.CACHE_PLUGIN_CONFIG_PARAM))) {
+      return myDelegate.createConfig(build, root);
+    }
+    String key = root.getProperty(Constants.AGENT_GIT_PATH) + "#" + build.getSharedBuildParameters().getEnvironmentVariables().get(GIT_PATH_ENV);
+    GitExec gitExec = myGitExecs.get(key);
+    if (gitExec == null) {
+      gitExec = myGitDetector.getGitPathAndVersion(root, myAgentConfig, build);
+      myGitExecs.put(key, gitExec);
+    }
+    return new PluginConfigImpl(myAgentConfig, build, root, gitExec);
+  }
+
+  @Override
+  public void afterAgentConfigurationLoaded(@NotNull BuildAgent agent) {
+    myGitExecs.clear();
+  }
+}
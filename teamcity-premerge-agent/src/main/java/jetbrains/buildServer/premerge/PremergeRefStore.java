@@ -0,0 +1,265 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Reads and writes references directly in the files ref store of a repository (loose refs and packed-refs),
+ * without starting a git process. Objects are not read, so revisions are not verified to exist.
+ * Repositories with the reftable backend or linked worktrees are not supported.
+ * Updates are logged to the reflog by the rules of core.logAllRefUpdates.
+ */
+public class PremergeRefStore {
+  private static final Pattern OBJECT_ID = Pattern.compile("[0-9a-f]{40}([0-9a-f]{24})?");
+  private static final Pattern LOG_ALL_REF_UPDATES = Pattern.compile("\\s*logallrefupdates\\s*=\\s*(\\S+)\\s*", Pattern.CASE_INSENSITIVE);
+  private static final String NULL_OBJECT_ID = "0000000000000000000000000000000000000000";
+  private static final int MAX_SYMBOLIC_REF_DEPTH = 5;
+
+  @NotNull private final File myGitDir;
+
+  private PremergeRefStore(@NotNull File gitDir) {
+    myGitDir = gitDir;
+  }
+
+  /**
+   * @return ref store of the repository, or null if its layout is not supported
+   */
+  @Nullable
+  public static PremergeRefStore open(@NotNull File repositoryDir) {
+    File gitDir = new File(repositoryDir, ".git");
+    if (!gitDir.isDirectory() || new File(gitDir, "reftable").exists() || new File(gitDir, "commondir").exists()) {
+      return null;
+    }
+    return new PremergeRefStore(gitDir);
+  }
+
+  public static boolean isObjectId(@NotNull String revision) {
+    return OBJECT_ID.matcher(revision).matches();
+  }
+
+  /**
+   * Resolves a full object id, a pseudo-ref like HEAD or MERGE_HEAD, or a ref name
+   * in the order used by 'git rev-parse'.
+   * @return object id, or null if there is no such ref
+   */
+  @Nullable
+  public String resolve(@NotNull String revision) throws IOException {
+    if (isObjectId(revision)) {
+      return revision;
+    }
+    for (String ref : new String[]{revision, "refs/" + revision, "refs/tags/" + revision, "refs/heads/" + revision,
+                                   "refs/remotes/" + revision, "refs/remotes/" + revision + "/HEAD"}) {
+      String objectId = readRef(ref, 0);
+      if (objectId != null) {
+        return objectId;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return object id of the exact ref, or null if the ref does not exist
+   */
+  @Nullable
+  public String readRef(@NotNull String ref) throws IOException {
+    return readRef(ref, 0);
+  }
+
+  /**
+   * Points the ref to the object id. The ref is written as a loose ref under a lock file like git does,
+   * an existing packed value is shadowed by the loose one.
+   * @param message reflog message
+   * @throws IOException if the ref cannot be written, including when it conflicts with an existing
+   * ref by name (e.g. 'refs/heads/a/b' and 'refs/heads/a'), loose or packed; callers fall back to git
+   * which reports such conflicts properly
+   */
+  public void updateRef(@NotNull String ref, @NotNull String objectId, @NotNull String message) throws IOException {
+    if (!ref.startsWith("refs/") || !isObjectId(objectId)) {
+      throw new IOException("Cannot update '" + ref + "' to '" + objectId + "'");
+    }
+    checkNameConflicts(ref);
+    File refFile = new File(myGitDir, ref);
+    File lockFile = new File(myGitDir, ref + ".lock");
+    File parent = refFile.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Cannot create directory " + parent.getAbsolutePath());
+    }
+    if (!lockFile.createNewFile()) {
+      throw new IOException("'" + ref + "' is locked: " + lockFile.getAbsolutePath());
+    }
+    try {
+      String oldObjectId = readRef(ref, 0);
+      Files.write(lockFile.toPath(), (objectId + "\n").getBytes(StandardCharsets.US_ASCII));
+      Files.move(lockFile.toPath(), refFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      String entry = (oldObjectId == null ? NULL_OBJECT_ID : oldObjectId) + " " + objectId + " " +
+                     PremergeBranchSupportImpl.MERGE_USER_NAME + " <" + PremergeBranchSupportImpl.MERGE_USER_EMAIL + "> " +
+                     System.currentTimeMillis() / 1000 + " +0000\t" + message.replace('\n', ' ') + "\n";
+      appendReflog(ref, entry);
+      if (ref.equals(readSymbolicHead())) {
+        appendReflog("HEAD", entry);
+      }
+    } finally {
+      Files.deleteIfExists(lockFile.toPath());
+    }
+  }
+
+  /**
+   * A ref cannot be created if one of its parent paths is a ref or if it is a parent path of other refs.
+   */
+  private void checkNameConflicts(@NotNull String ref) throws IOException {
+    for (int slash = ref.indexOf('/', "refs/".length()); slash > 0; slash = ref.indexOf('/', slash + 1)) {
+      String parentRef = ref.substring(0, slash);
+      if (new File(myGitDir, parentRef).isFile() || readPackedRef(parentRef) != null) {
+        throw new IOException("'" + ref + "' conflicts with existing '" + parentRef + "'");
+      }
+    }
+    if (new File(myGitDir, ref).isDirectory()) {
+      throw new IOException("'" + ref + "' conflicts with existing refs under '" + ref + "/'");
+    }
+    for (String packedRef : readPackedRefs()) {
+      if (packedRef.startsWith(ref + "/")) {
+        throw new IOException("'" + ref + "' conflicts with existing '" + packedRef + "'");
+      }
+    }
+  }
+
+  private void appendReflog(@NotNull String ref, @NotNull String entry) throws IOException {
+    File logFile = new File(myGitDir, "logs/" + ref);
+    if (!logFile.isFile() && !shouldCreateReflog(ref)) {
+      return;
+    }
+    File parent = logFile.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Cannot create directory " + parent.getAbsolutePath());
+    }
+    Files.write(logFile.toPath(), entry.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  /**
+   * Mirrors git: with core.logAllRefUpdates unset (true in non-bare repositories) or enabled
+   * reflogs are created for HEAD, branches, remote-tracking branches and notes, with 'always' for every ref.
+   */
+  private boolean shouldCreateReflog(@NotNull String ref) throws IOException {
+    String value = "true";
+    File config = new File(myGitDir, "config");
+    if (config.isFile()) {
+      boolean core = false;
+      for (String line : Files.readAllLines(config.toPath(), StandardCharsets.UTF_8)) {
+        String trimmed = line.trim();
+        if (trimmed.startsWith("[")) {
+          core = trimmed.toLowerCase(Locale.ROOT).startsWith("[core]");
+          continue;
+        }
+        Matcher matcher = LOG_ALL_REF_UPDATES.matcher(trimmed);
+        if (core && matcher.matches()) {
+          value = matcher.group(1).toLowerCase(Locale.ROOT);
+        }
+      }
+    }
+    if ("always".equals(value)) {
+      return true;
+    }
+    if (Arrays.asList("false", "no", "off", "0").contains(value)) {
+      return false;
+    }
+    return ref.equals("HEAD") || ref.startsWith("refs/heads/") || ref.startsWith("refs/remotes/") || ref.startsWith("refs/notes/");
+  }
+
+  @Nullable
+  private String readSymbolicHead() throws IOException {
+    File head = new File(myGitDir, "HEAD");
+    if (!head.isFile()) {
+      return null;
+    }
+    String content = new String(Files.readAllBytes(head.toPath()), StandardCharsets.UTF_8).trim();
+    return content.startsWith("ref:") ? content.substring("ref:".length()).trim() : null;
+  }
+
+  @Nullable
+  private String readRef(@NotNull String ref, int depth) throws IOException {
+    if (depth > MAX_SYMBOLIC_REF_DEPTH || ref.contains("..")) {
+      return null;
+    }
+    File refFile = new File(myGitDir, ref);
+    if (refFile.isFile()) {
+      String content = new String(Files.readAllBytes(refFile.toPath()), StandardCharsets.UTF_8).trim();
+      if (content.startsWith("ref:")) {
+        return readRef(content.substring("ref:".length()).trim(), depth + 1);
+      }
+      // pseudo-refs like FETCH_HEAD have more data after the object id
+      String objectId = content.split("\\s", 2)[0];
+      return isObjectId(objectId) ? objectId : null;
+    }
+    return ref.startsWith("refs/") ? readPackedRef(ref) : null;
+  }
+
+  @Nullable
+  private String readPackedRef(@NotNull String ref) throws IOException {
+    for (String line : readPackedRefLines()) {
+      int separator = line.indexOf(' ');
+      if (separator > 0 && ref.equals(line.substring(separator + 1).trim())) {
+        return line.substring(0, separator);
+      }
+    }
+    return null;
+  }
+
+  @NotNull
+  private List<String> readPackedRefs() throws IOException {
+    List<String> result = new ArrayList<>();
+    for (String line : readPackedRefLines()) {
+      int separator = line.indexOf(' ');
+      if (separator > 0) {
+        result.add(line.substring(separator + 1).trim());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return lines of packed-refs with refs, without the header and peeled values
+   */
+  @NotNull
+  private List<String> readPackedRefLines() throws IOException {
+    File packedRefs = new File(myGitDir, "packed-refs");
+    if (!packedRefs.isFile()) {
+      return Collections.emptyList();
+    }
+    List<String> result = new ArrayList<>();
+    for (String line : Files.readAllLines(packedRefs.toPath(), StandardCharsets.UTF_8)) {
+      if (!line.isEmpty() && line.charAt(0) != '#' && line.charAt(0) != '^') {
+        result.add(line);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessage;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Accumulates values of the preliminary merge step per VCS root and in total,
+ * and reports them as build statistic values: premerge.&lt;name&gt; and premerge.&lt;VCS root id&gt;.&lt;name&gt;.
+ */
+public class PremergeStatistics {
+  public static final String KEY_PREFIX = "premerge.";
+
+  private final ConcurrentMap<String, AtomicLong> myValues = new ConcurrentHashMap<>();
+
+  /**
+   * Adds the value to the total and, if rootId is specified, to the value of the VCS root
+   */
+  public void add(@Nullable String rootId, @NotNull String name, long value) {
+    myValues.computeIfAbsent(KEY_PREFIX + name, key -> new AtomicLong()).addAndGet(value);
+    if (rootId != null) {
+      myValues.computeIfAbsent(KEY_PREFIX + rootId + "." + name, key -> new AtomicLong()).addAndGet(value);
+    }
+  }
+
+  /**
+   * Adds milliseconds passed since startTime (obtained from {@link System#nanoTime()}) to &lt;phase&gt;Time value
+   */
+  public void addTime(@Nullable String rootId, @NotNull String phase, long startTime) {
+    add(rootId, phase + "Time", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+  }
+
+  public void publish(@NotNull BuildProgressLogger logger) {
+    new TreeMap<>(myValues).forEach((key, value) -> {
+      Map<String, String> attributes = new TreeMap<>();
+      attributes.put("key", key);
+      attributes.put("value", String.valueOf(value.get()));
+      logger.message(ServiceMessage.asString("buildStatisticValue", attributes));
+    });
+  }
+
+  /**
+   * Number and size of objects in a repository, as reported by 'git count-objects -v'
+   */
+  public static class ObjectsCount {
+    private final long myCount;
+    private final long mySizeBytes;
+
+    public ObjectsCount(long count, long sizeBytes) {
+      myCount = count;
+      mySizeBytes = sizeBytes;
+    }
+
+    public long getCount() {
+      return myCount;
+    }
+
+    public long getSizeBytes() {
+      return mySizeBytes;
+    }
+
+    /**
+     * Objects added since the given count. Objects of alternates are not counted, and 'git gc --auto'
+     * started by the fetch can shrink the repository, so negative differences are reported as 0.
+     */
+    @NotNull
+    public ObjectsCount since(@NotNull ObjectsCount before) {
+      return new ObjectsCount(Math.max(0, myCount - before.myCount), Math.max(0, mySizeBytes - before.mySizeBytes));
+    }
+
+    /**
+     * @return counts of loose and packed objects, or null if the output has none of them;
+     * other lines, like 'alternate: &lt;path&gt;', are skipped
+     */
+    @Nullable
+    public static ObjectsCount parse(@NotNull String countObjectsOutput) {
+      long count = 0;
+      long sizeKiB = 0;
+      boolean found = false;
+      for (String line : countObjectsOutput.split("\\r?\\n")) {
+        int separator = line.indexOf(':');
+        if (separator < 0) {
+          continue;
+        }
+        String name = line.substring(0, separator).trim();
+        boolean isCount = "count".equals(name) || "in-pack".equals(name);
+        boolean isSize = "size".equals(name) || "size-pack".equals(name);
+        if (!isCount && !isSize) {
+          continue;
+        }
+        long value;
+        try {
+          value = Long.parseLong(line.substring(separator + 1).trim());
+        } catch (NumberFormatException e) {
+          continue;
+        }
+        if (isCount) {
+          count += value;
+        }
+        else {
+          sizeKiB += value;
+        }
+        found = true;
+      }
+      return found ? new ObjectsCount(count, sizeKiB * 1024) : null;
+    }
+  }
+}
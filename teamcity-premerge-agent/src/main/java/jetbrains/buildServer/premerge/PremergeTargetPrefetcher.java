@@ -0,0 +1,298 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.agent.*;
+import jetbrains.buildServer.agent.oauth.AgentTokenStorage;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitUtils;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitVersion;
+import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManager;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.*;
+import jetbrains.buildServer.ssh.SshKnownHostsManager;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.VcsRootEntry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.agent.GitUtilsAgent.detectExtraHTTPCredentialsInBuild;
+
+/**
+ * Starts fetching the target branch into the agent's git mirrors when a build with the preliminary merge step starts,
+ * so the fetch runs while TeamCity checks out the sources. The step fetches via the mirror and waits for the
+ * prefetch holding the mirror lock instead of fetching the branch from the remote again.
+ * Optionally the merge commit itself is computed in the mirror, so the step only has to check it out.
+ */
+public class PremergeTargetPrefetcher extends AgentLifeCycleAdapter {
+  private static final int THREADS = 4;
+  private static final Set<String> ourInProgress = ConcurrentHashMap.newKeySet();
+  private static final Map<String, String> ourPrefetched = new ConcurrentHashMap<>();
+  private static final Map<String, PrecomputedMerge> ourPrecomputedMerges = new ConcurrentHashMap<>();
+  private static final String PRECOMPUTED_REFS_PREFIX = "refs/premerge-results/";
+
+  @NotNull private final PluginConfigFactory myConfigFactory;
+  @NotNull private final GitMetaFactory myGitMetaFactory;
+  @NotNull private final GitAgentSSHService mySshService;
+  @NotNull private final MirrorManager myMirrorManager;
+  @NotNull private final AgentTokenStorage myTokenStorage;
+  @NotNull private final SshKnownHostsManager mySshKnownHostsManager;
+  private final ExecutorService myExecutor = ExecutorsFactory.newFixedDaemonExecutor("Premerge target prefetch", THREADS);
+
+  public PremergeTargetPrefetcher(@NotNull EventDispatcher<AgentLifeCycleListener> dispatcher,
+                                  @NotNull PluginConfigFactory configFactory,
+                                  @NotNull GitMetaFactory gitMetaFactory,
+                                  @NotNull GitAgentSSHService sshService,
+                                  @NotNull MirrorManager mirrorManager,
+                                  @NotNull AgentTokenStorage tokenStorage,
+                                  @NotNull SshKnownHostsManager sshKnownHostsManager) {
+    myConfigFactory = configFactory;
+    myGitMetaFactory = gitMetaFactory;
+    mySshService = sshService;
+    myMirrorManager = mirrorManager;
+    myTokenStorage = tokenStorage;
+    mySshKnownHostsManager = sshKnownHostsManager;
+    dispatcher.addListener(this);
+  }
+
+  /**
+   * @return true if the branch was fetched into the mirror for the build by the prefetch or by the build step
+   */
+  public static boolean isPrefetched(@NotNull File mirrorDir, long buildId, @NotNull String branch) {
+    return (buildId + "/" + branch).equals(ourPrefetched.get(mirrorDir.getAbsolutePath()));
+  }
+
+  /**
+   * Records the fetch of the branch into the mirror for the build, so a prefetch which starts later does not repeat it.
+   */
+  public static void markPrefetched(@NotNull File mirrorDir, long buildId, @NotNull String branch) {
+    ourPrefetched.put(mirrorDir.getAbsolutePath(), buildId + "/" + branch);
+  }
+
+  public static boolean isPrefetching(@NotNull File mirrorDir) {
+    return ourInProgress.contains(mirrorDir.getAbsolutePath());
+  }
+
+  @Nullable
+  public static PrecomputedMerge getPrecomputedMerge(long buildId, @NotNull String rootId) {
+    return ourPrecomputedMerges.get(buildId + "/" + rootId);
+  }
+
+  @Override
+  public void buildStarted(@NotNull AgentRunningBuild build) {
+    if (!isEnabled(build, PremergeConstants.PREFETCH_TARGET_PARAM) && !isEnabled(build, PremergeConstants.PRECOMPUTE_MERGE_PARAM)) {
+      return;
+    }
+    String targetBranch = getTargetBranch(build);
+    if (targetBranch == null) {
+      return;
+    }
+    for (VcsRootEntry entry : build.getVcsRootEntries()) {
+      VcsRoot root = entry.getVcsRoot();
+      String rootBranch = build.getSharedConfigParameters().get(GitUtils.getGitRootBranchParamName(root));
+      if (!PremergeConstants.GIT_VCS_NAME.equals(root.getVcsName()) || rootBranch == null || PremergeBranchSupport.cutRefsHeads(rootBranch).equals(targetBranch)) {
+        continue;
+      }
+      try {
+        startPrefetch(build, root, rootBranch, targetBranch);
+      } catch (VcsException e) {
+        build.getBuildLogger().warning("Cannot prefetch '" + targetBranch + "' for " + root.getName() + ": " + e.getMessage());
+      }
+    }
+  }
+
+  @Override
+  public void buildFinished(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildStatus) {
+    String prefix = build.getBuildId() + "/";
+    ourPrefetched.values().removeIf(prefetched -> prefetched.startsWith(prefix));
+    ourPrecomputedMerges.entrySet().removeIf(entry -> {
+      if (!entry.getKey().startsWith(prefix)) {
+        return false;
+      }
+      PrecomputedMerge merge = entry.getValue();
+      // update-ref locks the ref itself, so the mirror lock held by fetches of other builds is not needed
+      try {
+        new PremergeGitCommandLine(merge.myGitPath, merge.getMirrorDir()).call("update-ref", "-d", merge.getRef());
+      } catch (VcsException e) {
+        // the ref is left in the mirror and overwritten by a build with the same id only
+      }
+      return true;
+    });
+  }
+
+  @Override
+  public void agentShutdown() {
+    myExecutor.shutdownNow();
+  }
+
+  @Nullable
+  private static String getTargetBranch(@NotNull AgentRunningBuild build) {
+    for (BuildRunnerSettings runner : build.getBuildRunners()) {
+      if (PremergeConstants.TYPE.equals(runner.getRunType()) && runner.isEnabled()) {
+        String rawBranch = runner.getRunnerParameters().get(PremergeConstants.TARGET_BRANCH);
+        if (StringUtil.isEmpty(rawBranch)) {
+          return null;
+        }
+        String branch = build.getSharedParametersResolver().resolve(rawBranch).getResult();
+        return StringUtil.isEmpty(branch) || branch.contains("%") ? null : PremergeBranchSupport.cutRefsHeads(branch);
+      }
+    }
+    return null;
+  }
+
+  private static boolean isEnabled(@NotNull AgentRunningBuild build, @NotNull String parameter) {
+    return Boolean.parseBoolean(build.getSharedConfigParameters().get(parameter));
+  }
+
+  private void startPrefetch(@NotNull AgentRunningBuild build, @NotNull VcsRoot root, @NotNull String rootBranch, @NotNull String branch) throws VcsException {
+    AgentPluginConfig config = myConfigFactory.createConfig(build, root);
+    AgentGitVcsRoot gitRoot = createGitVcsRoot(build, root);
+    String fetchUrl = getFetchUrl(gitRoot);
+    File mirrorDir = myMirrorManager.getMirrorDir(fetchUrl);
+    if (!ourInProgress.add(mirrorDir.getAbsolutePath())) {
+      return;
+    }
+    AgentGitFacade facade = getFacade(build, config, mirrorDir);
+    BuildProgressLogger logger = build.getBuildLogger();
+    logger.message("Prefetching '" + branch + "' into mirror " + mirrorDir.getName());
+    execute(() -> {
+      try {
+        try (PremergeMirrorLock mirrorLock = PremergeMirrorLock.acquire(mirrorDir, TimeUnit.SECONDS.toMillis(PremergeMirrorLock.DEFAULT_TIMEOUT_SECONDS), logger)) {
+          if (isPrefetched(mirrorDir, build.getBuildId(), branch)) {
+            // the step took the mirror lock before the prefetch started, it is past the merge already
+            logger.message("'" + branch + "' was already fetched into mirror " + mirrorDir.getName() + " by the build step");
+            return;
+          }
+          PremergeBranchSupportImpl.fetchIntoMirror(mirrorLock, facade, mirrorDir, config, gitRoot.getAuthSettings(), fetchUrl, branch);
+          markPrefetched(mirrorDir, build.getBuildId(), branch);
+          logger.message("'" + branch + "' prefetched into mirror " + mirrorDir.getName());
+          if (isEnabled(build, PremergeConstants.PRECOMPUTE_MERGE_PARAM)) {
+            precomputeMerge(build, root, config, facade, gitRoot, mirrorLock, mirrorDir, rootBranch, branch);
+          }
+        }
+      } catch (Exception e) {
+        logger.warning("Prefetch of '" + branch + "' into mirror " + mirrorDir.getName() + " failed, it will be fetched by the build step: " + e.getMessage());
+      } finally {
+        ourInProgress.remove(mirrorDir.getAbsolutePath());
+      }
+    });
+  }
+
+  @NotNull
+  protected AgentGitVcsRoot createGitVcsRoot(@NotNull AgentRunningBuild build, @NotNull VcsRoot root) throws VcsException {
+    return new AgentGitVcsRoot(myMirrorManager, build.getCheckoutDirectory(), root, myTokenStorage, detectExtraHTTPCredentialsInBuild(build));
+  }
+
+  @NotNull
+  protected String getFetchUrl(@NotNull AgentGitVcsRoot gitRoot) {
+    return gitRoot.getRepositoryFetchURL().toString();
+  }
+
+  @NotNull
+  protected AgentGitFacade getFacade(@NotNull AgentRunningBuild build, @NotNull AgentPluginConfig config, @NotNull File mirrorDir) {
+    return myGitMetaFactory.createFactory(mySshService, new BuildContext(build, config, mySshKnownHostsManager)).create(mirrorDir);
+  }
+
+  protected void execute(@NotNull Runnable task) {
+    myExecutor.execute(task);
+  }
+
+  /**
+   * Computes the merge of the build's source revision with the target branch in the mirror
+   * with 'git merge-tree' and keeps it under refs/premerge-results/ until the build finishes.
+   * Nothing is stored if the merge conflicts, the build step then merges and reports the conflict.
+   */
+  private void precomputeMerge(@NotNull AgentRunningBuild build,
+                               @NotNull VcsRoot root,
+                               @NotNull AgentPluginConfig config,
+                               @NotNull AgentGitFacade facade,
+                               @NotNull AgentGitVcsRoot gitRoot,
+                               @NotNull PremergeMirrorLock mirrorLock,
+                               @NotNull File mirrorDir,
+                               @NotNull String rootBranch,
+                               @NotNull String branch) {
+    BuildProgressLogger logger = build.getBuildLogger();
+    if (config.getGitVersion().isLessThan(new GitVersion(2, 38, 0))) {
+      logger.warning("Computing the merge during checkout requires git 2.38 or newer");
+      return;
+    }
+    try {
+      PremergeGitCommandLine git = new PremergeGitCommandLine(config.getPathToGit(), mirrorDir);
+      String sourceRevision = GitUtils.versionRevision(build.getBuildCurrentVersion(root));
+      // cat-file exits with 128 for a missing object
+      if (git.run(null, "cat-file", "-e", sourceRevision + "^{commit}").getExitCode() != 0) {
+        PremergeBranchSupportImpl.fetchIntoMirror(mirrorLock, facade, mirrorDir, config, gitRoot.getAuthSettings(), getFetchUrl(gitRoot), rootBranch);
+      }
+      ExecResult result = git.run(null, "merge-tree", "--write-tree", "--no-messages", sourceRevision, branch);
+      if (result.getExitCode() != 0) {
+        logger.message("Merge of '" + branch + "' into " + sourceRevision + " is not clean, it is left to the build step");
+        return;
+      }
+      String tree = result.getStdout().split("\\r?\\n")[0].trim();
+      // the message git merge writes in the step: the merge is made on a detached HEAD or on the premerge branch
+      String mergedInto = isEnabled(build, PremergeConstants.DETACHED_HEAD_PARAM) ? "HEAD" : PremergeConstants.PRELIMINARY_MERGE_BRANCH_PREFIX + "/" + build.getBuildId();
+      String message = "Merge branch '" + branch + "' into " + mergedInto;
+      PremergeGitCommandLine commitGit = git;
+      if (isEnabled(build, PremergeConstants.DETERMINISTIC_MERGE_PARAM)) {
+        String targetRevision = git.call("rev-parse", branch).trim();
+        commitGit = new PremergeGitCommandLine(config.getPathToGit(), mirrorDir).setParentsDate(sourceRevision, targetRevision);
+        message = PremergeBranchSupportImpl.deterministicMergeMessage(sourceRevision, targetRevision);
+      }
+      String mergeCommit = commitGit.call("-c", "user.name=" + PremergeBranchSupportImpl.MERGE_USER_NAME,
+                                          "-c", "user.email=" + PremergeBranchSupportImpl.MERGE_USER_EMAIL,
+                                          "commit-tree", tree, "-p", sourceRevision, "-p", branch,
+                                          "-m", message).trim();
+      String ref = PRECOMPUTED_REFS_PREFIX + build.getBuildId() + "/" + root.getExternalId();
+      git.call("update-ref", ref, mergeCommit);
+      ourPrecomputedMerges.put(build.getBuildId() + "/" + root.getExternalId(), new PrecomputedMerge(mirrorDir, ref, config.getPathToGit()));
+      logger.message("Merge of '" + branch + "' computed in mirror " + mirrorDir.getName() + ": " + mergeCommit);
+    } catch (Exception e) {
+      logger.warning("Cannot compute the merge of '" + branch + "' during checkout: " + e.getMessage());
+    }
+  }
+
+  public static class PrecomputedMerge {
+    @NotNull private final File myMirrorDir;
+    @NotNull private final String myRef;
+    @NotNull private final String myGitPath;
+
+    PrecomputedMerge(@NotNull File mirrorDir, @NotNull String ref, @NotNull String gitPath) {
+      myMirrorDir = mirrorDir;
+      myRef = ref;
+      myGitPath = gitPath;
+    }
+
+    @NotNull
+    public File getMirrorDir() {
+      return myMirrorDir;
+    }
+
+    @NotNull
+    public String getRef() {
+      return myRef;
+    }
+  }
+}
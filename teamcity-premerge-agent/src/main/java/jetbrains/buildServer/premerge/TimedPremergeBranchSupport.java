@@ -0,0 +1,155 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Records duration of every operation of the wrapped branch support in {@link PremergeStatistics}
+ */
+public class TimedPremergeBranchSupport implements PremergeBranchSupport {
+  @NotNull private final PremergeBranchSupport myDelegate;
+  @NotNull private final PremergeStatistics myStatistics;
+  @NotNull private final String myRootId;
+
+  public TimedPremergeBranchSupport(@NotNull PremergeBranchSupport delegate, @NotNull PremergeStatistics statistics, @NotNull String rootId) {
+    myDelegate = delegate;
+    myStatistics = statistics;
+    myRootId = rootId;
+  }
+
+  @Override
+  public void fetch(String branch) throws VcsException {
+    long startTime = System.nanoTime();
+    try {
+      myDelegate.fetch(branch);
+    } finally {
+      myStatistics.addTime(myRootId, "fetch", startTime);
+    }
+  }
+
+  @Override
+  public void checkout(String branch) throws VcsException {
+    long startTime = System.nanoTime();
+    try {
+      myDelegate.checkout(branch);
+    } finally {
+      myStatistics.addTime(myRootId, "checkout", startTime);
+    }
+  }
+
+  @Override
+  public void checkoutDetached(String revision) throws VcsException {
+    long startTime = System.nanoTime();
+    try {
+      myDelegate.checkoutDetached(revision);
+    } finally {
+      myStatistics.addTime(myRootId, "checkout", startTime);
+    }
+  }
+
+  @Override
+  public void createBranch(String branch) throws VcsException {
+    long startTime = System.nanoTime();
+    try {
+      myDelegate.createBranch(branch);
+    } finally {
+      myStatistics.addTime(myRootId, "createBranch", startTime);
+    }
+  }
+
+  @Override
+  public void createBranch(String branch, String startPoint) throws VcsException {
+    long startTime = System.nanoTime();
+    try {
+      myDelegate.createBranch(branch, startPoint);
+    } finally {
+      myStatistics.addTime(myRootId, "createBranch", startTime);
+    }
+  }
+
+  @Override
+  public void merge(String branch) throws VcsException {
+    long startTime = System.nanoTime();
+    try {
+      myDelegate.merge(branch);
+    } finally {
+      myStatistics.addTime(myRootId, "merge", startTime);
+    }
+  }
+
+  @Override
+  public boolean isAncestor(String ancestor, String descendant) throws VcsException {
+    long startTime = System.nanoTime();
+    try {
+      return myDelegate.isAncestor(ancestor, descendant);
+    } finally {
+      myStatistics.addTime(myRootId, "plan", startTime);
+    }
+  }
+
+  @Nullable
+  @Override
+  public String getCachedMerge(String branch) throws VcsException {
+    long startTime = System.nanoTime();
+    try {
+      return myDelegate.getCachedMerge(branch);
+    } finally {
+      myStatistics.addTime(myRootId, "mergeCache", startTime);
+    }
+  }
+
+  @Nullable
+  @Override
+  public String getPrecomputedMerge(String branch) throws VcsException {
+    long startTime = System.nanoTime();
+    try {
+      return myDelegate.getPrecomputedMerge(branch);
+    } finally {
+      myStatistics.addTime(myRootId, "precomputedMerge", startTime);
+    }
+  }
+
+  @Override
+  public void cacheMerge(String branch) throws VcsException {
+    long startTime = System.nanoTime();
+    try {
+      myDelegate.cacheMerge(branch);
+    } finally {
+      myStatistics.addTime(myRootId, "mergeCache", startTime);
+    }
+  }
+
+  @NotNull
+  @Override
+  public String constructBranchName() {
+    return myDelegate.constructBranchName();
+  }
+
+  @Nullable
+  @Override
+  public String getParameter(String parameter) throws VcsException {
+    long startTime = System.nanoTime();
+    try {
+      return myDelegate.getParameter(parameter);
+    } finally {
+      myStatistics.addTime(myRootId, "revParse", startTime);
+    }
+  }
+}
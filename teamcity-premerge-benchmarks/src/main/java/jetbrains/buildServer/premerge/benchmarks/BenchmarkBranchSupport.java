@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge.benchmarks;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.agent.oauth.AgentTokenStorage;
+import jetbrains.buildServer.buildTriggers.vcs.git.AuthSettings;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentGitFacade;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentGitVcsRoot;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentPluginConfig;
+import jetbrains.buildServer.premerge.PremergeBranchSupportImpl;
+import jetbrains.buildServer.premerge.PremergeBuildProcess;
+import jetbrains.buildServer.premerge.PremergeNativeGitFacade;
+import jetbrains.buildServer.ssh.SshKnownHostsManager;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The step's branch support with the git plugin parts replaced: commands run with native git,
+ * the target is fetched from the local origin without credentials.
+ */
+class BenchmarkBranchSupport extends PremergeBranchSupportImpl {
+  private static final int TIMEOUT_SECONDS = 3600;
+
+  BenchmarkBranchSupport(@NotNull PremergeBuildProcess process,
+                         @NotNull VcsRoot root,
+                         @NotNull String repoRelativePath,
+                         @NotNull BuildProgressLogger logger) throws VcsException {
+    super(process, root, repoRelativePath, BenchmarkStubs.stub(AgentTokenStorage.class), process.getBuild(),
+          BenchmarkStubs.stub(SshKnownHostsManager.class), logger);
+  }
+
+  @Override
+  protected AgentPluginConfig createPluginConfig() {
+    Map<String, Function<Object[], Object>> answers = new HashMap<>();
+    answers.put("getPathToGit", args -> LocalRepositoryFixture.GIT);
+    answers.put("getGitVersion", args -> LocalRepositoryFixture.getGitVersion());
+    answers.put("getIdleTimeoutSeconds", args -> TIMEOUT_SECONDS);
+    answers.put("getCheckoutIdleTimeoutSeconds", args -> TIMEOUT_SECONDS);
+    return BenchmarkStubs.stub(AgentPluginConfig.class, answers);
+  }
+
+  /**
+   * Not used: the fetch URL and the credentials are overridden below.
+   */
+  @Override
+  protected AgentGitVcsRoot createGitVcsRoot(VcsRoot root) {
+    return null;
+  }
+
+  @Override
+  protected AuthSettings retrieveAuthSettings() {
+    return null;
+  }
+
+  @NotNull
+  @Override
+  protected String getFetchUrl() {
+    return ((BenchmarkBuildProcess)myProcess).getFetchUrl();
+  }
+
+  @Override
+  protected AgentGitFacade getFacade(File repositoryDir) {
+    return new PremergeNativeGitFacade(LocalRepositoryFixture.GIT, repositoryDir).build();
+  }
+}
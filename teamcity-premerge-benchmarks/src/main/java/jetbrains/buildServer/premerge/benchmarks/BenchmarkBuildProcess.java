@@ -0,0 +1,119 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import jetbrains.buildServer.agent.AgentCheckoutMode;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.agent.BuildRunnerContext;
+import jetbrains.buildServer.agent.NullBuildProgressLogger;
+import jetbrains.buildServer.agent.oauth.AgentTokenStorage;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitUtils;
+import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManager;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.GitMetaFactory;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.PluginConfigFactory;
+import jetbrains.buildServer.premerge.PremergeBranchSupport;
+import jetbrains.buildServer.premerge.PremergeBuildProcess;
+import jetbrains.buildServer.premerge.PremergeConstants;
+import jetbrains.buildServer.ssh.SshKnownHostsManager;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.VcsRootEntry;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The premerge build step of a build with one VCS root per checkout of the fixture.
+ * The checkouts are subdirectories of the build checkout directory, mapped by checkout rules.
+ */
+class BenchmarkBuildProcess extends PremergeBuildProcess {
+  static final long BUILD_ID = 1;
+
+  @NotNull private final String myFetchUrl;
+
+  private BenchmarkBuildProcess(@NotNull AgentRunningBuild build,
+                                @NotNull BuildRunnerContext runner,
+                                @NotNull MirrorManager mirrorManager,
+                                @NotNull String fetchUrl) {
+    super(BenchmarkStubs.stub(PluginConfigFactory.class), null, BenchmarkStubs.stub(GitMetaFactory.class), mirrorManager, build, runner,
+          BenchmarkStubs.stub(AgentTokenStorage.class), BenchmarkStubs.stub(SshKnownHostsManager.class));
+    myFetchUrl = fetchUrl;
+  }
+
+  @NotNull
+  static BenchmarkBuildProcess create(@NotNull LocalRepositoryFixture fixture,
+                                      @NotNull List<File> checkouts,
+                                      @NotNull Map<String, String> parameters) {
+    List<VcsRootEntry> entries = new ArrayList<>();
+    Map<String, String> sharedParameters = new HashMap<>();
+    for (File checkout : checkouts) {
+      VcsRoot root = createRoot(checkout.getName());
+      entries.add(new VcsRootEntry(root, new CheckoutRules("+:.=>" + checkout.getName())));
+      sharedParameters.put(GitUtils.getGitRootBranchParamName(root), "refs/heads/" + LocalRepositoryFixture.SOURCE_BRANCH);
+    }
+
+    BuildProgressLogger logger = new NullBuildProgressLogger();
+    Map<String, Function<Object[], Object>> build = new HashMap<>();
+    build.put("getBuildId", args -> BUILD_ID);
+    build.put("getCheckoutDirectory", args -> fixture.getRoot());
+    build.put("getEffectiveCheckoutMode", args -> AgentCheckoutMode.ON_AGENT);
+    build.put("getVcsRootEntries", args -> entries);
+    build.put("getSharedConfigParameters", args -> sharedParameters);
+    build.put("addSharedConfigParameter", args -> sharedParameters.put((String)args[0], (String)args[1]));
+    build.put("getBuildLogger", args -> logger);
+
+    Map<String, String> runnerParameters = new HashMap<>();
+    runnerParameters.put(PremergeConstants.TARGET_BRANCH, LocalRepositoryFixture.TARGET_BRANCH);
+    Map<String, Function<Object[], Object>> runner = new HashMap<>();
+    runner.put("getRunnerParameters", args -> runnerParameters);
+    runner.put("getConfigParameters", args -> parameters);
+
+    Map<String, Function<Object[], Object>> mirrorManager = new HashMap<>();
+    mirrorManager.put("getMirrorDir", args -> fixture.getMirror());
+
+    return new BenchmarkBuildProcess(BenchmarkStubs.stub(AgentRunningBuild.class, build),
+                                     BenchmarkStubs.stub(BuildRunnerContext.class, runner),
+                                     BenchmarkStubs.stub(MirrorManager.class, mirrorManager),
+                                     fixture.getOriginUrl());
+  }
+
+  @NotNull
+  private static VcsRoot createRoot(@NotNull String name) {
+    Map<String, Function<Object[], Object>> root = new HashMap<>();
+    root.put("getName", args -> name);
+    root.put("getExternalId", args -> name);
+    root.put("getVcsName", args -> PremergeConstants.GIT_VCS_NAME);
+    root.put("getProperties", args -> new HashMap<String, String>());
+    return BenchmarkStubs.stub(VcsRoot.class, root);
+  }
+
+  @NotNull
+  String getFetchUrl() {
+    return myFetchUrl;
+  }
+
+  @Override
+  protected PremergeBranchSupport createPremergeBranchSupport(VcsRoot root, String repoRelativePath, BuildProgressLogger logger) throws VcsException {
+    return new BenchmarkBranchSupport(this, root, repoRelativePath, logger);
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge.benchmarks;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.Function;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Implementations of TeamCity interfaces for running the premerge step outside of an agent.
+ * Methods with an answer return it, other methods return null, false or 0.
+ */
+final class BenchmarkStubs {
+  private BenchmarkStubs() {
+  }
+
+  @NotNull
+  static <T> T stub(@NotNull Class<T> type) {
+    return stub(type, Collections.emptyMap());
+  }
+
+  @NotNull
+  static <T> T stub(@NotNull Class<T> type, @NotNull Map<String, Function<Object[], Object>> answers) {
+    return type.cast(Proxy.newProxyInstance(BenchmarkStubs.class.getClassLoader(), new Class[]{type}, (proxy, method, args) -> {
+      if (method.getDeclaringClass() == Object.class) {
+        switch (method.getName()) {
+          case "equals":
+            return proxy == args[0];
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          default:
+            return type.getSimpleName();
+        }
+      }
+      Function<Object[], Object> answer = answers.get(method.getName());
+      if (answer != null) {
+        return answer.apply(args);
+      }
+      return defaultValue(method.getReturnType());
+    }));
+  }
+
+  private static Object defaultValue(@NotNull Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    }
+    if (type == int.class) {
+      return 0;
+    }
+    if (type == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+}
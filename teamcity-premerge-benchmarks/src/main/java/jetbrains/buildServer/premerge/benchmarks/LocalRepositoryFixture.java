@@ -0,0 +1,190 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitVersion;
+import jetbrains.buildServer.premerge.PremergeGitCommandLine;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Generates a bare 'origin' repository with a shared history of {@code commits} commits over {@code files} files,
+ * then diverges 'feature' and 'main' by {@code divergence} commits each. The branches touch disjoint files,
+ * so merging them never conflicts.
+ */
+public class LocalRepositoryFixture {
+  public static final String SOURCE_BRANCH = "feature";
+  public static final String TARGET_BRANCH = "main";
+
+  static final String GIT = "git";
+  private static final Pattern VERSION = Pattern.compile("(\\d+)\\.(\\d+)\\.(\\d+)");
+  private static final String COMMITTER = "Benchmark <benchmark@example.com>";
+  private static final long START_TIME = 1500000000L;
+
+  @NotNull private final File myRoot;
+  @NotNull private final File myOrigin;
+  @NotNull private final File myMirror;
+  @NotNull private final List<File> myCheckouts = new ArrayList<>();
+
+  private LocalRepositoryFixture(@NotNull File root) {
+    myRoot = root;
+    myOrigin = new File(root, "origin.git");
+    myMirror = new File(root, "mirror.git");
+  }
+
+  @NotNull
+  public static LocalRepositoryFixture create(int commits, int files, int divergence) throws IOException, VcsException {
+    if (files < 2) {
+      throw new IllegalArgumentException("At least 2 files are required, got " + files);
+    }
+    LocalRepositoryFixture fixture = new LocalRepositoryFixture(Files.createTempDirectory("premerge-benchmark").toFile());
+    fixture.generate(commits, files, divergence);
+    return fixture;
+  }
+
+  /**
+   * @return build checkout directory, the parent of the checkouts
+   */
+  @NotNull
+  public File getRoot() {
+    return myRoot;
+  }
+
+  @NotNull
+  public String getOriginUrl() {
+    return "file://" + myOrigin.getAbsolutePath();
+  }
+
+  /**
+   * @return directory of the agent's git mirror of the origin, created by the step when it fetches via the mirror
+   */
+  @NotNull
+  public File getMirror() {
+    return myMirror;
+  }
+
+  @NotNull
+  static GitVersion getGitVersion() {
+    try {
+      Matcher matcher = VERSION.matcher(new PremergeGitCommandLine(GIT, new File(".")).call("--version"));
+      if (matcher.find()) {
+        return new GitVersion(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3)));
+      }
+    } catch (VcsException e) {
+      throw new IllegalStateException("Cannot run git", e);
+    }
+    throw new IllegalStateException("Unknown git version");
+  }
+
+  /**
+   * Clones {@code count} checkouts with only the source branch, like a build checkout before the premerge step.
+   * @param depth depth of the clones, 0 for full clones
+   */
+  @NotNull
+  public List<File> cloneCheckouts(int count, int depth) throws VcsException {
+    List<File> result = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      File checkout = new File(myRoot, "checkout" + myCheckouts.size());
+      myCheckouts.add(checkout);
+      List<String> args = new ArrayList<>(Arrays.asList("clone", "-q", "--single-branch", "--branch", SOURCE_BRANCH));
+      if (depth > 0) {
+        args.add("--depth=" + depth);
+      }
+      args.add(getOriginUrl());
+      args.add(checkout.getAbsolutePath());
+      new PremergeGitCommandLine(GIT, myRoot).call(args.toArray(new String[0]));
+      result.add(checkout);
+    }
+    return result;
+  }
+
+  public void deleteCheckouts() {
+    for (File checkout : myCheckouts) {
+      FileUtil.delete(checkout);
+    }
+    myCheckouts.clear();
+  }
+
+  public void delete() {
+    deleteCheckouts();
+    FileUtil.delete(myRoot);
+  }
+
+  private void generate(int commits, int files, int divergence) throws VcsException {
+    new PremergeGitCommandLine(GIT, myRoot).call("init", "-q", "--bare", myOrigin.getAbsolutePath());
+    new PremergeGitCommandLine(GIT, myOrigin).call("config", "uploadpack.allowFilter", "true");
+
+    StringBuilder stream = new StringBuilder();
+    int mark = 0;
+    stream.append("commit refs/heads/").append(TARGET_BRANCH).append('\n');
+    stream.append("mark :").append(++mark).append('\n');
+    appendHeader(stream, mark, "Initial commit");
+    for (int file = 0; file < files; file++) {
+      appendFile(stream, file, "initial");
+    }
+
+    for (int i = 1; i < commits; i++) {
+      stream.append("commit refs/heads/").append(TARGET_BRANCH).append('\n');
+      stream.append("mark :").append(++mark).append('\n');
+      appendHeader(stream, mark, "Commit " + i);
+      appendFile(stream, i % files, "commit " + i);
+    }
+
+    int base = mark;
+    int half = files / 2;
+    stream.append("reset refs/heads/").append(SOURCE_BRANCH).append('\n');
+    stream.append("from :").append(base).append("\n\n");
+    for (int i = 0; i < divergence; i++) {
+      stream.append("commit refs/heads/").append(SOURCE_BRANCH).append('\n');
+      stream.append("mark :").append(++mark).append('\n');
+      appendHeader(stream, mark, "Feature commit " + i);
+      appendFile(stream, i % half, "feature " + i);
+    }
+    for (int i = 0; i < divergence; i++) {
+      stream.append("commit refs/heads/").append(TARGET_BRANCH).append('\n');
+      stream.append("mark :").append(++mark).append('\n');
+      appendHeader(stream, mark, "Main commit " + i);
+      appendFile(stream, half + i % (files - half), "main " + i);
+    }
+
+    new PremergeGitCommandLine(GIT, myOrigin).call(stream.toString().getBytes(StandardCharsets.UTF_8), "fast-import", "--quiet");
+  }
+
+  private static void appendHeader(@NotNull StringBuilder stream, int mark, @NotNull String message) {
+    stream.append("committer ").append(COMMITTER).append(' ').append(START_TIME + mark).append(" +0000\n");
+    appendData(stream, message);
+  }
+
+  private static void appendFile(@NotNull StringBuilder stream, int file, @NotNull String content) {
+    stream.append("M 644 inline dir").append(file % 16).append("/file").append(file).append(".txt\n");
+    appendData(stream, content + "\n");
+  }
+
+  private static void appendData(@NotNull StringBuilder stream, @NotNull String data) {
+    stream.append("data ").append(data.getBytes(StandardCharsets.UTF_8).length).append('\n').append(data).append('\n');
+  }
+}
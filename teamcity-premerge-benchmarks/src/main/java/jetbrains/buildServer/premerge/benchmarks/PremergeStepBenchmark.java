@@ -0,0 +1,129 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge.benchmarks;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.agent.BuildFinishedStatus;
+import jetbrains.buildServer.premerge.PremergeConstants;
+import jetbrains.buildServer.premerge.PremergeGitCommandLine;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Runs the premerge build step (PremergeBuildProcess with PremergeBranchSupportImpl) against a generated
+ * origin repository: {@code roots} fresh checkouts of the source branch per invocation, one VCS root each.
+ * Only git plugin services are replaced, see {@link BenchmarkBuildProcess}. {@code mode} selects
+ * the step parameters being measured. The default repository shape is a smoke-sized one,
+ * larger ones are selected with -p on the command line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PremergeStepBenchmark {
+  public enum StepMode {
+    /** Fetch from origin into the checkout and merge in the working tree */
+    DEFAULT,
+    /** Fetch via the agent's mirror; the mirror stays between invocations, so it is warm after the first one */
+    MIRROR(PremergeConstants.FETCH_VIA_MIRROR_PARAM, "true"),
+    /** Checkouts cloned with depth 1, the target is fetched shallow and deepened until the merge base */
+    SHALLOW(PremergeConstants.SHALLOW_FETCH_DEPTH_PARAM, "1"),
+    /** Target fetched with the blob:none partial clone filter */
+    PARTIAL(PremergeConstants.PARTIAL_CLONE_FILTER_PARAM, "blob:none"),
+    /** Merge onto a detached HEAD */
+    DETACHED(PremergeConstants.DETACHED_HEAD_PARAM, "true"),
+    /** Refs read and written in-process */
+    IN_PROCESS_REFS(PremergeConstants.IN_PROCESS_REFS_PARAM, "true"),
+    /** Merge computed with merge-tree before the working tree is touched */
+    IN_MEMORY(PremergeConstants.IN_MEMORY_MERGE_PARAM, "true"),
+    /** Ancestry checks before the merge */
+    PLAN(PremergeConstants.PLAN_MERGE_PARAM, "true"),
+    /** Merge cache miss: the merge is done and stored in the cache */
+    MERGE_CACHE_MISS(PremergeConstants.MERGE_CACHE_PARAM, "true"),
+    /** Merge cache hit: the step already ran in the checkouts during setup */
+    MERGE_CACHE_HIT(PremergeConstants.MERGE_CACHE_PARAM, "true");
+
+    @NotNull private final Map<String, String> myParameters = new HashMap<>();
+
+    StepMode(@NotNull String... parameters) {
+      for (int i = 0; i + 1 < parameters.length; i += 2) {
+        myParameters.put(parameters[i], parameters[i + 1]);
+      }
+    }
+  }
+
+  @Param({"1000"})
+  public int commits;
+
+  @Param({"1000"})
+  public int files;
+
+  @Param({"10"})
+  public int divergence;
+
+  @Param({"1"})
+  public int roots;
+
+  @Param
+  public StepMode mode;
+
+  private LocalRepositoryFixture myFixture;
+  private List<File> myCheckouts;
+
+  @Setup(Level.Trial)
+  public void createRepository() throws Exception {
+    myFixture = LocalRepositoryFixture.create(commits, files, divergence);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteRepository() {
+    myFixture.delete();
+  }
+
+  @Setup(Level.Invocation)
+  public void cloneCheckouts() throws Exception {
+    myCheckouts = myFixture.cloneCheckouts(roots, mode == StepMode.SHALLOW ? 1 : 0);
+    if (mode == StepMode.MERGE_CACHE_HIT) {
+      runStep();
+      for (File checkout : myCheckouts) {
+        PremergeGitCommandLine git = new PremergeGitCommandLine(LocalRepositoryFixture.GIT, checkout);
+        git.call("checkout", "-q", LocalRepositoryFixture.SOURCE_BRANCH);
+        git.call("branch", "-D", PremergeConstants.PRELIMINARY_MERGE_BRANCH_PREFIX + "/" + BenchmarkBuildProcess.BUILD_ID);
+      }
+    }
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteCheckouts() {
+    myFixture.deleteCheckouts();
+  }
+
+  @Benchmark
+  public void runStep() {
+    BenchmarkBuildProcess process = BenchmarkBuildProcess.create(myFixture, myCheckouts, new HashMap<>(mode.myParameters));
+    process.start();
+    if (process.waitFor() != BuildFinishedStatus.FINISHED_SUCCESS) {
+      throw new IllegalStateException("Premerge step failed in mode " + mode);
+    }
+  }
+}
@@ -26,7 +26,45 @@ public class PremergeConstants {
   public static final String DESCRIPTION = "Makes preliminary merge commits with " +
                                            "\"Target branch\" when a source branch is updated (source branch must be set in 'Build condition')";
   public static final String TARGET_BRANCH = "tar.br";
+  public static final String GIT_VCS_NAME = "jetbrains.git";
   public static final String PRELIMINARY_MERGE_BRANCH_PREFIX = "premerge";
   public static final String TARGET_BRANCH_SHARED_PARAM = "teamcity.build.premerge.target";
   public static final String TARGET_SHA_SHARED_PARAM = "teamcity.build.premerge.targetSHA";
+  public static final String PARALLEL_ROOTS_PARAM = "teamcity.premerge.parallelRoots";
+  public static final String FETCH_VIA_MIRROR_PARAM = "teamcity.premerge.fetchViaMirror";
+  public static final String SHALLOW_FETCH_DEPTH_PARAM = "teamcity.premerge.shallowFetchDepth";
+  public static final String FETCH_DEPTH_SHARED_PARAM = "teamcity.build.premerge.fetchDepth";
+  public static final String PARTIAL_CLONE_FILTER_PARAM = "teamcity.premerge.partialCloneFilter";
+  public static final String PIN_TARGET_PARAM = "teamcity.premerge.pinTarget";
+  public static final String PINNED_TARGET_SHA_SHARED_PARAM = "teamcity.build.premerge.pinnedTargetSHA";
+  public static final String IN_MEMORY_MERGE_PARAM = "teamcity.premerge.inMemoryMerge";
+  public static final String PLAN_MERGE_PARAM = "teamcity.premerge.planMerge";
+  public static final String MERGE_TYPE_SHARED_PARAM = "teamcity.build.premerge.mergeType";
+  public static final String MERGE_CACHE_PARAM = "teamcity.premerge.mergeCache";
+  public static final String MERGE_CACHE_MAX_ENTRIES_PARAM = "teamcity.premerge.mergeCache.maxEntries";
+  public static final String MERGE_CACHE_MAX_AGE_DAYS_PARAM = "teamcity.premerge.mergeCache.maxAgeDays";
+  public static final String STATISTICS_PARAM = "teamcity.premerge.statistics";
+  public static final String GROUP_FETCHES_PARAM = "teamcity.premerge.groupFetches";
+  public static final String KEEP_BRANCHES_PARAM = "teamcity.premerge.keepBranches";
+  public static final String DETACHED_HEAD_PARAM = "teamcity.premerge.detachedHead";
+  public static final String IN_PROCESS_REFS_PARAM = "teamcity.premerge.inProcessRefs";
+  public static final String CACHE_PLUGIN_CONFIG_PARAM = "teamcity.premerge.cachePluginConfig";
+  public static final String PREFETCH_TARGET_PARAM = "teamcity.premerge.prefetchTarget";
+  public static final String PRECOMPUTE_MERGE_PARAM = "teamcity.premerge.precomputeMerge";
+  public static final String AGENT_AFFINITY_PARAM = "teamcity.premerge.agentAffinity";
+  public static final String MIRROR_LOCK_TIMEOUT_SECONDS_PARAM = "teamcity.premerge.mirrorLockTimeoutSeconds";
+  public static final String HOST_FETCH_PERMITS_PARAM = "teamcity.premerge.hostFetchPermits";
+  public static final String HOST_MERGE_PERMITS_PARAM = "teamcity.premerge.hostMergePermits";
+  public static final String HOST_LOCK_DIR_PARAM = "teamcity.premerge.hostLockDir";
+  public static final String DETERMINISTIC_MERGE_PARAM = "teamcity.premerge.deterministicMerge";
+  public static final String REUSE_TREES_PARAM = "teamcity.premerge.reuseTrees";
+  public static final String REUSE_TREES_STOP = "stop";
+  public static final String MERGED_TREE_SHARED_PARAM = "teamcity.build.premerge.mergedTree";
+  public static final String BUILT_TREE_PATH = "/premerge/builtTree.html";
+  public static final String REUSED_BUILD_SHARED_PARAM = "teamcity.build.premerge.reusedBuildId";
+  public static final String PREDICT_CONFLICTS_PARAM = "teamcity.premerge.predictConflicts";
+  public static final String PREDICT_CONFLICTS_SKIP = "skip";
+  public static final String PREDICTED_CONFLICTS_SHARED_PARAM = "teamcity.build.premerge.predictedConflicts";
+  public static final String COALESCE_QUEUE_PARAM = "teamcity.premerge.coalesceQueue";
+  public static final String QUEUE_DEBOUNCE_SECONDS_PARAM = "teamcity.premerge.queueDebounceSeconds";
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.buildDistribution.AgentsFilterContext;
+import jetbrains.buildServer.serverSide.buildDistribution.AgentsFilterResult;
+import jetbrains.buildServer.serverSide.buildDistribution.BuildPromotionInfo;
+import jetbrains.buildServer.serverSide.buildDistribution.StartingBuildAgentsFilter;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.vcs.RepositoryStateManager;
+import jetbrains.buildServer.vcs.VcsRootInstance;
+import jetbrains.buildServer.vcs.VcsRootInstanceEntry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Remembers which agents fetched which target branch revision in finished preliminary merge builds
+ * and, among the agents available for a starting build, prefers the ones which already have the target branch:
+ * first the agents with its current revision, then the agents which fetched it recently.
+ * The preference only narrows the agents which can start the build right now, so the build never waits
+ * for a busy preferred agent; if no available agent has the target branch, the build starts on any agent.
+ * The fetches are kept in the custom data storage of the build configuration and survive server restarts.
+ */
+public class PremergeAgentAffinity extends BuildServerAdapter implements StartingBuildAgentsFilter {
+  private static final String STORAGE_ID = "premerge.agentAffinity";
+  private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  @NotNull private final RepositoryStateManager myRepositoryStateManager;
+
+  public PremergeAgentAffinity(@NotNull EventDispatcher<BuildServerListener> dispatcher,
+                               @NotNull RepositoryStateManager repositoryStateManager) {
+    myRepositoryStateManager = repositoryStateManager;
+    dispatcher.addListener(this);
+  }
+
+  @Override
+  public void buildFinished(@NotNull SRunningBuild build) {
+    SBuildType buildType = build.getBuildType();
+    String targetBranch = build.getParametersProvider().get(PremergeConstants.TARGET_BRANCH_SHARED_PARAM);
+    if (buildType == null || targetBranch == null) {
+      return;
+    }
+    String fullTargetBranch = PremergeServerUtil.toFullBranchName(targetBranch);
+    Map<String, String> fetches = new HashMap<>();
+    long now = System.currentTimeMillis();
+    for (VcsRootInstanceEntry entry : build.getVcsRootEntries()) {
+      VcsRootInstance root = entry.getVcsRoot();
+      String revision = build.getParametersProvider().get(PremergeConstants.TARGET_SHA_SHARED_PARAM + "." + root.getParent().getExternalId());
+      if (revision != null) {
+        fetches.put(getKey(root, fullTargetBranch, build.getAgent().getId()), revision + ":" + now);
+      }
+    }
+    if (fetches.isEmpty()) {
+      return;
+    }
+    CustomDataStorage storage = buildType.getCustomDataStorage(STORAGE_ID);
+    List<String> expired = new ArrayList<>();
+    Map<String, String> values = storage.getValues();
+    if (values != null) {
+      for (Map.Entry<String, String> value : values.entrySet()) {
+        if (!fetches.containsKey(value.getKey()) && parseFetch(value.getValue(), now) == null) {
+          expired.add(value.getKey());
+        }
+      }
+    }
+    storage.updateValues(fetches, expired);
+    storage.flush();
+  }
+
+  @NotNull
+  @Override
+  public AgentsFilterResult filterAgents(@NotNull AgentsFilterContext context) {
+    AgentsFilterResult result = new AgentsFilterResult();
+    BuildPromotionInfo promotionInfo = context.getStartingBuild().getBuildPromotionInfo();
+    if (!(promotionInfo instanceof BuildPromotion)) {
+      return result;
+    }
+    BuildPromotion promotion = (BuildPromotion)promotionInfo;
+    SBuildType buildType = promotion.getBuildType();
+    if (buildType == null || !PremergeServerUtil.isParameterEnabled(promotion.getValueResolver(), PremergeConstants.AGENT_AFFINITY_PARAM)) {
+      return result;
+    }
+    Map<String, String> fetches = buildType.getCustomDataStorage(STORAGE_ID).getValues();
+    if (fetches == null || fetches.isEmpty()) {
+      return result;
+    }
+    String targetBranch = PremergeServerUtil.resolveTargetBranch(PremergeServerUtil.findTargetBranch(buildType), promotion.getValueResolver());
+    if (targetBranch == null) {
+      return result;
+    }
+
+    Collection<SBuildAgent> agents = context.getAgentsForStartingBuild();
+    Map<SBuildAgent, Integer> scores = new HashMap<>();
+    long now = System.currentTimeMillis();
+    for (VcsRootInstanceEntry entry : promotion.getVcsRootEntries()) {
+      VcsRootInstance root = entry.getVcsRoot();
+      if (!PremergeServerUtil.isGitRoot(root)) {
+        continue;
+      }
+      String currentRevision = null;
+      for (SBuildAgent agent : agents) {
+        String revision = parseFetch(fetches.get(getKey(root, targetBranch, agent.getId())), now);
+        if (revision == null) {
+          continue;
+        }
+        if (currentRevision == null) {
+          currentRevision = PremergeServerUtil.getBranchRevision(myRepositoryStateManager, root, targetBranch);
+        }
+        scores.merge(agent, revision.equals(currentRevision) ? 2 : 1, Integer::sum);
+      }
+    }
+    if (scores.isEmpty()) {
+      return result;
+    }
+
+    int maxScore = Collections.max(scores.values());
+    List<SBuildAgent> preferred = new ArrayList<>();
+    for (SBuildAgent agent : agents) {
+      if (scores.getOrDefault(agent, 0) == maxScore) {
+        preferred.add(agent);
+      }
+    }
+    result.setFilteredConnectedAgents(preferred);
+    return result;
+  }
+
+  @NotNull
+  private static String getKey(@NotNull VcsRootInstance root, @NotNull String fullTargetBranch, int agentId) {
+    return root.getProperty("url") + "#" + fullTargetBranch + "#" + agentId;
+  }
+
+  /**
+   * @return the fetched revision of a stored 'revision:timestamp' value, or null if the value is missing or expired
+   */
+  @Nullable
+  private static String parseFetch(@Nullable String value, long now) {
+    int separator = value == null ? -1 : value.lastIndexOf(':');
+    if (separator < 0) {
+      return null;
+    }
+    try {
+      return now - Long.parseLong(value.substring(separator + 1)) > MAX_AGE_MILLIS ? null : value.substring(0, separator);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+}
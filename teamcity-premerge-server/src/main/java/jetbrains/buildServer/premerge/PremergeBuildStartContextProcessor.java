@@ -0,0 +1,190 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.parameters.ValueResolver;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.vcs.RepositoryStateManager;
+import jetbrains.buildServer.vcs.VcsRootInstance;
+import jetbrains.buildServer.vcs.VcsRootInstanceEntry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Pins the target branch revision of preliminary merge builds when they are queued, if pinning is enabled,
+ * so the agent merges with the same commit the server knows about and may skip fetching it.
+ * A queued build shares its revisions with its snapshot dependencies: the revision already pinned for a started
+ * build of the chain wins, then one pinned for a queued build, and only then the current revision is taken.
+ * It is stored for every build of the chain which hasn't started yet, so all of them merge the same target commit.
+ * Pinned revisions are kept in the build configuration's custom data for a day; builds queued without them
+ * get the revision known when they start.
+ * Also passes the files in which conflicts were predicted while the build was queued.
+ */
+public class PremergeBuildStartContextProcessor extends BuildServerAdapter implements BuildStartContextProcessor {
+  private static final String STORAGE_ID = "premerge.pinnedTargets";
+  private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  @NotNull private final RepositoryStateManager myRepositoryStateManager;
+  @NotNull private final PremergeConflictPredictor myConflictPredictor;
+
+  public PremergeBuildStartContextProcessor(@NotNull EventDispatcher<BuildServerListener> dispatcher,
+                                            @NotNull RepositoryStateManager repositoryStateManager,
+                                            @NotNull PremergeConflictPredictor conflictPredictor) {
+    myRepositoryStateManager = repositoryStateManager;
+    myConflictPredictor = conflictPredictor;
+    dispatcher.addListener(this);
+  }
+
+  @Override
+  public void buildTypeAddedToQueue(@NotNull SQueuedBuild queuedBuild) {
+    BuildPromotion promotion = queuedBuild.getBuildPromotion();
+    ValueResolver resolver = promotion.getValueResolver();
+    String targetBranch = PremergeServerUtil.resolveTargetBranch(PremergeServerUtil.findTargetBranch(queuedBuild.getBuildType()), resolver);
+    if (targetBranch == null || !PremergeServerUtil.isParameterEnabled(resolver, PremergeConstants.PIN_TARGET_PARAM)) {
+      return;
+    }
+    List<BuildPromotion> chain = new ArrayList<>();
+    chain.add(promotion);
+    chain.addAll(promotion.getAllDependencies());
+    long now = System.currentTimeMillis();
+    Map<SBuildType, Map<String, String>> pinned = new HashMap<>();
+    for (VcsRootInstanceEntry entry : promotion.getVcsRootEntries()) {
+      VcsRootInstance root = entry.getVcsRoot();
+      if (!PremergeServerUtil.isGitRoot(root)) {
+        continue;
+      }
+      String rootKey = root.getParent().getExternalId() + "#" + targetBranch;
+      String revision = findChainRevision(chain, rootKey, now);
+      if (revision == null) {
+        revision = PremergeServerUtil.getBranchRevision(myRepositoryStateManager, root, targetBranch);
+      }
+      if (revision == null) {
+        continue;
+      }
+      for (BuildPromotion member : chain) {
+        SBuildType buildType = member.getBuildType();
+        if (buildType != null && member.getAssociatedBuild() == null) {
+          pinned.computeIfAbsent(buildType, key -> new HashMap<>()).put(getKey(member, rootKey), revision + ":" + now);
+        }
+      }
+    }
+    pinned.forEach((buildType, values) -> store(buildType, values, now));
+  }
+
+  @Override
+  public void updateParameters(@NotNull BuildStartContext context) {
+    SRunningBuild build = context.getBuild();
+    String targetBranch = null;
+    for (SRunnerContext runner : context.getRunnerContexts()) {
+      if (PremergeConstants.TYPE.equals(runner.getRunType().getType())) {
+        targetBranch = PremergeServerUtil.resolveTargetBranch(runner.getParameters().get(PremergeConstants.TARGET_BRANCH), build.getValueResolver());
+        break;
+      }
+    }
+    if (targetBranch == null) {
+      return;
+    }
+
+    if (PremergeConflictPredictor.getMode(build.getValueResolver()) != null) {
+      String conflicts = myConflictPredictor.getCachedConflicts(build.getBuildPromotion(), targetBranch);
+      if (conflicts != null) {
+        context.addSharedParameter(PremergeConstants.PREDICTED_CONFLICTS_SHARED_PARAM, conflicts);
+      }
+    }
+
+    if (!PremergeServerUtil.isParameterEnabled(build.getValueResolver(), PremergeConstants.PIN_TARGET_PARAM)) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    for (VcsRootInstanceEntry entry : build.getVcsRootEntries()) {
+      VcsRootInstance root = entry.getVcsRoot();
+      if (!PremergeServerUtil.isGitRoot(root)) {
+        continue;
+      }
+      String revision = getPinned(build.getBuildPromotion(), root.getParent().getExternalId() + "#" + targetBranch, now);
+      if (revision == null) {
+        revision = PremergeServerUtil.getBranchRevision(myRepositoryStateManager, root, targetBranch);
+      }
+      if (revision != null) {
+        context.addSharedParameter(PremergeConstants.PINNED_TARGET_SHA_SHARED_PARAM + "." + root.getParent().getExternalId(), revision);
+      }
+    }
+  }
+
+  /**
+   * @return revision pinned for a started build of the chain, or else for a queued one, or null if there is none
+   */
+  @Nullable
+  private static String findChainRevision(@NotNull List<BuildPromotion> chain, @NotNull String rootKey, long now) {
+    String queuedRevision = null;
+    for (BuildPromotion member : chain) {
+      String revision = getPinned(member, rootKey, now);
+      if (revision != null && member.getAssociatedBuild() != null) {
+        return revision;
+      }
+      if (queuedRevision == null) {
+        queuedRevision = revision;
+      }
+    }
+    return queuedRevision;
+  }
+
+  @Nullable
+  private static String getPinned(@NotNull BuildPromotion promotion, @NotNull String rootKey, long now) {
+    SBuildType buildType = promotion.getBuildType();
+    return buildType == null ? null : parsePinned(buildType.getCustomDataStorage(STORAGE_ID).getValue(getKey(promotion, rootKey)), now);
+  }
+
+  private static void store(@NotNull SBuildType buildType, @NotNull Map<String, String> pinned, long now) {
+    CustomDataStorage storage = buildType.getCustomDataStorage(STORAGE_ID);
+    List<String> expired = new ArrayList<>();
+    Map<String, String> values = storage.getValues();
+    if (values != null) {
+      for (Map.Entry<String, String> value : values.entrySet()) {
+        if (!pinned.containsKey(value.getKey()) && parsePinned(value.getValue(), now) == null) {
+          expired.add(value.getKey());
+        }
+      }
+    }
+    storage.updateValues(pinned, expired);
+    storage.flush();
+  }
+
+  @NotNull
+  private static String getKey(@NotNull BuildPromotion promotion, @NotNull String rootKey) {
+    return promotion.getId() + "#" + rootKey;
+  }
+
+  /**
+   * @return the revision of a stored 'revision:timestamp' value, or null if the value is missing or expired
+   */
+  @Nullable
+  private static String parsePinned(@Nullable String value, long now) {
+    int separator = value == null ? -1 : value.lastIndexOf(':');
+    if (separator < 0) {
+      return null;
+    }
+    try {
+      return now - Long.parseLong(value.substring(separator + 1)) > MAX_AGE_MILLIS ? null : value.substring(0, separator);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.parameters.ProcessingResult;
+import jetbrains.buildServer.parameters.ValueResolver;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import jetbrains.buildServer.vcs.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Predicts conflicts of queued preliminary merge builds from the server's VCS data: files changed on the source branch
+ * since the merge base are compared with files changed on the target branch since the merge base.
+ * Results are cached per root and branch pair, the least recently used pairs are evicted.
+ * When a branch moves forward, only the new commits are collected and their files are added to the cached ones;
+ * the changes are collected from scratch only when a branch is reset or one branch gets commits of the other.
+ * Each update first checks the move is a fast-forward: collecting from the new revision to the old one
+ * must find no commits.
+ * Depending on the configuration, builds with predicted conflicts are removed from the queue,
+ * or get the conflicting files as a parameter which the build step reports.
+ * Personal builds, builds triggered by a user, builds other builds depend on and builds with revisions fixed
+ * at queue time are never removed, they only get the parameter.
+ */
+public class PremergeConflictPredictor extends BuildServerAdapter {
+  private static final Logger LOG = Loggers.SERVER;
+  private static final int THREADS = 2;
+  private static final int MAX_CACHED_PAIRS = 10000;
+  private static final int MAX_REPORTED_FILES = 20;
+
+  @NotNull private final RepositoryStateManager myRepositoryStateManager;
+  @NotNull private final VcsManager myVcsManager;
+  private final Map<String, Prediction> myPredictions = Collections.synchronizedMap(new LinkedHashMap<String, Prediction>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Prediction> eldest) {
+      return size() > MAX_CACHED_PAIRS;
+    }
+  });
+  private final ExecutorService myExecutor = ExecutorsFactory.newFixedDaemonExecutor("Premerge conflict prediction", THREADS);
+
+  public PremergeConflictPredictor(@NotNull EventDispatcher<BuildServerListener> dispatcher,
+                                   @NotNull RepositoryStateManager repositoryStateManager,
+                                   @NotNull VcsManager vcsManager) {
+    myRepositoryStateManager = repositoryStateManager;
+    myVcsManager = vcsManager;
+    dispatcher.addListener(this);
+  }
+
+  @Override
+  public void buildTypeAddedToQueue(@NotNull SQueuedBuild queuedBuild) {
+    SBuildType buildType = queuedBuild.getBuildType();
+    ValueResolver resolver = queuedBuild.getBuildPromotion().getValueResolver();
+    String mode = getMode(resolver);
+    if (mode == null) {
+      return;
+    }
+    String targetBranch = PremergeServerUtil.resolveTargetBranch(PremergeServerUtil.findTargetBranch(buildType), resolver);
+    if (targetBranch == null) {
+      return;
+    }
+    try {
+      myExecutor.submit(() -> {
+        Set<String> conflicts = predictConflicts(queuedBuild.getBuildPromotion(), targetBranch);
+        if (!conflicts.isEmpty() && PremergeConstants.PREDICT_CONFLICTS_SKIP.equals(mode) && PremergeServerUtil.isRemovableFromQueue(queuedBuild)) {
+          queuedBuild.removeFromQueue(null, "Preliminary merge with '" + targetBranch + "' would conflict in " + formatFiles(conflicts));
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the server is shutting down
+    }
+  }
+
+  @Override
+  public void serverShutdown() {
+    myExecutor.shutdownNow();
+  }
+
+  /**
+   * @return files changed on both branches of any root of the build, empty if no conflicts are predicted
+   * or the revisions of the branches are not known yet
+   */
+  @NotNull
+  public Set<String> predictConflicts(@NotNull BuildPromotion promotion, @NotNull String targetBranch) {
+    Set<String> conflicts = new TreeSet<>();
+    for (VcsRootInstanceEntry entry : promotion.getVcsRootEntries()) {
+      VcsRootInstance root = entry.getVcsRoot();
+      if (!PremergeServerUtil.isGitRoot(root)) {
+        continue;
+      }
+      String sourceBranch = PremergeServerUtil.findVcsBranch(myRepositoryStateManager, root, promotion.getBranch());
+      if (sourceBranch == null || sourceBranch.equals(targetBranch)) {
+        continue;
+      }
+      String sourceRevision = PremergeServerUtil.getBranchRevision(myRepositoryStateManager, root, sourceBranch);
+      String targetRevision = PremergeServerUtil.getBranchRevision(myRepositoryStateManager, root, targetBranch);
+      if (sourceRevision == null || targetRevision == null) {
+        continue;
+      }
+      String key = root.getId() + "#" + sourceBranch + "#" + targetBranch;
+      Prediction prediction = myPredictions.get(key);
+      if (prediction == null || !prediction.isFor(sourceRevision, targetRevision)) {
+        try {
+          prediction = predict(root, entry.getCheckoutRules(), sourceBranch, sourceRevision, targetBranch, targetRevision, prediction);
+        } catch (VcsException e) {
+          LOG.warn("Cannot predict conflicts of '" + sourceBranch + "' with '" + targetBranch + "' in " + root.describe(false) + ": " + e.getMessage());
+          continue;
+        }
+        myPredictions.put(key, prediction);
+      }
+      conflicts.addAll(prediction.myConflicts);
+    }
+    return conflicts;
+  }
+
+  /**
+   * @return predicted conflicts of the build known from the cache for the current revisions of the branches,
+   * or null if none are known
+   */
+  @Nullable
+  public String getCachedConflicts(@NotNull BuildPromotion promotion, @NotNull String targetBranch) {
+    Set<String> conflicts = new TreeSet<>();
+    for (VcsRootInstanceEntry entry : promotion.getVcsRootEntries()) {
+      VcsRootInstance root = entry.getVcsRoot();
+      String sourceBranch = PremergeServerUtil.isGitRoot(root) ? PremergeServerUtil.findVcsBranch(myRepositoryStateManager, root, promotion.getBranch()) : null;
+      Prediction prediction = sourceBranch == null ? null : myPredictions.get(root.getId() + "#" + sourceBranch + "#" + targetBranch);
+      if (prediction == null) {
+        continue;
+      }
+      String sourceRevision = PremergeServerUtil.getBranchRevision(myRepositoryStateManager, root, sourceBranch);
+      String targetRevision = PremergeServerUtil.getBranchRevision(myRepositoryStateManager, root, targetBranch);
+      if (sourceRevision != null && targetRevision != null && prediction.isFor(sourceRevision, targetRevision)) {
+        conflicts.addAll(prediction.myConflicts);
+      }
+    }
+    return conflicts.isEmpty() ? null : formatFiles(conflicts);
+  }
+
+  @NotNull
+  private Prediction predict(@NotNull VcsRootInstance root,
+                             @NotNull CheckoutRules checkoutRules,
+                             @NotNull String sourceBranch,
+                             @NotNull String sourceRevision,
+                             @NotNull String targetBranch,
+                             @NotNull String targetRevision,
+                             @Nullable Prediction previous) throws VcsException {
+    VcsSupportContext vcs = myVcsManager.findVcsContextByName(root.getVcsName());
+    CollectChangesPolicy policy = vcs == null ? null : vcs.getCore().getCollectChangesPolicy();
+    if (!(policy instanceof CollectChangesBetweenRepositories)) {
+      throw new VcsException("Collecting changes between branches is not supported");
+    }
+    CollectChangesBetweenRepositories collector = (CollectChangesBetweenRepositories)policy;
+    if (previous != null) {
+      List<ModificationData> newSource = collectForward(collector, root, checkoutRules, sourceBranch, previous.mySourceRevision, sourceRevision);
+      List<ModificationData> newTarget = newSource == null ? null : collectForward(collector, root, checkoutRules, targetBranch, previous.myTargetRevision, targetRevision);
+      if (newTarget != null) {
+        Changes source = previous.mySource.plus(newSource);
+        Changes target = previous.myTarget.plus(newTarget);
+        if (!source.containsAnyOf(newTarget) && !target.containsAnyOf(newSource)) {
+          return new Prediction(sourceRevision, targetRevision, source, target);
+        }
+      }
+    }
+    RepositoryStateData sourceState = createState(sourceBranch, sourceRevision);
+    RepositoryStateData targetState = createState(targetBranch, targetRevision);
+    Changes source = new Changes().plus(collector.collectChanges(root, targetState, root, sourceState, checkoutRules));
+    Changes target = new Changes().plus(collector.collectChanges(root, sourceState, root, targetState, checkoutRules));
+    return new Prediction(sourceRevision, targetRevision, source, target);
+  }
+
+  /**
+   * @return commits which moved the branch forward from the old revision to the new one,
+   * or null if the old revision is not an ancestor of the new one
+   */
+  @Nullable
+  private static List<ModificationData> collectForward(@NotNull CollectChangesBetweenRepositories collector,
+                                                       @NotNull VcsRootInstance root,
+                                                       @NotNull CheckoutRules checkoutRules,
+                                                       @NotNull String branch,
+                                                       @NotNull String oldRevision,
+                                                       @NotNull String newRevision) throws VcsException {
+    if (oldRevision.equals(newRevision)) {
+      return Collections.emptyList();
+    }
+    RepositoryStateData oldState = createState(branch, oldRevision);
+    RepositoryStateData newState = createState(branch, newRevision);
+    if (!collector.collectChanges(root, newState, root, oldState, checkoutRules).isEmpty()) {
+      return null;
+    }
+    return collector.collectChanges(root, oldState, root, newState, checkoutRules);
+  }
+
+  @NotNull
+  private static RepositoryStateData createState(@NotNull String branch, @NotNull String revision) {
+    return RepositoryStateData.createVersionState(branch, Collections.singletonMap(branch, revision));
+  }
+
+  @NotNull
+  private static String formatFiles(@NotNull Set<String> files) {
+    List<String> reported = new ArrayList<>(files);
+    String result = String.join(", ", reported.subList(0, Math.min(reported.size(), MAX_REPORTED_FILES)));
+    return reported.size() > MAX_REPORTED_FILES ? result + " and " + (reported.size() - MAX_REPORTED_FILES) + " more" : result;
+  }
+
+  /**
+   * @return "true" or "skip" if conflict prediction is enabled, null otherwise
+   */
+  @Nullable
+  public static String getMode(@NotNull ValueResolver resolver) {
+    ProcessingResult value = resolver.resolve("%" + PremergeConstants.PREDICT_CONFLICTS_PARAM + "%");
+    if (!value.isFullyResolved()) {
+      return null;
+    }
+    String mode = value.getResult().trim();
+    return Boolean.parseBoolean(mode) || PremergeConstants.PREDICT_CONFLICTS_SKIP.equals(mode) ? mode : null;
+  }
+
+  private static class Prediction {
+    @NotNull private final String mySourceRevision;
+    @NotNull private final String myTargetRevision;
+    @NotNull private final Changes mySource;
+    @NotNull private final Changes myTarget;
+    @NotNull private final Set<String> myConflicts;
+
+    Prediction(@NotNull String sourceRevision, @NotNull String targetRevision, @NotNull Changes source, @NotNull Changes target) {
+      mySourceRevision = sourceRevision;
+      myTargetRevision = targetRevision;
+      mySource = source;
+      myTarget = target;
+      myConflicts = new HashSet<>(target.myFiles);
+      myConflicts.retainAll(source.myFiles);
+    }
+
+    boolean isFor(@NotNull String sourceRevision, @NotNull String targetRevision) {
+      return mySourceRevision.equals(sourceRevision) && myTargetRevision.equals(targetRevision);
+    }
+  }
+
+  /**
+   * Commits of one branch since the merge base and the files they changed.
+   */
+  private static class Changes {
+    @NotNull private final Set<String> myVersions = new HashSet<>();
+    @NotNull private final Set<String> myFiles = new HashSet<>();
+
+    @NotNull
+    Changes plus(@NotNull List<ModificationData> modifications) {
+      if (modifications.isEmpty()) {
+        return this;
+      }
+      Changes result = new Changes();
+      result.myVersions.addAll(myVersions);
+      result.myFiles.addAll(myFiles);
+      for (ModificationData modification : modifications) {
+        result.myVersions.add(modification.getVersion());
+        for (VcsChange change : modification.getChanges()) {
+          result.myFiles.add(change.getRelativeFileName());
+        }
+      }
+      return result;
+    }
+
+    boolean containsAnyOf(@NotNull List<ModificationData> modifications) {
+      for (ModificationData modification : modifications) {
+        if (myVersions.contains(modification.getVersion())) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
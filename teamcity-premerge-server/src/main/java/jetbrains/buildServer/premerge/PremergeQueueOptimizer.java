@@ -0,0 +1,119 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.parameters.ProcessingResult;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.buildDistribution.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps one queued preliminary merge build per source and target branch of a build configuration: when a build
+ * is queued, older queued builds of the same branches are removed, since the newer one merges the latest revisions anyway.
+ * Builds triggered by a user, builds other builds depend on and builds with revisions fixed at queue time
+ * are never removed, and builds with fixed revisions never replace other builds either.
+ * Automatically triggered builds also wait in the queue for the debounce period, so a series of pushes
+ * to the source or the target branch results in a single build. Builds with fixed revisions don't wait,
+ * as newer pushes can't change what they merge.
+ * Settings are resolved with the parameters of the queued build.
+ */
+public class PremergeQueueOptimizer extends BuildServerAdapter implements StartingBuildAgentsFilter {
+  @NotNull private final BuildQueue myBuildQueue;
+
+  public PremergeQueueOptimizer(@NotNull EventDispatcher<BuildServerListener> dispatcher,
+                                @NotNull BuildQueue buildQueue) {
+    myBuildQueue = buildQueue;
+    dispatcher.addListener(this);
+  }
+
+  @Override
+  public void buildTypeAddedToQueue(@NotNull SQueuedBuild queuedBuild) {
+    SBuildType buildType = queuedBuild.getBuildType();
+    BuildPromotion promotion = queuedBuild.getBuildPromotion();
+    String targetBranch = PremergeServerUtil.findTargetBranch(buildType);
+    if (queuedBuild.isPersonal() || PremergeServerUtil.hasFixedRevisions(promotion) || targetBranch == null || !isEnabled(promotion)) {
+      return;
+    }
+    String branch = getBranchName(promotion);
+    String resolvedTarget = PremergeServerUtil.resolveTargetBranch(targetBranch, promotion.getValueResolver());
+    if (resolvedTarget == null) {
+      return;
+    }
+    for (SQueuedBuild other : myBuildQueue.getItems()) {
+      if (other == queuedBuild ||
+          !other.getBuildTypeId().equals(queuedBuild.getBuildTypeId()) ||
+          !PremergeServerUtil.isRemovableFromQueue(other) ||
+          !branch.equals(getBranchName(other.getBuildPromotion())) ||
+          !resolvedTarget.equals(PremergeServerUtil.resolveTargetBranch(targetBranch, other.getBuildPromotion().getValueResolver())) ||
+          other.getWhenQueued().after(queuedBuild.getWhenQueued())) {
+        continue;
+      }
+      other.removeFromQueue(null, "Replaced by a newer preliminary merge build of the same branches");
+    }
+  }
+
+  @NotNull
+  @Override
+  public AgentsFilterResult filterAgents(@NotNull AgentsFilterContext context) {
+    AgentsFilterResult result = new AgentsFilterResult();
+    QueuedBuildInfo startingBuild = context.getStartingBuild();
+    BuildPromotionInfo promotionInfo = startingBuild.getBuildPromotionInfo();
+    if (!(promotionInfo instanceof BuildPromotion) || startingBuild.getTriggeredBy().isTriggeredByUser()) {
+      return result;
+    }
+    BuildPromotion promotion = (BuildPromotion)promotionInfo;
+    SBuildType buildType = promotion.getBuildType();
+    if (buildType == null || PremergeServerUtil.hasFixedRevisions(promotion) ||
+        PremergeServerUtil.findTargetBranch(buildType) == null || !isEnabled(promotion)) {
+      return result;
+    }
+    long debounceMillis = TimeUnit.SECONDS.toMillis(getDebounceSeconds(promotion));
+    long queuedMillis = System.currentTimeMillis() - startingBuild.getWhenQueued().getTime();
+    if (queuedMillis < debounceMillis) {
+      result.setWaitReason(new SimpleWaitReason("Waiting " + (debounceMillis - queuedMillis) / 1000 + " seconds for newer pushes before the preliminary merge"));
+    }
+    return result;
+  }
+
+  @NotNull
+  private static String getBranchName(@NotNull BuildPromotion promotion) {
+    Branch branch = promotion.getBranch();
+    return branch == null || branch.isDefaultBranch() ? "" : branch.getName();
+  }
+
+  private static boolean isEnabled(@NotNull BuildPromotion promotion) {
+    return Boolean.parseBoolean(resolve(promotion, PremergeConstants.COALESCE_QUEUE_PARAM));
+  }
+
+  private static int getDebounceSeconds(@NotNull BuildPromotion promotion) {
+    String value = resolve(promotion, PremergeConstants.QUEUE_DEBOUNCE_SECONDS_PARAM);
+    try {
+      return value == null ? 0 : Math.max(0, Integer.parseInt(value.trim()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  @Nullable
+  private static String resolve(@NotNull BuildPromotion promotion, @NotNull String parameter) {
+    ProcessingResult value = promotion.getValueResolver().resolve("%" + parameter + "%");
+    return value.isFullyResolved() ? value.getResult() : null;
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import java.util.Map;
+import jetbrains.buildServer.parameters.ProcessingResult;
+import jetbrains.buildServer.parameters.ValueResolver;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.vcs.RepositoryStateManager;
+import jetbrains.buildServer.vcs.VcsRootInstance;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public class PremergeServerUtil {
+  private PremergeServerUtil() {
+
+  }
+
+  /**
+   * @return unresolved target branch of the first enabled preliminary merge step, or null if there is no such step
+   */
+  @Nullable
+  public static String findTargetBranch(@NotNull SBuildType buildType) {
+    for (SBuildRunnerDescriptor runner : buildType.getBuildRunners()) {
+      if (PremergeConstants.TYPE.equals(runner.getType()) && buildType.isEnabled(runner.getId())) {
+        return runner.getParameters().get(PremergeConstants.TARGET_BRANCH);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return full name of the target branch, or null if it is empty or references unknown parameters
+   */
+  @Nullable
+  public static String resolveTargetBranch(@Nullable String targetBranch, @NotNull ValueResolver resolver) {
+    if (StringUtil.isEmpty(targetBranch)) {
+      return null;
+    }
+    ProcessingResult result = resolver.resolve(targetBranch);
+    if (!result.isFullyResolved() || StringUtil.isEmpty(result.getResult())) {
+      return null;
+    }
+    return toFullBranchName(result.getResult());
+  }
+
+  public static boolean isParameterEnabled(@NotNull ValueResolver resolver, @NotNull String parameter) {
+    ProcessingResult value = resolver.resolve("%" + parameter + "%");
+    return value.isFullyResolved() && Boolean.parseBoolean(value.getResult().trim());
+  }
+
+  /**
+   * @return true if the queued build can be removed from the queue by the plugin: it is not personal,
+   * it was triggered automatically, no other build depends on it and its revisions were not fixed at queue time
+   */
+  public static boolean isRemovableFromQueue(@NotNull SQueuedBuild queuedBuild) {
+    BuildPromotion promotion = queuedBuild.getBuildPromotion();
+    return !queuedBuild.isPersonal() &&
+           !queuedBuild.getTriggeredBy().isTriggeredByUser() &&
+           promotion.getDependedOnMe().isEmpty() &&
+           !hasFixedRevisions(promotion);
+  }
+
+  /**
+   * Revisions of a queued build are known only when they were fixed at queue time,
+   * e.g. for a build run on a specific change or a build with synchronized snapshot dependencies.
+   */
+  public static boolean hasFixedRevisions(@NotNull BuildPromotion promotion) {
+    return !promotion.getRevisions().isEmpty();
+  }
+
+  @NotNull
+  public static String toFullBranchName(@NotNull String branch) {
+    return branch.startsWith("refs/") ? branch : "refs/heads/" + branch;
+  }
+
+  public static boolean isGitRoot(@NotNull VcsRootInstance root) {
+    return PremergeConstants.GIT_VCS_NAME.equals(root.getVcsName());
+  }
+
+  /**
+   * @return revision of the branch in the last collected repository state of the root
+   */
+  @Nullable
+  public static String getBranchRevision(@NotNull RepositoryStateManager repositoryStateManager,
+                                         @NotNull VcsRootInstance root,
+                                         @NotNull String fullBranchName) {
+    return repositoryStateManager.getRepositoryState(root).getBranchRevisions().get(fullBranchName);
+  }
+
+  /**
+   * @return full name of the root branch corresponding to the logical build branch, or null if it is not known
+   */
+  @Nullable
+  public static String findVcsBranch(@NotNull RepositoryStateManager repositoryStateManager,
+                                     @NotNull VcsRootInstance root,
+                                     @Nullable Branch branch) {
+    if (branch == null || branch.isDefaultBranch()) {
+      String rootBranch = root.getProperty("branch");
+      return StringUtil.isEmpty(rootBranch) ? null : toFullBranchName(rootBranch);
+    }
+    Map<String, String> revisions = repositoryStateManager.getRepositoryState(root).getBranchRevisions();
+    String name = branch.getName();
+    if (revisions.containsKey(name)) {
+      return name;
+    }
+    if (revisions.containsKey(toFullBranchName(name))) {
+      return toFullBranchName(name);
+    }
+    for (String fullName : revisions.keySet()) {
+      if (fullName.endsWith("/" + name)) {
+        return fullName;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+/**
+ * Tells a running preliminary merge build whether its merged trees were already built successfully
+ * in the build configuration. The agent asks with the credentials of the build and gets the id of that build,
+ * or an empty response if the trees were not built.
+ */
+public class PremergeTreeController extends BaseController {
+  @NotNull private final PremergeTreeIndex myTreeIndex;
+
+  public PremergeTreeController(@NotNull SBuildServer server,
+                                @NotNull WebControllerManager controllerManager,
+                                @NotNull PremergeTreeIndex treeIndex) {
+    super(server);
+    myTreeIndex = treeIndex;
+    controllerManager.registerController(PremergeConstants.BUILT_TREE_PATH, this);
+  }
+
+  @Nullable
+  @Override
+  protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+    String mergedTrees = request.getParameter("mergedTrees");
+    SRunningBuild build = findRunningBuild(request.getParameter("buildId"));
+    SBuildType buildType = build == null ? null : build.getBuildType();
+    if (buildType == null || StringUtil.isEmpty(mergedTrees)) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return null;
+    }
+    SUser user = SessionUser.getUser(request);
+    if (user == null || !user.isPermissionGrantedForProject(buildType.getProjectId(), Permission.VIEW_PROJECT)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return null;
+    }
+    String builtBuildId = PremergeTreeIndex.isEnabled(build.getValueResolver()) ? myTreeIndex.findBuild(buildType, mergedTrees) : null;
+    response.setContentType("text/plain");
+    response.getWriter().write(StringUtil.emptyIfNull(builtBuildId));
+    return null;
+  }
+
+  @Nullable
+  private SRunningBuild findRunningBuild(@Nullable String buildId) {
+    try {
+      return buildId == null ? null : myServer.findRunningBuildById(Long.parseLong(buildId));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.premerge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import jetbrains.buildServer.parameters.ProcessingResult;
+import jetbrains.buildServer.parameters.ValueResolver;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Remembers merged trees of successful preliminary merge builds per build configuration.
+ * The trees are reported by the agent as a single value listing the tree of every VCS root.
+ * Running builds look up their trees through {@link PremergeTreeController}, so a build which produced
+ * an already built merge result can skip the work.
+ */
+public class PremergeTreeIndex extends BuildServerAdapter {
+  private static final String STORAGE_ID = "premerge.mergedTrees";
+  private static final int MAX_ENTRIES = 1000;
+
+  public PremergeTreeIndex(@NotNull EventDispatcher<BuildServerListener> dispatcher) {
+    dispatcher.addListener(this);
+  }
+
+  @Override
+  public void buildFinished(@NotNull SRunningBuild build) {
+    SBuildType buildType = build.getBuildType();
+    if (buildType == null || !build.getBuildStatus().isSuccessful() || build.getCanceledInfo() != null) {
+      return;
+    }
+    String mergedTree = build.getParametersProvider().get(PremergeConstants.MERGED_TREE_SHARED_PARAM);
+    if (mergedTree == null || build.getParametersProvider().get(PremergeConstants.REUSED_BUILD_SHARED_PARAM) != null) {
+      return;
+    }
+    CustomDataStorage storage = buildType.getCustomDataStorage(STORAGE_ID);
+    storage.putValue(mergedTree, String.valueOf(build.getBuildId()));
+    List<Map.Entry<String, String>> entries = getEntriesNewestFirst(storage);
+    for (int i = MAX_ENTRIES; i < entries.size(); i++) {
+      storage.putValue(entries.get(i).getKey(), null);
+    }
+    storage.flush();
+  }
+
+  /**
+   * @return id of the successful build of the build configuration which produced the merged trees, or null if none is known
+   */
+  @Nullable
+  public String findBuild(@NotNull SBuildType buildType, @NotNull String mergedTrees) {
+    return buildType.getCustomDataStorage(STORAGE_ID).getValue(mergedTrees);
+  }
+
+  public static boolean isEnabled(@NotNull ValueResolver resolver) {
+    ProcessingResult value = resolver.resolve("%" + PremergeConstants.REUSE_TREES_PARAM + "%");
+    return value.isFullyResolved() &&
+           (Boolean.parseBoolean(value.getResult()) || PremergeConstants.REUSE_TREES_STOP.equals(value.getResult()));
+  }
+
+  @NotNull
+  private static List<Map.Entry<String, String>> getEntriesNewestFirst(@NotNull CustomDataStorage storage) {
+    Map<String, String> values = storage.getValues();
+    List<Map.Entry<String, String>> entries = values == null ? new ArrayList<>() : new ArrayList<>(values.entrySet());
+    entries.sort((first, second) -> Long.compare(parseBuildId(second.getValue()), parseBuildId(first.getValue())));
+    return entries;
+  }
+
+  private static long parseBuildId(@Nullable String value) {
+    try {
+      return value == null ? 0 : Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,41 @@
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import premerge.PremergeConstants;
+
+public class DeterministicMergeTest extends PremergeGitTestCase {
+
+  @Test
+  public void samePairGivesSameMergeSHA() throws Exception {
+    TestGitRepository first = checkout("first");
+    Assert.assertEquals(runPremerge(first, new MockBuildLogger(), deterministicParameters(false)).getStatus().toString(), "SUCCESS");
+    // commit dates have a one second resolution
+    Thread.sleep(1100);
+    TestGitRepository second = checkout("second");
+    Assert.assertEquals(runPremerge(second, new MockBuildLogger(), deterministicParameters(false)).getStatus().toString(), "SUCCESS");
+
+    Assert.assertEquals(first.git("rev-parse", "HEAD^1", "HEAD^2"), featureSHA + "\n" + mainSHA);
+    Assert.assertEquals(second.git("rev-parse", "HEAD"), first.git("rev-parse", "HEAD"));
+  }
+
+  @Test
+  public void inMemoryMergeGivesSameMergeSHA() throws Exception {
+    TestGitRepository first = checkout("first");
+    Assert.assertEquals(runPremerge(first, new MockBuildLogger(), deterministicParameters(false)).getStatus().toString(), "SUCCESS");
+    Thread.sleep(1100);
+    TestGitRepository second = checkout("second");
+    Assert.assertEquals(runPremerge(second, new MockBuildLogger(), deterministicParameters(true)).getStatus().toString(), "SUCCESS");
+
+    Assert.assertEquals(second.git("rev-parse", "HEAD"), first.git("rev-parse", "HEAD"));
+  }
+
+  private static Map<String, String> deterministicParameters(boolean inMemory) {
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put(PremergeConstants.DETERMINISTIC_MERGE_PARAM, "true");
+    if (inMemory) {
+      parameters.put(PremergeConstants.IN_MEMORY_MERGE_PARAM, "true");
+    }
+    return parameters;
+  }
+}
@@ -0,0 +1,86 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.agent.oauth.AgentTokenStorage;
+import jetbrains.buildServer.buildTriggers.vcs.git.AuthSettings;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentGitFacade;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentGitVcsRoot;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentPluginConfig;
+import jetbrains.buildServer.ssh.SshKnownHostsManager;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import premerge.PremergeBranchSupportImpl;
+import premerge.PremergeBuildProcess;
+
+/**
+ * Branch support which runs native git in the build checkout directory and fetches from its 'origin'.
+ */
+public class GitPremergeBranchSupport extends PremergeBranchSupportImpl {
+  private final File myRepositoryDir;
+  private List<String> mySequence;
+
+  public GitPremergeBranchSupport(@NotNull PremergeBuildProcess process,
+                                  @NotNull VcsRoot root,
+                                  @NotNull String repoRelativePath,
+                                  @NotNull BuildProgressLogger logger) throws VcsException {
+    super(process, root, repoRelativePath, mock(AgentTokenStorage.class), process.getBuild(), mock(SshKnownHostsManager.class), logger);
+    myRepositoryDir = new File(process.getBuild().getCheckoutDirectory(), repoRelativePath);
+  }
+
+  private static <T> T mock(Class<T> type) {
+    return new Mockery(){{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }}.mock(type);
+  }
+
+  public List<String> getSequence() {
+    if (mySequence == null)
+      mySequence = Collections.synchronizedList(new ArrayList<>());
+    return mySequence;
+  }
+
+  @Override
+  protected AgentGitFacade getFacade(File repositoryDir) {
+    return TestGitRepository.facade(repositoryDir, getSequence());
+  }
+
+  @NotNull
+  @Override
+  protected String getFetchUrl() {
+    return TestGitRepository.run(myRepositoryDir, "config", "--get", "remote.origin.url");
+  }
+
+  @Override
+  protected AgentPluginConfig createPluginConfig() throws VcsException {
+    Mockery context = new Mockery();
+    AgentPluginConfig config = context.mock(AgentPluginConfig.class);
+
+    context.checking(new Expectations() {{
+      allowing(config).getPathToGit(); will(returnValue("git"));
+      allowing(config).isUseNativeSSH(); will(returnValue(false));
+      allowing(config).getCheckoutIdleTimeoutSeconds(); will(returnValue(60));
+      allowing(config).getIdleTimeoutSeconds(); will(returnValue(60));
+      allowing(config).getGitVersion(); will(returnValue(TestGitRepository.getGitVersion()));
+      allowing(config).isFetchTags(); will(returnValue(false));
+      allowing(config).getGitProgressMode(); will(returnValue(AgentPluginConfig.GitProgressMode.DEBUG));
+    }});
+
+    return config;
+  }
+
+  @Override
+  protected AgentGitVcsRoot createGitVcsRoot(VcsRoot root) throws VcsException {
+    return mock(AgentGitVcsRoot.class);
+  }
+
+  @Override
+  protected AuthSettings retrieveAuthSettings() {
+    return mock(AuthSettings.class);
+  }
+}
@@ -0,0 +1,64 @@
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jetbrains.buildServer.buildTriggers.vcs.git.Constants;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.VcsRootEntry;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import premerge.PremergeConstants;
+
+public class GroupFetchesTest extends PremergeGitTestCase {
+
+  @Test
+  public void rootsFetchSeparatelyByDefault() {
+    MockPremergeBuildProcess process = runTwoRoots(Collections.emptyMap(), null);
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    for (GitPremergeBranchSupport support : process.getGitSupports()) {
+      Assert.assertEquals(support.getSequence().get(0), "fetch origin +main:main");
+    }
+  }
+
+  @Test
+  public void rootsWithSameUrlAndCredentialsFetchOnce() {
+    MockPremergeBuildProcess process = runTwoRoots(groupParameters(), null);
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    List<GitPremergeBranchSupport> supports = process.getGitSupports();
+    Assert.assertEquals(supports.get(0).getSequence().get(0), "fetch origin +main:main");
+    Assert.assertEquals(supports.get(1).getSequence().get(0), "fetch " + new File(tempDir, "one").getAbsolutePath() + " +main:main");
+    Assert.assertEquals(TestGitRepository.run(new File(tempDir, "two"), "rev-parse", "HEAD^2"), mainSHA);
+  }
+
+  @Test
+  public void rootsWithDifferentCredentialsFetchSeparately() {
+    MockPremergeBuildProcess process = runTwoRoots(groupParameters(), "other");
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    for (GitPremergeBranchSupport support : process.getGitSupports()) {
+      Assert.assertEquals(support.getSequence().get(0), "fetch origin +main:main");
+    }
+  }
+
+  private MockPremergeBuildProcess runTwoRoots(Map<String, String> parameters, String secondUsername) {
+    checkout("one");
+    checkout("two");
+    MockVcsRoot second = new MockVcsRoot();
+    if (secondUsername != null) {
+      second.setProperty(Constants.USERNAME, secondUsername);
+    }
+    List<VcsRootEntry> entries = Arrays.asList(new VcsRootEntry(new MockVcsRoot().setUrl("git@...0"), new CheckoutRules("+:.=>one")),
+                                               new VcsRootEntry(second.setUrl("git@...1"), new CheckoutRules("+:.=>two")));
+    return runPremerge(tempDir, entries, new MockBuildLogger(), parameters, Collections.emptyMap());
+  }
+
+  private static Map<String, String> groupParameters() {
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put(PremergeConstants.GROUP_FETCHES_PARAM, "true");
+    return parameters;
+  }
+}
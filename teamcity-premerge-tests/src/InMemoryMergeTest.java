@@ -0,0 +1,50 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import premerge.PremergeBranchSupportImpl;
+import premerge.PremergeConstants;
+
+public class InMemoryMergeTest extends PremergeGitTestCase {
+  private static final String TREE = "0123456789012345678901234567890123456789";
+
+  @Test
+  public void parseConflictsTest() {
+    Assert.assertEquals(PremergeBranchSupportImpl.parseMergeTreeConflicts(TREE + "\n"), Collections.emptyList());
+    Assert.assertEquals(PremergeBranchSupportImpl.parseMergeTreeConflicts(TREE + "\na.txt\ndir/b c.txt\n"), Arrays.asList("a.txt", "dir/b c.txt"));
+    Assert.assertEquals(PremergeBranchSupportImpl.parseMergeTreeConflicts(TREE + "\r\na.txt\r\nb.txt\r\n"), Arrays.asList("a.txt", "b.txt"));
+    Assert.assertEquals(PremergeBranchSupportImpl.parseMergeTreeConflicts(TREE + "\na.txt\n\nCONFLICT (content): Merge conflict in a.txt\n"), Collections.singletonList("a.txt"));
+  }
+
+  @Test
+  public void cleanMergeIsCheckedOut() {
+    TestGitRepository checkout = checkout("checkout");
+    MockPremergeBuildProcess process = runPremerge(checkout, new MockBuildLogger(), inMemoryParameters());
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertEquals(checkout.git("rev-parse", "HEAD^1", "HEAD^2"), featureSHA + "\n" + mainSHA);
+    Assert.assertEquals(checkout.git("show", "HEAD:main.txt"), "main");
+    Assert.assertEquals(checkout.git("status", "--porcelain"), "");
+  }
+
+  @Test
+  public void conflictReportsPathsAndKeepsWorkingTree() throws Exception {
+    TestGitRepository checkout = checkout("checkout");
+    String headSHA = checkout.commit("main.txt", "feature");
+    MockBuildLogger logger = new MockBuildLogger();
+    MockPremergeBuildProcess process = runPremerge(checkout, logger, inMemoryParameters());
+
+    Assert.assertEquals(process.getStatus().toString(), "FAILED");
+    Assert.assertTrue(logger.hasWarning("in 1 file(s):\nmain.txt"));
+    Assert.assertEquals(checkout.git("rev-parse", "HEAD"), headSHA);
+    Assert.assertEquals(checkout.git("status", "--porcelain"), "");
+  }
+
+  private static Map<String, String> inMemoryParameters() {
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put(PremergeConstants.IN_MEMORY_MERGE_PARAM, "true");
+    return parameters;
+  }
+}
@@ -0,0 +1,46 @@
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import premerge.PremergeConstants;
+
+public class MirrorFetchTest extends PremergeGitTestCase {
+
+  @Test
+  public void targetIsFetchedThroughMirror() {
+    TestGitRepository checkout = checkout("checkout");
+    MockBuildLogger logger = new MockBuildLogger();
+    MockPremergeBuildProcess process = runPremerge(checkout, logger, mirrorParameters());
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertTrue(new File(mirrorDir, "config").isFile());
+    Assert.assertEquals(TestGitRepository.run(mirrorDir, "rev-parse", "refs/heads/main"), mainSHA);
+    Assert.assertEquals(checkout.git("rev-parse", "HEAD^1", "HEAD^2"), featureSHA + "\n" + mainSHA);
+    Assert.assertEquals(process.getGitSupports().get(0).getSequence().subList(0, 3),
+                        Arrays.asList("init",
+                                      "fetch " + origin.getUrl() + " +main:main",
+                                      "fetch " + mirrorDir.getAbsolutePath() + " +main:main"));
+  }
+
+  @Test
+  public void mirrorIsReusedByNextBuild() throws Exception {
+    runPremerge(checkout("first"), new MockBuildLogger(), mirrorParameters());
+    String nextMainSHA = origin.commit("main.txt", "next main");
+
+    TestGitRepository checkout = checkout("second");
+    MockPremergeBuildProcess process = runPremerge(checkout, new MockBuildLogger(), mirrorParameters());
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertFalse(process.getGitSupports().get(0).getSequence().contains("init"));
+    Assert.assertEquals(TestGitRepository.run(mirrorDir, "rev-parse", "refs/heads/main"), nextMainSHA);
+    Assert.assertEquals(checkout.git("rev-parse", "HEAD^2"), nextMainSHA);
+  }
+
+  private static Map<String, String> mirrorParameters() {
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put(PremergeConstants.FETCH_VIA_MIRROR_PARAM, "true");
+    return parameters;
+  }
+}
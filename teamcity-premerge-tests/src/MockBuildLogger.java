@@ -0,0 +1,45 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import jetbrains.buildServer.agent.FlowLogger;
+import jetbrains.buildServer.agent.NullBuildProgressLogger;
+
+public class MockBuildLogger extends NullBuildProgressLogger {
+  private final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+  private final List<String> warnings = Collections.synchronizedList(new ArrayList<>());
+
+  public List<String> getMessages() {
+    return messages;
+  }
+
+  public List<String> getWarnings() {
+    return warnings;
+  }
+
+  public boolean hasMessage(String part) {
+    synchronized (messages) {
+      return messages.stream().anyMatch(message -> message.contains(part));
+    }
+  }
+
+  public boolean hasWarning(String part) {
+    synchronized (warnings) {
+      return warnings.stream().anyMatch(warning -> warning.contains(part));
+    }
+  }
+
+  @Override
+  public void message(String message) {
+    messages.add(message);
+  }
+
+  @Override
+  public void warning(String message) {
+    warnings.add(message);
+  }
+
+  @Override
+  public FlowLogger getFlowLogger(String flowId) {
+    return this;
+  }
+}
@@ -11,6 +11,7 @@ public class MockBuildRunnerCtx implements BuildRunnerContext {
   private Map<String, String> mockRunnerParameters = new HashMap<String, String>() {{
     put(PremergeConstants.TARGET_BRANCH, "main");
   }};
+  private Map<String, String> mockConfigParameters = new HashMap<String, String>();
 
   @Override
   public String getId() {
@@ -50,7 +51,7 @@ public class MockBuildRunnerCtx implements BuildRunnerContext {
   @NotNull
   @Override
   public Map<String, String> getConfigParameters() {
-    return null;
+    return mockConfigParameters;
   }
 
   @NotNull
@@ -71,7 +72,7 @@ public class MockBuildRunnerCtx implements BuildRunnerContext {
 
   @Override
   public void addConfigParameter(@NotNull String key, @NotNull String value) {
-
+    mockConfigParameters.put(key, value);
   }
 
   @Override
@@ -1,8 +1,10 @@
+import jetbrains.buildServer.agent.oauth.AgentTokenStorage;
 import jetbrains.buildServer.buildTriggers.vcs.git.AuthSettings;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitVersion;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentGitFacade;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentGitVcsRoot;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentPluginConfig;
+import jetbrains.buildServer.ssh.SshKnownHostsManager;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
 import org.jetbrains.annotations.NotNull;
@@ -17,7 +19,13 @@ public class MockPremergeBranchSupport extends PremergeBranchSupportImpl {
 
   public MockPremergeBranchSupport(@NotNull PremergeBuildProcess process,
                                    @NotNull VcsRoot root) throws VcsException {
-    super(process, root, "");
+    super(process, root, "", mock(AgentTokenStorage.class), process.getBuild(), mock(SshKnownHostsManager.class), process.getBuild().getBuildLogger());
+  }
+
+  private static <T> T mock(Class<T> type) {
+    return new Mockery(){{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }}.mock(type);
   }
 
   @Override
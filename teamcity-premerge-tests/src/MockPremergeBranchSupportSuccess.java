@@ -23,16 +23,51 @@ public class MockPremergeBranchSupportSuccess implements PremergeBranchSupport {
     actionSequence.add("checkouted_to_" + branch);
   }
 
+  @Override
+  public void checkoutDetached(String revision) throws VcsException {
+    actionSequence.add("detached_at_" + revision);
+  }
+
   @Override
   public void createBranch(String branch) throws VcsException {
     actionSequence.add("branch_" + branch + "_created");
   }
 
+  @Override
+  public void createBranch(String branch, String startPoint) throws VcsException {
+    actionSequence.add("branch_" + branch + "_created_at_" + startPoint);
+  }
+
+  @Override
+  public boolean isAncestor(String ancestor, String descendant) throws VcsException {
+    actionSequence.add("ancestor_" + ancestor + "_" + descendant);
+    return myProcess.isAncestor(ancestor, descendant);
+  }
+
   @Override
   public void merge(String branch) throws VcsException {
     actionSequence.add("merged_" + branch);
   }
 
+  @Nullable
+  @Override
+  public String getCachedMerge(String branch) throws VcsException {
+    actionSequence.add("cache_lookup_" + branch);
+    return null;
+  }
+
+  @Nullable
+  @Override
+  public String getPrecomputedMerge(String branch) throws VcsException {
+    actionSequence.add("precomputed_lookup_" + branch);
+    return null;
+  }
+
+  @Override
+  public void cacheMerge(String branch) throws VcsException {
+    actionSequence.add("cached_" + branch);
+  }
+
   @NotNull
   @Override
   public String constructBranchName() {
@@ -1,14 +1,24 @@
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildProgressLogger;
 import jetbrains.buildServer.agent.BuildRunnerContext;
+import jetbrains.buildServer.agent.oauth.AgentTokenStorage;
 import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManager;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.GitAgentSSHService;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.GitMetaFactory;
 import jetbrains.buildServer.buildTriggers.vcs.git.agent.PluginConfigFactory;
+import jetbrains.buildServer.ssh.SshKnownHostsManager;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
 import premerge.PremergeBranchSupport;
 import premerge.PremergeBuildProcess;
 
@@ -18,9 +28,13 @@ public class MockPremergeBuildProcess extends PremergeBuildProcess {
   private final List<Boolean> myFetchSuccess = new ArrayList<Boolean>();
   private final List<Boolean> myMergeSuccess = new ArrayList<Boolean>();
   private final List<Boolean> myAbortSuccess = new ArrayList<Boolean>();
+  private final Set<String> myAncestors = new HashSet<>();
   private int branchSupportCounter = 0;
+  private Map<String, String> myBuiltTrees = Collections.emptyMap();
+  private final List<String> myCheckedTrees = new ArrayList<>();
 
   private final List<MockPremergeBranchSupport> supports = new ArrayList<>();
+  private final List<GitPremergeBranchSupport> gitSupports = new ArrayList<>();
 
   public MockPremergeBuildProcess(@NotNull PluginConfigFactory configFactory,
                                   @NotNull GitAgentSSHService sshService,
@@ -28,7 +42,13 @@ public class MockPremergeBuildProcess extends PremergeBuildProcess {
                                   @NotNull MirrorManager mirrorManager,
                                   @NotNull AgentRunningBuild build,
                                   @NotNull BuildRunnerContext runner) {
-    super(configFactory, sshService, gitMetaFactory, mirrorManager, build, runner);
+    super(configFactory, sshService, gitMetaFactory, mirrorManager, build, runner, mock(AgentTokenStorage.class), mock(SshKnownHostsManager.class));
+  }
+
+  private static <T> T mock(Class<T> type) {
+    return new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }}.mock(type);
   }
 
   public void setFetchSuccess(boolean fetchSuccess, int num) {
@@ -54,10 +74,37 @@ public class MockPremergeBuildProcess extends PremergeBuildProcess {
     myAbortSuccess.add(num, abortSuccess);
   }
 
+  public void addAncestor(String ancestor, String descendant) {
+    myAncestors.add(ancestor + "_" + descendant);
+  }
+
+  public boolean isAncestor(String ancestor, String descendant) {
+    return myAncestors.contains(ancestor + "_" + descendant);
+  }
+
+  public void setBuiltTrees(Map<String, String> builtTrees) {
+    myBuiltTrees = builtTrees;
+  }
+
+  public List<String> getCheckedTrees() {
+    return myCheckedTrees;
+  }
+
+  @Nullable
+  @Override
+  protected String findBuiltBuild(@NotNull String mergedTrees) {
+    myCheckedTrees.add(mergedTrees);
+    return myBuiltTrees.get(mergedTrees);
+  }
+
   public List<MockPremergeBranchSupport> getSupports() {
     return supports;
   }
 
+  public List<GitPremergeBranchSupport> getGitSupports() {
+    return gitSupports;
+  }
+
   protected void setBranchSupportClass(Class<? extends PremergeBranchSupport> branchSupportClass) {
     myBranchSupportClass = branchSupportClass;
   }
@@ -70,7 +117,7 @@ public class MockPremergeBuildProcess extends PremergeBuildProcess {
     return myTestStatus;
   }
 
-  protected PremergeBranchSupport createPremergeBranchSupport(VcsRoot root, String checkoutDir) throws VcsException {
+  protected synchronized PremergeBranchSupport createPremergeBranchSupport(VcsRoot root, String checkoutDir, BuildProgressLogger logger) throws VcsException {
     if (myBranchSupportClass.equals(MockPremergeBranchSupportSuccess.class)) {
       branchSupportCounter++;
       return new MockPremergeBranchSupportSuccess(this);
@@ -84,6 +131,12 @@ public class MockPremergeBuildProcess extends PremergeBuildProcess {
       branchSupportCounter++;
       return support;
     }
+    if (myBranchSupportClass.equals(GitPremergeBranchSupport.class)) {
+      GitPremergeBranchSupport support = new GitPremergeBranchSupport(this, root, checkoutDir, logger);
+      gitSupports.add(support);
+      branchSupportCounter++;
+      return support;
+    }
     branchSupportCounter++;
     return null;
   }
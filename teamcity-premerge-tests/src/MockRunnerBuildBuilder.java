@@ -16,6 +16,12 @@ import org.jetbrains.annotations.Nullable;
 public class MockRunnerBuildBuilder {
   private int myBuildId = 0;
   private int myVcsRootsCount = 1;
+  private File myCheckoutDirectory = new File(System.getProperty("java.io.tmpdir"));
+  private BuildProgressLogger myBuildLogger = new NullBuildProgressLogger();
+  private List<VcsRootEntry> myVcsRootEntries;
+  private List<BuildRunnerSettings> myBuildRunners = Collections.emptyList();
+  private ValueResolver mySharedParametersResolver;
+  private String myBuildCurrentVersion;
 
   public MockRunnerBuildBuilder setBuildId(int buildId) {
     myBuildId = buildId;
@@ -27,14 +33,45 @@ public class MockRunnerBuildBuilder {
     return this;
   }
 
+  public MockRunnerBuildBuilder setVcsRootEntries(List<VcsRootEntry> vcsRootEntries) {
+    myVcsRootEntries = vcsRootEntries;
+    return this;
+  }
+
+  public MockRunnerBuildBuilder setBuildRunners(List<BuildRunnerSettings> buildRunners) {
+    myBuildRunners = buildRunners;
+    return this;
+  }
+
+  public MockRunnerBuildBuilder setSharedParametersResolver(ValueResolver sharedParametersResolver) {
+    mySharedParametersResolver = sharedParametersResolver;
+    return this;
+  }
+
+  public MockRunnerBuildBuilder setBuildCurrentVersion(String buildCurrentVersion) {
+    myBuildCurrentVersion = buildCurrentVersion;
+    return this;
+  }
+
+  public MockRunnerBuildBuilder setCheckoutDirectory(File checkoutDirectory) {
+    myCheckoutDirectory = checkoutDirectory;
+    return this;
+  }
+
+  public MockRunnerBuildBuilder setBuildLogger(BuildProgressLogger buildLogger) {
+    myBuildLogger = buildLogger;
+    return this;
+  }
+
   AgentRunningBuild build() {
     Map<String, String> sharedConfigParameters = new HashMap<>();
+    Map<String, String> sharedEnvironmentVariables = new HashMap<>();
 
     return new AgentRunningBuild() {
       @NotNull
       @Override
       public File getCheckoutDirectory() {
-        return null;
+        return myCheckoutDirectory;
       }
 
       @Nullable
@@ -96,19 +133,37 @@ public class MockRunnerBuildBuilder {
 
       @Override
       public void addSharedEnvironmentVariable(@NotNull String key, @NotNull String value) {
-
+        sharedEnvironmentVariables.put(key, value);
       }
 
       @NotNull
       @Override
       public BuildParametersMap getSharedBuildParameters() {
-        return null;
+        return new BuildParametersMap() {
+          @NotNull
+          @Override
+          public Map<String, String> getEnvironmentVariables() {
+            return sharedEnvironmentVariables;
+          }
+
+          @NotNull
+          @Override
+          public Map<String, String> getSystemProperties() {
+            return Collections.emptyMap();
+          }
+
+          @NotNull
+          @Override
+          public Map<String, String> getAllParameters() {
+            return sharedEnvironmentVariables;
+          }
+        };
       }
 
       @NotNull
       @Override
       public ValueResolver getSharedParametersResolver() {
-        return null;
+        return mySharedParametersResolver;
       }
 
       @NotNull
@@ -245,6 +300,8 @@ public class MockRunnerBuildBuilder {
       @NotNull
       @Override
       public List<VcsRootEntry> getVcsRootEntries() {
+        if (myVcsRootEntries != null)
+          return myVcsRootEntries;
         return new ArrayList<VcsRootEntry>() {{
           for (int i = 0; i < myVcsRootsCount; ++i) {
             add(new VcsRootEntry(new MockVcsRoot().setUrl("git@..." + i), new CheckoutRules(".")));
@@ -254,7 +311,7 @@ public class MockRunnerBuildBuilder {
 
       @Override
       public String getBuildCurrentVersion(@NotNull VcsRoot vcsRoot) {
-        return null;
+        return myBuildCurrentVersion;
       }
 
       @Override
@@ -294,7 +351,7 @@ public class MockRunnerBuildBuilder {
       @NotNull
       @Override
       public BuildProgressLogger getBuildLogger() {
-        return new NullBuildProgressLogger();
+        return myBuildLogger;
       }
 
       @NotNull
@@ -323,7 +380,7 @@ public class MockRunnerBuildBuilder {
       @NotNull
       @Override
       public List<BuildRunnerSettings> getBuildRunners() {
-        return null;
+        return myBuildRunners;
       }
 
       @NotNull
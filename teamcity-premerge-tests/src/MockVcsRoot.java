@@ -14,6 +14,11 @@ public class MockVcsRoot implements VcsRoot {
     return this;
   }
 
+  public MockVcsRoot setProperty(String name, String value) {
+    properties.put(name, value);
+    return this;
+  }
+
   @NotNull
   @Override
   public String describe(boolean verbose) {
@@ -34,7 +39,7 @@ public class MockVcsRoot implements VcsRoot {
   @NotNull
   @Override
   public String getVcsName() {
-    return null;
+    return Constants.VCS_NAME;
   }
 
   @NotNull
@@ -71,6 +71,38 @@ public class MultipleRootsTest {
     Assert.assertEquals(runningBuild.getSharedConfigParameters().get(PremergeConstants.TARGET_SHA_SHARED_PARAM + ".git@...2"), "sha");
   }
 
+  @Test
+  public void multipleVcsRootsParallelSuccess() {
+    AgentRunningBuild runningBuild = new MockRunnerBuildBuilder().setVcsRootsCount(3).setBuildId(780).build();
+    runningBuild.addSharedConfigParameter(GitUtils.getGitRootBranchParamName(
+      new VcsRootEntry(new MockVcsRoot().setUrl("git@...0"), new CheckoutRules(".")).getVcsRoot()), "refs/heads/feature_X");
+    BuildRunnerContext runnerContext = new MockBuildRunnerCtx();
+    runnerContext.addConfigParameter(PremergeConstants.PARALLEL_ROOTS_PARAM, "2");
+    MockPremergeBuildProcess process = new MockPremergeBuildProcess(configFactory,
+                                                                    sshService,
+                                                                    gitMetaFactory,
+                                                                    mirrorManager,
+                                                                    runningBuild,
+                                                                    runnerContext);
+
+    process.setBranchSupportClass(MockPremergeBranchSupport.class);
+    process.start();
+    Assert.assertEquals(process.waitFor().toString(), "FINISHED_SUCCESS");
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertEquals(process.getSupports().size(), 3);
+
+    for (int i = 0; i < process.getSupports().size(); ++i) {
+      List<String> statuses = process.getSupports().get(i).getBuilder().getSequence();
+      Assert.assertEquals(statuses.size(), 5);
+      Assert.assertEquals(statuses.get(0), "fetching");
+      Assert.assertEquals(statuses.get(3), "merging");
+      Assert.assertEquals(statuses.get(4), "verif_main");
+    }
+
+    Assert.assertEquals(runningBuild.getSharedConfigParameters().get(PremergeConstants.TARGET_SHA_SHARED_PARAM + ".git@...1"), "sha");
+    Assert.assertEquals(runningBuild.getSharedConfigParameters().get(PremergeConstants.TARGET_SHA_SHARED_PARAM + ".git@...2"), "sha");
+  }
+
   @Test
   public void multipleVcsFetchError() {
     AgentRunningBuild runningBuild = new MockRunnerBuildBuilder().setVcsRootsCount(3).setBuildId(780).build();
@@ -0,0 +1,56 @@
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import premerge.PremergeConstants;
+
+public class PartialCloneTest extends PremergeGitTestCase {
+
+  @Test
+  public void originBecomesPromisorRemote() {
+    TestGitRepository checkout = checkout("checkout");
+    MockBuildLogger logger = new MockBuildLogger();
+    MockPremergeBuildProcess process = runPremerge(checkout, logger, filterParameters());
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertEquals(checkout.git("config", "--get", "remote.origin.partialclonefilter"), "blob:none");
+    Assert.assertEquals(checkout.git("config", "--get", "remote.origin.promisor"), "true");
+    Assert.assertEquals(checkout.git("config", "--get", "extensions.partialclone"), "origin");
+    Assert.assertEquals(checkout.git("rev-parse", "HEAD^2"), mainSHA);
+    Assert.assertEquals(checkout.git("show", "HEAD:main.txt"), "main");
+    Assert.assertTrue(logger.hasMessage("Partial clone filter 'blob:none' is configured"));
+  }
+
+  @Test
+  public void promisorRemoteIsConfiguredOnce() {
+    TestGitRepository checkout = checkout("checkout");
+    runPremerge(checkout, new MockBuildLogger(), filterParameters());
+    checkout.git("checkout", "-q", "feature");
+    checkout.git("branch", "-D", PremergeConstants.PRELIMINARY_MERGE_BRANCH_PREFIX + "/780");
+
+    MockBuildLogger logger = new MockBuildLogger();
+    MockPremergeBuildProcess process = runPremerge(checkout, logger, filterParameters());
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertFalse(logger.hasMessage("Partial clone filter 'blob:none' is configured"));
+  }
+
+  @Test
+  public void filterIsIgnoredWithMirror() {
+    TestGitRepository checkout = checkout("checkout");
+    Map<String, String> parameters = filterParameters();
+    parameters.put(PremergeConstants.FETCH_VIA_MIRROR_PARAM, "true");
+    MockBuildLogger logger = new MockBuildLogger();
+    MockPremergeBuildProcess process = runPremerge(checkout, logger, parameters);
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertTrue(logger.hasWarning(PremergeConstants.PARTIAL_CLONE_FILTER_PARAM));
+    Assert.assertEquals(checkout.git("config", "--default", "", "--get", "remote.origin.partialclonefilter"), "");
+  }
+
+  private static Map<String, String> filterParameters() {
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put(PremergeConstants.PARTIAL_CLONE_FILTER_PARAM, "blob:none");
+    return parameters;
+  }
+}
@@ -0,0 +1,52 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import premerge.PremergeConstants;
+
+public class PinnedTargetTest extends PremergeGitTestCase {
+
+  @Test
+  public void presentPinnedRevisionIsNotFetched() throws Exception {
+    TestGitRepository checkout = checkout("checkout");
+    origin.commit("main.txt", "next main");
+    MockPremergeBuildProcess process = runPremerge(checkout, new MockBuildLogger(), pinParameters(), pinnedSHA(mainSHA));
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertTrue(process.getGitSupports().get(0).getSequence().stream().noneMatch(command -> command.startsWith("fetch")));
+    Assert.assertEquals(checkout.git("rev-parse", "HEAD^2"), mainSHA);
+  }
+
+  @Test
+  public void missingPinnedRevisionIsFetched() throws Exception {
+    TestGitRepository checkout = checkout("checkout");
+    String pinnedSHA = origin.commit("main.txt", "pinned main");
+    origin.commit("main.txt", "next main");
+    MockPremergeBuildProcess process = runPremerge(checkout, new MockBuildLogger(), pinParameters(), pinnedSHA(pinnedSHA));
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertEquals(process.getGitSupports().get(0).getSequence().get(0), "fetch origin +main:main");
+    Assert.assertEquals(checkout.git("rev-parse", "HEAD^2"), pinnedSHA);
+  }
+
+  @Test
+  public void pinnedRevisionIsIgnoredWhenPinningIsOff() throws Exception {
+    TestGitRepository checkout = checkout("checkout");
+    String nextMainSHA = origin.commit("main.txt", "next main");
+    MockPremergeBuildProcess process = runPremerge(checkout, new MockBuildLogger(), new HashMap<>(), pinnedSHA(mainSHA));
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertEquals(checkout.git("rev-parse", "HEAD^2"), nextMainSHA);
+  }
+
+  private static Map<String, String> pinParameters() {
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put(PremergeConstants.PIN_TARGET_PARAM, "true");
+    return parameters;
+  }
+
+  private static Map<String, String> pinnedSHA(String sha) {
+    return Collections.singletonMap(PremergeConstants.PINNED_TARGET_SHA_SHARED_PARAM + ".git@...0", sha);
+  }
+}
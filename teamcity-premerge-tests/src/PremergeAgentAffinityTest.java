@@ -0,0 +1,188 @@
+import java.util.*;
+import jetbrains.buildServer.parameters.ProcessingResult;
+import jetbrains.buildServer.parameters.ValueResolver;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.buildDistribution.AgentsFilterContext;
+import jetbrains.buildServer.serverSide.buildDistribution.AgentsFilterResult;
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.vcs.RepositoryState;
+import jetbrains.buildServer.vcs.RepositoryStateManager;
+import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.VcsRootInstance;
+import jetbrains.buildServer.vcs.VcsRootInstanceEntry;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import premerge.PremergeAgentAffinity;
+import premerge.PremergeConstants;
+
+public class PremergeAgentAffinityTest {
+  private Mockery context;
+  private Map<String, String> storedValues;
+  private Map<String, String> branchRevisions;
+  private SBuildType buildType;
+  private VcsRootInstanceEntry entry;
+  private SBuildAgent first;
+  private SBuildAgent second;
+  private SBuildAgent third;
+  private EventDispatcher<BuildServerListener> dispatcher;
+  private RepositoryStateManager repositoryStateManager;
+  private PremergeAgentAffinity affinity;
+
+  @BeforeMethod
+  public void setUp() {
+    context = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    storedValues = new HashMap<>();
+    branchRevisions = new HashMap<>();
+    branchRevisions.put("refs/heads/main", "rev2");
+
+    dispatcher = context.mock(EventDispatcher.class);
+    repositoryStateManager = context.mock(RepositoryStateManager.class);
+    RepositoryState repositoryState = context.mock(RepositoryState.class);
+    CustomDataStorage storage = context.mock(CustomDataStorage.class);
+    SBuildRunnerDescriptor runner = context.mock(SBuildRunnerDescriptor.class);
+    VcsRootInstance root = context.mock(VcsRootInstance.class);
+    VcsRoot parent = context.mock(VcsRoot.class);
+    buildType = context.mock(SBuildType.class);
+    entry = context.mock(VcsRootInstanceEntry.class);
+    first = agent(1);
+    second = agent(2);
+    third = agent(3);
+    context.checking(new Expectations() {{
+      allowing(dispatcher).addListener(with(any(BuildServerListener.class)));
+      allowing(repositoryStateManager).getRepositoryState(root); will(returnValue(repositoryState));
+      allowing(repositoryState).getBranchRevisions(); will(returnValue(branchRevisions));
+      allowing(buildType).getCustomDataStorage(with(any(String.class))); will(returnValue(storage));
+      allowing(buildType).getBuildRunners(); will(returnValue(Collections.singletonList(runner)));
+      allowing(buildType).isEnabled(with(any(String.class))); will(returnValue(true));
+      allowing(runner).getType(); will(returnValue(PremergeConstants.TYPE));
+      allowing(runner).getId(); will(returnValue("RUNNER_1"));
+      allowing(runner).getParameters(); will(returnValue(Collections.singletonMap(PremergeConstants.TARGET_BRANCH, "%target%")));
+      allowing(storage).getValues(); will(returnValue(storedValues));
+      allowing(storage).updateValues(with(any(Map.class)), with(any(Collection.class))); will(new CustomAction("update values") {
+        @Override
+        public Object invoke(Invocation invocation) {
+          storedValues.putAll((Map<String, String>)invocation.getParameter(0));
+          storedValues.keySet().removeAll((Collection<String>)invocation.getParameter(1));
+          return null;
+        }
+      });
+      allowing(storage).flush();
+      allowing(entry).getVcsRoot(); will(returnValue(root));
+      allowing(root).getVcsName(); will(returnValue(PremergeConstants.GIT_VCS_NAME));
+      allowing(root).getProperty("url"); will(returnValue("git@...0"));
+      allowing(root).getParent(); will(returnValue(parent));
+      allowing(parent).getExternalId(); will(returnValue("Root"));
+    }});
+    affinity = new PremergeAgentAffinity(dispatcher, repositoryStateManager);
+  }
+
+  @Test
+  public void agentWithCurrentRevisionIsPreferred() {
+    finishBuild(first, "rev1");
+    finishBuild(second, "rev2");
+
+    Assert.assertEquals(filter("main", "true"), Collections.singletonList(second));
+  }
+
+  @Test
+  public void agentWithOldRevisionIsPreferredOverOthers() {
+    finishBuild(first, "rev1");
+
+    Assert.assertEquals(filter("main", "true"), Collections.singletonList(first));
+  }
+
+  @Test
+  public void unknownTargetBranchDoesNotFilter() {
+    finishBuild(first, "rev2");
+
+    Assert.assertNull(filter("release", "true"));
+  }
+
+  @Test
+  public void disabledAffinityDoesNotFilter() {
+    finishBuild(first, "rev2");
+
+    Assert.assertNull(filter("main", "false"));
+  }
+
+  @Test
+  public void expiredFetchesAreIgnoredAndDropped() {
+    storedValues.put("git@...0#refs/heads/main#1", "rev2:" + (System.currentTimeMillis() - 2 * 24 * 60 * 60 * 1000L));
+    finishBuild(second, "rev1");
+
+    Assert.assertEquals(filter("main", "true"), Collections.singletonList(second));
+    Assert.assertFalse(storedValues.containsKey("git@...0#refs/heads/main#1"));
+  }
+
+  @Test
+  public void fetchesSurviveRestart() {
+    finishBuild(first, "rev2");
+    affinity = new PremergeAgentAffinity(dispatcher, repositoryStateManager);
+
+    Assert.assertEquals(filter("main", "true"), Collections.singletonList(first));
+  }
+
+  private void finishBuild(SBuildAgent agent, String targetRevision) {
+    SRunningBuild build = context.mock(SRunningBuild.class, "build" + agent.getId() + targetRevision);
+    ParametersProvider parameters = context.mock(ParametersProvider.class, "parameters" + agent.getId() + targetRevision);
+    context.checking(new Expectations() {{
+      allowing(build).getBuildType(); will(returnValue(buildType));
+      allowing(build).getParametersProvider(); will(returnValue(parameters));
+      allowing(build).getVcsRootEntries(); will(returnValue(Collections.singletonList(entry)));
+      allowing(build).getAgent(); will(returnValue(agent));
+      allowing(parameters).get(PremergeConstants.TARGET_BRANCH_SHARED_PARAM); will(returnValue("main"));
+      allowing(parameters).get(PremergeConstants.TARGET_SHA_SHARED_PARAM + ".Root"); will(returnValue(targetRevision));
+    }});
+    affinity.buildFinished(build);
+  }
+
+  /**
+   * Filters the agents for a queued build whose promotion resolves the target branch and the affinity parameter,
+   * the build configuration itself resolves neither of them.
+   */
+  private List<SBuildAgent> filter(String targetBranch, String enabled) {
+    String name = targetBranch + enabled;
+    AgentsFilterContext filterContext = context.mock(AgentsFilterContext.class, "context" + name);
+    QueuedBuildInfo queuedBuild = context.mock(QueuedBuildInfo.class, "queued" + name);
+    BuildPromotion promotion = context.mock(BuildPromotion.class, "promotion" + name);
+    ValueResolver resolver = context.mock(ValueResolver.class, "resolver" + name);
+    context.checking(new Expectations() {{
+      allowing(filterContext).getStartingBuild(); will(returnValue(queuedBuild));
+      allowing(filterContext).getAgentsForStartingBuild(); will(returnValue(Arrays.asList(first, second, third)));
+      allowing(queuedBuild).getBuildPromotionInfo(); will(returnValue(promotion));
+      allowing(promotion).getBuildType(); will(returnValue(buildType));
+      allowing(promotion).getValueResolver(); will(returnValue(resolver));
+      allowing(promotion).getVcsRootEntries(); will(returnValue(Collections.singletonList(entry)));
+      allowing(resolver).resolve("%" + PremergeConstants.AGENT_AFFINITY_PARAM + "%"); will(returnValue(resolved(enabled, name + "enabled")));
+      allowing(resolver).resolve("%target%"); will(returnValue(resolved(targetBranch, name + "target")));
+    }});
+    AgentsFilterResult result = affinity.filterAgents(filterContext);
+    return result.getFilteredConnectedAgents();
+  }
+
+  private ProcessingResult resolved(String value, String name) {
+    ProcessingResult result = context.mock(ProcessingResult.class, name);
+    context.checking(new Expectations() {{
+      allowing(result).isFullyResolved(); will(returnValue(true));
+      allowing(result).getResult(); will(returnValue(value));
+    }});
+    return result;
+  }
+
+  private SBuildAgent agent(int id) {
+    SBuildAgent agent = context.mock(SBuildAgent.class, "agent" + id);
+    context.checking(new Expectations() {{
+      allowing(agent).getId(); will(returnValue(id));
+    }});
+    return agent;
+  }
+}
@@ -0,0 +1,138 @@
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildFinishedStatus;
+import jetbrains.buildServer.agent.BuildRunnerSettings;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentPluginConfig;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.PluginConfigFactory;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.VcsRootEntry;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import premerge.PremergeBranchCleaner;
+import premerge.PremergeConstants;
+
+public class PremergeBranchCleanerTest {
+  private File tempDir;
+  private TestGitRepository repository;
+  private Mockery context;
+  private PremergeBranchCleaner cleaner;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    tempDir = TestGitRepository.createTempDir();
+    repository = TestGitRepository.init(new File(tempDir, "checkout"));
+    repository.commit("readme.txt", "readme");
+    for (int buildId = 1; buildId <= 6; ++buildId) {
+      repository.git("branch", "premerge/" + buildId);
+    }
+    repository.git("branch", "premerge/my-branch");
+    repository.git("checkout", "-q", "premerge/6");
+
+    context = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    EventDispatcher<AgentLifeCycleListener> dispatcher = context.mock(EventDispatcher.class);
+    PluginConfigFactory configFactory = context.mock(PluginConfigFactory.class);
+    AgentPluginConfig config = context.mock(AgentPluginConfig.class);
+    context.checking(new Expectations() {{
+      allowing(dispatcher).addListener(with(any(AgentLifeCycleListener.class)));
+      allowing(configFactory).createConfig(with(any(AgentRunningBuild.class)), with(any(VcsRoot.class))); will(returnValue(config));
+      allowing(config).getPathToGit(); will(returnValue("git"));
+    }});
+    cleaner = new PremergeBranchCleaner(dispatcher, configFactory);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(tempDir);
+  }
+
+  @Test
+  public void oldBranchesAreDeleted() {
+    List<String> refs = Arrays.asList("refs/heads/premerge/12", "refs/heads/premerge/7", "refs/heads/premerge/780",
+                                      "refs/heads/premerge/100", "refs/heads/premerge/my-branch");
+    Assert.assertEquals(PremergeBranchCleaner.selectBranchesToDelete(refs, 780, "refs/heads/premerge/780", 2),
+                        Collections.singletonList("refs/heads/premerge/7"));
+  }
+
+  @Test
+  public void checkedOutBranchIsKept() {
+    List<String> refs = Arrays.asList("refs/heads/premerge/1", "refs/heads/premerge/2", "refs/heads/premerge/3");
+    Assert.assertEquals(PremergeBranchCleaner.selectBranchesToDelete(refs, 3, "refs/heads/premerge/1", 0),
+                        Collections.singletonList("refs/heads/premerge/2"));
+  }
+
+  @Test
+  public void oldBranchesAreDeletedFromCheckout() {
+    MockBuildLogger logger = new MockBuildLogger();
+    finishBuild(6, "2", logger, PremergeConstants.TYPE);
+
+    Assert.assertEquals(branches(), Arrays.asList("main", "premerge/4", "premerge/5", "premerge/6", "premerge/my-branch"));
+    Assert.assertTrue(logger.hasMessage("Deleted 3 old preliminary merge branch(es)"));
+  }
+
+  @Test
+  public void tenBranchesAreKeptByDefault() {
+    finishBuild(20, null, new MockBuildLogger(), PremergeConstants.TYPE);
+
+    Assert.assertEquals(branches().size(), 8);
+  }
+
+  @Test
+  public void negativeKeepDisablesCleanup() {
+    finishBuild(6, "-1", new MockBuildLogger(), PremergeConstants.TYPE);
+
+    Assert.assertEquals(branches().size(), 8);
+  }
+
+  @Test
+  public void buildWithoutPremergeStepIsIgnored() {
+    finishBuild(6, "0", new MockBuildLogger(), "simpleRunner");
+
+    Assert.assertEquals(branches().size(), 8);
+  }
+
+  @Test
+  public void wrongKeepValueFallsBackToDefault() {
+    MockBuildLogger logger = new MockBuildLogger();
+    finishBuild(20, "many", logger, PremergeConstants.TYPE);
+
+    Assert.assertEquals(branches().size(), 8);
+    Assert.assertTrue(logger.hasWarning(PremergeConstants.KEEP_BRANCHES_PARAM));
+  }
+
+  private void finishBuild(int buildId, String keepBranches, MockBuildLogger logger, String runType) {
+    BuildRunnerSettings runner = context.mock(BuildRunnerSettings.class, "runner" + buildId + runType);
+    context.checking(new Expectations() {{
+      allowing(runner).getRunType(); will(returnValue(runType));
+    }});
+    AgentRunningBuild build = new MockRunnerBuildBuilder().setBuildId(buildId)
+                                                          .setCheckoutDirectory(tempDir)
+                                                          .setBuildLogger(logger)
+                                                          .setBuildRunners(Collections.singletonList(runner))
+                                                          .setVcsRootEntries(Arrays.asList(
+                                                            new VcsRootEntry(new MockVcsRoot().setUrl("git@...0"), new CheckoutRules("+:.=>checkout")),
+                                                            new VcsRootEntry(new MockVcsRoot().setUrl("git@...1"), new CheckoutRules("+:.=>missing"))))
+                                                          .build();
+    if (keepBranches != null) {
+      build.addSharedConfigParameter(PremergeConstants.KEEP_BRANCHES_PARAM, keepBranches);
+    }
+    cleaner.beforeBuildFinish(build, BuildFinishedStatus.FINISHED_SUCCESS);
+  }
+
+  private List<String> branches() {
+    return Arrays.asList(repository.git("for-each-ref", "--format=%(refname:short)", "refs/heads/").split("\n"));
+  }
+}
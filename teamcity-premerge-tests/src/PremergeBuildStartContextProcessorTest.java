@@ -0,0 +1,193 @@
+import java.util.*;
+import jetbrains.buildServer.parameters.ProcessingResult;
+import jetbrains.buildServer.parameters.ValueResolver;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.vcs.RepositoryState;
+import jetbrains.buildServer.vcs.RepositoryStateManager;
+import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.VcsRootInstance;
+import jetbrains.buildServer.vcs.VcsRootInstanceEntry;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import premerge.PremergeBuildStartContextProcessor;
+import premerge.PremergeConflictPredictor;
+import premerge.PremergeConstants;
+
+public class PremergeBuildStartContextProcessorTest {
+  private static final String PINNED_PARAM = PremergeConstants.PINNED_TARGET_SHA_SHARED_PARAM + ".Root";
+
+  private Mockery context;
+  private Map<String, String> branchRevisions;
+  private VcsRootInstanceEntry entry;
+  private ValueResolver resolver;
+  private PremergeBuildStartContextProcessor processor;
+
+  @BeforeMethod
+  public void setUp() {
+    context = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    branchRevisions = new HashMap<>();
+    branchRevisions.put("refs/heads/main", "rev1");
+
+    EventDispatcher<BuildServerListener> dispatcher = context.mock(EventDispatcher.class);
+    RepositoryStateManager repositoryStateManager = context.mock(RepositoryStateManager.class);
+    RepositoryState repositoryState = context.mock(RepositoryState.class);
+    PremergeConflictPredictor conflictPredictor = context.mock(PremergeConflictPredictor.class);
+    VcsRootInstance root = context.mock(VcsRootInstance.class);
+    VcsRoot parent = context.mock(VcsRoot.class);
+    entry = context.mock(VcsRootInstanceEntry.class);
+    resolver = context.mock(ValueResolver.class);
+    context.checking(new Expectations() {{
+      allowing(dispatcher).addListener(with(any(BuildServerListener.class)));
+      allowing(repositoryStateManager).getRepositoryState(root); will(returnValue(repositoryState));
+      allowing(repositoryState).getBranchRevisions(); will(returnValue(branchRevisions));
+      allowing(entry).getVcsRoot(); will(returnValue(root));
+      allowing(root).getVcsName(); will(returnValue(PremergeConstants.GIT_VCS_NAME));
+      allowing(root).getParent(); will(returnValue(parent));
+      allowing(parent).getExternalId(); will(returnValue("Root"));
+      allowing(resolver).resolve("%target%"); will(returnValue(resolved("main", "target")));
+      allowing(resolver).resolve("%" + PremergeConstants.PIN_TARGET_PARAM + "%"); will(returnValue(resolved("true", "pin")));
+      allowing(resolver).resolve("%" + PremergeConstants.PREDICT_CONFLICTS_PARAM + "%"); will(returnValue(resolved("false", "predict")));
+    }});
+    processor = new PremergeBuildStartContextProcessor(dispatcher, repositoryStateManager, conflictPredictor);
+  }
+
+  @Test
+  public void revisionIsPinnedWhenQueued() {
+    BuildPromotion build = promotion("build");
+    queue(build);
+    branchRevisions.put("refs/heads/main", "rev2");
+
+    Assert.assertEquals(start(build), "rev1");
+  }
+
+  @Test
+  public void buildQueuedWithoutPinningGetsCurrentRevision() {
+    BuildPromotion build = promotion("build");
+    branchRevisions.put("refs/heads/main", "rev2");
+
+    Assert.assertEquals(start(build), "rev2");
+  }
+
+  @Test
+  public void chainReusesRevisionOfDependency() {
+    BuildPromotion dependency = promotion("dependency");
+    queue(dependency);
+    branchRevisions.put("refs/heads/main", "rev2");
+    BuildPromotion top = promotion("top", dependency);
+    queue(top);
+
+    Assert.assertEquals(start(dependency), "rev1");
+    Assert.assertEquals(start(top), "rev1");
+  }
+
+  @Test
+  public void chainQueuedFromTopPinsDependencies() {
+    BuildPromotion dependency = promotion("dependency");
+    BuildPromotion top = promotion("top", dependency);
+    queue(top);
+    branchRevisions.put("refs/heads/main", "rev2");
+    queue(dependency);
+
+    Assert.assertEquals(start(dependency), "rev1");
+    Assert.assertEquals(start(top), "rev1");
+  }
+
+  /**
+   * Mocks a not yet started promotion with its own build configuration and custom data storage.
+   */
+  private BuildPromotion promotion(String name, BuildPromotion... dependencies) {
+    BuildPromotion promotion = context.mock(BuildPromotion.class, name);
+    SBuildType buildType = context.mock(SBuildType.class, name + "Type");
+    SBuildRunnerDescriptor runner = context.mock(SBuildRunnerDescriptor.class, name + "Runner");
+    CustomDataStorage storage = context.mock(CustomDataStorage.class, name + "Storage");
+    Map<String, String> storedValues = new HashMap<>();
+    context.checking(new Expectations() {{
+      allowing(promotion).getId(); will(returnValue((long)name.hashCode()));
+      allowing(promotion).getBuildType(); will(returnValue(buildType));
+      allowing(promotion).getValueResolver(); will(returnValue(resolver));
+      allowing(promotion).getVcsRootEntries(); will(returnValue(Collections.singletonList(entry)));
+      allowing(promotion).getAllDependencies(); will(returnValue(Arrays.asList(dependencies)));
+      allowing(promotion).getAssociatedBuild(); will(returnValue(null));
+      allowing(buildType).getBuildRunners(); will(returnValue(Collections.singletonList(runner)));
+      allowing(buildType).isEnabled(with(any(String.class))); will(returnValue(true));
+      allowing(buildType).getCustomDataStorage(with(any(String.class))); will(returnValue(storage));
+      allowing(runner).getType(); will(returnValue(PremergeConstants.TYPE));
+      allowing(runner).getId(); will(returnValue("RUNNER_1"));
+      allowing(runner).getParameters(); will(returnValue(Collections.singletonMap(PremergeConstants.TARGET_BRANCH, "%target%")));
+      allowing(storage).getValues(); will(returnValue(storedValues));
+      allowing(storage).getValue(with(any(String.class))); will(new CustomAction("get value") {
+        @Override
+        public Object invoke(Invocation invocation) {
+          return storedValues.get((String)invocation.getParameter(0));
+        }
+      });
+      allowing(storage).updateValues(with(any(Map.class)), with(any(Collection.class))); will(new CustomAction("update values") {
+        @Override
+        public Object invoke(Invocation invocation) {
+          storedValues.putAll((Map<String, String>)invocation.getParameter(0));
+          storedValues.keySet().removeAll((Collection<String>)invocation.getParameter(1));
+          return null;
+        }
+      });
+      allowing(storage).flush();
+    }});
+    return promotion;
+  }
+
+  private void queue(BuildPromotion promotion) {
+    SQueuedBuild queuedBuild = context.mock(SQueuedBuild.class, "queued" + promotion.getId());
+    context.checking(new Expectations() {{
+      allowing(queuedBuild).getBuildPromotion(); will(returnValue(promotion));
+      allowing(queuedBuild).getBuildType(); will(returnValue(promotion.getBuildType()));
+    }});
+    processor.buildTypeAddedToQueue(queuedBuild);
+  }
+
+  /**
+   * @return the pinned target revision passed to the build when it starts
+   */
+  private String start(BuildPromotion promotion) {
+    BuildStartContext startContext = context.mock(BuildStartContext.class, "start" + promotion.getId());
+    SRunningBuild build = context.mock(SRunningBuild.class, "running" + promotion.getId());
+    SRunnerContext runner = context.mock(SRunnerContext.class, "runner" + promotion.getId());
+    RunType runType = context.mock(RunType.class, "runType" + promotion.getId());
+    Map<String, String> sharedParameters = new HashMap<>();
+    context.checking(new Expectations() {{
+      allowing(startContext).getBuild(); will(returnValue(build));
+      allowing(startContext).getRunnerContexts(); will(returnValue(Collections.singletonList(runner)));
+      allowing(startContext).addSharedParameter(with(any(String.class)), with(any(String.class))); will(new CustomAction("add parameter") {
+        @Override
+        public Object invoke(Invocation invocation) {
+          sharedParameters.put((String)invocation.getParameter(0), (String)invocation.getParameter(1));
+          return null;
+        }
+      });
+      allowing(runner).getRunType(); will(returnValue(runType));
+      allowing(runner).getParameters(); will(returnValue(Collections.singletonMap(PremergeConstants.TARGET_BRANCH, "%target%")));
+      allowing(runType).getType(); will(returnValue(PremergeConstants.TYPE));
+      allowing(build).getValueResolver(); will(returnValue(resolver));
+      allowing(build).getBuildPromotion(); will(returnValue(promotion));
+      allowing(build).getVcsRootEntries(); will(returnValue(Collections.singletonList(entry)));
+    }});
+    processor.updateParameters(startContext);
+    return sharedParameters.get(PINNED_PARAM);
+  }
+
+  private ProcessingResult resolved(String value, String name) {
+    ProcessingResult result = context.mock(ProcessingResult.class, name);
+    context.checking(new Expectations() {{
+      allowing(result).isFullyResolved(); will(returnValue(true));
+      allowing(result).getResult(); will(returnValue(value));
+    }});
+    return result;
+  }
+}
@@ -61,6 +61,93 @@ public class PremergeCommadsTest {
     Assert.assertEquals(process.getTestStatus(), "fetched_main,branch_premerge_branch_created,checkouted_to_premerge_branch,merged_main,asked_parameter_main");
   }
 
+  @Test
+  public void plannedMergeTest() {
+    AgentRunningBuild runningBuild = new MockRunnerBuildBuilder().setBuildId(780).build();
+    runningBuild.addSharedConfigParameter(GitUtils.getGitRootBranchParamName(
+      new VcsRootEntry(new MockVcsRoot().setUrl("git@...0"), new CheckoutRules(".")).getVcsRoot()), "refs/heads/feature_X");
+    BuildRunnerContext runnerContext = new MockBuildRunnerCtx();
+    runnerContext.addConfigParameter(PremergeConstants.PLAN_MERGE_PARAM, "true");
+    MockPremergeBuildProcess process = new MockPremergeBuildProcess(configFactory,
+                                                                    sshService,
+                                                                    gitMetaFactory,
+                                                                    mirrorManager,
+                                                                    runningBuild,
+                                                                    runnerContext);
+
+    process.setBranchSupportClass(MockPremergeBranchSupportSuccess.class);
+    process.start();
+    process.waitFor();
+    Assert.assertEquals(process.getTestStatus(), "fetched_main,ancestor_main_HEAD,ancestor_HEAD_main,branch_premerge_branch_created,checkouted_to_premerge_branch,merged_main,asked_parameter_main");
+    Assert.assertEquals(runningBuild.getSharedConfigParameters().get(PremergeConstants.MERGE_TYPE_SHARED_PARAM + ".git@...0"), "merge");
+  }
+
+  @Test
+  public void upToDatePlannedMergeTest() {
+    AgentRunningBuild runningBuild = new MockRunnerBuildBuilder().setBuildId(780).build();
+    runningBuild.addSharedConfigParameter(GitUtils.getGitRootBranchParamName(
+      new VcsRootEntry(new MockVcsRoot().setUrl("git@...0"), new CheckoutRules(".")).getVcsRoot()), "refs/heads/feature_X");
+    BuildRunnerContext runnerContext = new MockBuildRunnerCtx();
+    runnerContext.addConfigParameter(PremergeConstants.PLAN_MERGE_PARAM, "true");
+    MockPremergeBuildProcess process = new MockPremergeBuildProcess(configFactory,
+                                                                    sshService,
+                                                                    gitMetaFactory,
+                                                                    mirrorManager,
+                                                                    runningBuild,
+                                                                    runnerContext);
+
+    process.setBranchSupportClass(MockPremergeBranchSupportSuccess.class);
+    process.addAncestor("main", "HEAD");
+    process.start();
+    process.waitFor();
+    Assert.assertEquals(process.getTestStatus(), "fetched_main,ancestor_main_HEAD,asked_parameter_main");
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertEquals(runningBuild.getSharedConfigParameters().get(PremergeConstants.MERGE_TYPE_SHARED_PARAM + ".git@...0"), "up_to_date");
+  }
+
+  @Test
+  public void fastForwardPlannedMergeTest() {
+    AgentRunningBuild runningBuild = new MockRunnerBuildBuilder().setBuildId(780).build();
+    runningBuild.addSharedConfigParameter(GitUtils.getGitRootBranchParamName(
+      new VcsRootEntry(new MockVcsRoot().setUrl("git@...0"), new CheckoutRules(".")).getVcsRoot()), "refs/heads/feature_X");
+    BuildRunnerContext runnerContext = new MockBuildRunnerCtx();
+    runnerContext.addConfigParameter(PremergeConstants.PLAN_MERGE_PARAM, "true");
+    MockPremergeBuildProcess process = new MockPremergeBuildProcess(configFactory,
+                                                                    sshService,
+                                                                    gitMetaFactory,
+                                                                    mirrorManager,
+                                                                    runningBuild,
+                                                                    runnerContext);
+
+    process.setBranchSupportClass(MockPremergeBranchSupportSuccess.class);
+    process.addAncestor("HEAD", "main");
+    process.start();
+    process.waitFor();
+    Assert.assertEquals(process.getTestStatus(), "fetched_main,ancestor_main_HEAD,ancestor_HEAD_main,branch_premerge_branch_created_at_main,checkouted_to_premerge_branch,asked_parameter_main");
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertEquals(runningBuild.getSharedConfigParameters().get(PremergeConstants.MERGE_TYPE_SHARED_PARAM + ".git@...0"), "fast_forward");
+  }
+
+  @Test
+  public void detachedHeadTest() {
+    AgentRunningBuild runningBuild = new MockRunnerBuildBuilder().setBuildId(780).build();
+    runningBuild.addSharedConfigParameter(GitUtils.getGitRootBranchParamName(
+      new VcsRootEntry(new MockVcsRoot().setUrl("git@...0"), new CheckoutRules(".")).getVcsRoot()), "refs/heads/feature_X");
+    BuildRunnerContext runnerContext = new MockBuildRunnerCtx();
+    runnerContext.addConfigParameter(PremergeConstants.DETACHED_HEAD_PARAM, "true");
+    MockPremergeBuildProcess process = new MockPremergeBuildProcess(configFactory,
+                                                                    sshService,
+                                                                    gitMetaFactory,
+                                                                    mirrorManager,
+                                                                    runningBuild,
+                                                                    runnerContext);
+
+    process.setBranchSupportClass(MockPremergeBranchSupportSuccess.class);
+    process.start();
+    process.waitFor();
+    Assert.assertEquals(process.getTestStatus(), "fetched_main,detached_at_HEAD,merged_main,asked_parameter_main");
+  }
+
   @Test
   public void cutRefsHeadsTest() {
     Assert.assertEquals(PremergeBranchSupport.cutRefsHeads("refs/heads/master"), "master");
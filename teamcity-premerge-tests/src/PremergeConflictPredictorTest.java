@@ -0,0 +1,273 @@
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.parameters.ProcessingResult;
+import jetbrains.buildServer.parameters.ValueResolver;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.vcs.*;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import premerge.PremergeConflictPredictor;
+import premerge.PremergeConstants;
+
+public class PremergeConflictPredictorTest {
+  private Mockery context;
+  private Map<String, String> branchRevisions;
+  private Map<String, List<ModificationData>> commits;
+  private List<String> collected;
+  private SBuildType buildType;
+  private BuildPromotion promotion;
+  private PremergeConflictPredictor predictor;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    context = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+      setThreadingPolicy(new Synchroniser());
+    }};
+    branchRevisions = new HashMap<>();
+    branchRevisions.put("refs/heads/feature", "source1");
+    branchRevisions.put("refs/heads/main", "target1");
+    commits = new HashMap<>();
+    collected = Collections.synchronizedList(new ArrayList<>());
+
+    EventDispatcher<BuildServerListener> dispatcher = context.mock(EventDispatcher.class);
+    RepositoryStateManager repositoryStateManager = context.mock(RepositoryStateManager.class);
+    RepositoryState repositoryState = context.mock(RepositoryState.class);
+    VcsManager vcsManager = context.mock(VcsManager.class);
+    VcsSupportContext vcsContext = context.mock(VcsSupportContext.class);
+    VcsSupportCore vcsCore = context.mock(VcsSupportCore.class);
+    CollectChangesBetweenRepositories collector = context.mock(CollectChangesBetweenRepositories.class);
+    VcsRootInstance root = context.mock(VcsRootInstance.class);
+    VcsRootInstanceEntry entry = context.mock(VcsRootInstanceEntry.class);
+    Branch branch = context.mock(Branch.class);
+    SBuildRunnerDescriptor runner = context.mock(SBuildRunnerDescriptor.class);
+    buildType = context.mock(SBuildType.class);
+    promotion = context.mock(BuildPromotion.class);
+    context.checking(new Expectations() {{
+      allowing(dispatcher).addListener(with(any(BuildServerListener.class)));
+      allowing(repositoryStateManager).getRepositoryState(root); will(returnValue(repositoryState));
+      allowing(repositoryState).getBranchRevisions(); will(returnValue(branchRevisions));
+      allowing(vcsManager).findVcsContextByName(PremergeConstants.GIT_VCS_NAME); will(returnValue(vcsContext));
+      allowing(vcsContext).getCore(); will(returnValue(vcsCore));
+      allowing(vcsCore).getCollectChangesPolicy(); will(returnValue(collector));
+      allowing(collector).collectChanges(with(any(VcsRootInstance.class)), with(any(RepositoryStateData.class)),
+                                         with(any(VcsRootInstance.class)), with(any(RepositoryStateData.class)),
+                                         with(any(CheckoutRules.class)));
+      will(new CustomAction("collect changes") {
+        @Override
+        public Object invoke(Invocation invocation) {
+          String range = revision(invocation.getParameter(1)) + ".." + revision(invocation.getParameter(3));
+          collected.add(range);
+          return commits.getOrDefault(range, Collections.emptyList());
+        }
+      });
+      allowing(root).getVcsName(); will(returnValue(PremergeConstants.GIT_VCS_NAME));
+      allowing(root).getId(); will(returnValue(1L));
+      allowing(entry).getVcsRoot(); will(returnValue(root));
+      allowing(entry).getCheckoutRules(); will(returnValue(CheckoutRules.DEFAULT));
+      allowing(branch).isDefaultBranch(); will(returnValue(false));
+      allowing(branch).getName(); will(returnValue("feature"));
+      allowing(buildType).getBuildRunners(); will(returnValue(Collections.singletonList(runner)));
+      allowing(buildType).isEnabled(with(any(String.class))); will(returnValue(true));
+      allowing(runner).getType(); will(returnValue(PremergeConstants.TYPE));
+      allowing(runner).getId(); will(returnValue("RUNNER_1"));
+      allowing(runner).getParameters(); will(returnValue(Collections.singletonMap(PremergeConstants.TARGET_BRANCH, "%target%")));
+      allowing(promotion).getVcsRootEntries(); will(returnValue(Collections.singletonList(entry)));
+      allowing(promotion).getBranch(); will(returnValue(branch));
+    }});
+    predictor = new PremergeConflictPredictor(dispatcher, repositoryStateManager, vcsManager);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    predictor.serverShutdown();
+  }
+
+  @Test
+  public void filesChangedOnBothBranchesConflict() {
+    changes(Arrays.asList("a.txt", "b.txt"), Arrays.asList("b.txt", "c.txt"));
+
+    Assert.assertEquals(predictor.predictConflicts(promotion, "refs/heads/main"), Collections.singleton("b.txt"));
+  }
+
+  @Test
+  public void predictionIsCachedForSameRevisions() {
+    changes(Collections.singletonList("a.txt"), Collections.singletonList("a.txt"));
+    predictor.predictConflicts(promotion, "refs/heads/main");
+    predictor.predictConflicts(promotion, "refs/heads/main");
+
+    Assert.assertEquals(collected.size(), 2);
+    Assert.assertEquals(predictor.getCachedConflicts(promotion, "refs/heads/main"), "a.txt");
+  }
+
+  @Test
+  public void cachedConflictsOfMovedBranchAreIgnored() {
+    changes(Collections.singletonList("a.txt"), Collections.singletonList("a.txt"));
+    predictor.predictConflicts(promotion, "refs/heads/main");
+    branchRevisions.put("refs/heads/main", "target2");
+
+    Assert.assertNull(predictor.getCachedConflicts(promotion, "refs/heads/main"));
+  }
+
+  @Test
+  public void movedTargetCollectsOnlyNewCommits() {
+    changes(Collections.singletonList("a.txt"), Collections.singletonList("b.txt"));
+    Assert.assertTrue(predictor.predictConflicts(promotion, "refs/heads/main").isEmpty());
+    collected.clear();
+    branchRevisions.put("refs/heads/main", "target2");
+    commits.put("target1..target2", Collections.singletonList(commit("t2", Collections.singletonList("a.txt"))));
+
+    Assert.assertEquals(predictor.predictConflicts(promotion, "refs/heads/main"), Collections.singleton("a.txt"));
+    Assert.assertEquals(collected, Arrays.asList("target2..target1", "target1..target2"));
+  }
+
+  @Test
+  public void movedSourceCollectsOnlyNewCommits() {
+    changes(Collections.singletonList("a.txt"), Collections.singletonList("b.txt"));
+    predictor.predictConflicts(promotion, "refs/heads/main");
+    collected.clear();
+    branchRevisions.put("refs/heads/feature", "source2");
+    commits.put("source1..source2", Collections.singletonList(commit("s2", Collections.singletonList("b.txt"))));
+
+    Assert.assertEquals(predictor.predictConflicts(promotion, "refs/heads/main"), Collections.singleton("b.txt"));
+    Assert.assertEquals(collected, Arrays.asList("source2..source1", "source1..source2"));
+  }
+
+  @Test
+  public void resetBranchIsCollectedFromScratch() {
+    changes(Collections.singletonList("a.txt"), Collections.singletonList("a.txt"));
+    predictor.predictConflicts(promotion, "refs/heads/main");
+    collected.clear();
+    branchRevisions.put("refs/heads/main", "target2");
+    commits.put("target2..target1", Collections.singletonList(commit("t1", Collections.singletonList("a.txt"))));
+    commits.put("target2..source1", Collections.singletonList(commit("s1", Collections.singletonList("a.txt"))));
+    commits.put("source1..target2", Collections.singletonList(commit("t2", Collections.singletonList("b.txt"))));
+
+    Assert.assertTrue(predictor.predictConflicts(promotion, "refs/heads/main").isEmpty());
+    Assert.assertEquals(collected, Arrays.asList("target2..target1", "target2..source1", "source1..target2"));
+  }
+
+  @Test
+  public void mergedSourceIsCollectedFromScratch() {
+    changes(Collections.singletonList("a.txt"), Collections.singletonList("a.txt"));
+    predictor.predictConflicts(promotion, "refs/heads/main");
+    collected.clear();
+    branchRevisions.put("refs/heads/main", "target2");
+    commits.put("target1..target2", Arrays.asList(commit("s1", Collections.singletonList("a.txt")),
+                                                   commit("m", Collections.emptyList())));
+
+    Assert.assertTrue(predictor.predictConflicts(promotion, "refs/heads/main").isEmpty());
+    Assert.assertEquals(collected, Arrays.asList("target2..target1", "target1..target2", "target2..source1", "source1..target2"));
+  }
+
+  @Test
+  public void queuedBuildIsRemovedByPromotionSettings() throws Exception {
+    changes(Collections.singletonList("a.txt"), Collections.singletonList("a.txt"));
+    SQueuedBuild queuedBuild = queuedBuild(false);
+    CountDownLatch removed = new CountDownLatch(1);
+    List<String> comments = Collections.synchronizedList(new ArrayList<>());
+    context.checking(new Expectations() {{
+      oneOf(queuedBuild).removeFromQueue(with(aNull(User.class)), with(any(String.class))); will(new CustomAction("remove") {
+        @Override
+        public Object invoke(Invocation invocation) {
+          comments.add((String)invocation.getParameter(1));
+          removed.countDown();
+          return null;
+        }
+      });
+    }});
+
+    predictor.buildTypeAddedToQueue(queuedBuild);
+
+    Assert.assertTrue(removed.await(10, TimeUnit.SECONDS));
+    Assert.assertEquals(comments, Collections.singletonList("Preliminary merge with 'refs/heads/main' would conflict in a.txt"));
+  }
+
+  @Test
+  public void buildTriggeredByUserIsOnlyFlagged() throws Exception {
+    changes(Collections.singletonList("a.txt"), Collections.singletonList("a.txt"));
+    SQueuedBuild queuedBuild = queuedBuild(true);
+    context.checking(new Expectations() {{
+      never(queuedBuild).removeFromQueue(with(aNull(User.class)), with(any(String.class)));
+    }});
+
+    predictor.buildTypeAddedToQueue(queuedBuild);
+
+    long deadline = System.currentTimeMillis() + 10000;
+    while (predictor.getCachedConflicts(promotion, "refs/heads/main") == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    Assert.assertEquals(predictor.getCachedConflicts(promotion, "refs/heads/main"), "a.txt");
+    // the decision to remove the build follows caching of the prediction
+    Thread.sleep(200);
+    context.assertIsSatisfied();
+  }
+
+  /**
+   * Mocks an automatically triggered or a user-triggered build queued in the skip mode.
+   */
+  private SQueuedBuild queuedBuild(boolean triggeredByUser) {
+    SQueuedBuild queuedBuild = context.mock(SQueuedBuild.class);
+    TriggeredBy triggeredBy = context.mock(TriggeredBy.class);
+    ValueResolver resolver = context.mock(ValueResolver.class);
+    context.checking(new Expectations() {{
+      allowing(queuedBuild).getBuildType(); will(returnValue(buildType));
+      allowing(queuedBuild).getBuildPromotion(); will(returnValue(promotion));
+      allowing(queuedBuild).isPersonal(); will(returnValue(false));
+      allowing(queuedBuild).getTriggeredBy(); will(returnValue(triggeredBy));
+      allowing(triggeredBy).isTriggeredByUser(); will(returnValue(triggeredByUser));
+      allowing(promotion).getDependedOnMe(); will(returnValue(Collections.emptyList()));
+      allowing(promotion).getRevisions(); will(returnValue(Collections.emptyList()));
+      allowing(promotion).getValueResolver(); will(returnValue(resolver));
+      allowing(resolver).resolve("%" + PremergeConstants.PREDICT_CONFLICTS_PARAM + "%"); will(returnValue(resolved(PremergeConstants.PREDICT_CONFLICTS_SKIP, "mode")));
+      allowing(resolver).resolve("%target%"); will(returnValue(resolved("main", "target")));
+    }});
+    return queuedBuild;
+  }
+
+  private void changes(List<String> sourceFiles, List<String> targetFiles) {
+    commits.put("target1..source1", Collections.singletonList(commit("s1", sourceFiles)));
+    commits.put("source1..target1", Collections.singletonList(commit("t1", targetFiles)));
+  }
+
+  private ModificationData commit(String version, List<String> files) {
+    ModificationData modification = context.mock(ModificationData.class, "modification" + version + commits.size());
+    List<VcsChange> changes = new ArrayList<>();
+    for (String file : files) {
+      VcsChange change = context.mock(VcsChange.class, "change" + version + commits.size() + file);
+      context.checking(new Expectations() {{
+        allowing(change).getRelativeFileName(); will(returnValue(file));
+      }});
+      changes.add(change);
+    }
+    context.checking(new Expectations() {{
+      allowing(modification).getVersion(); will(returnValue(version));
+      allowing(modification).getChanges(); will(returnValue(changes));
+    }});
+    return modification;
+  }
+
+  private static String revision(Object state) {
+    return ((RepositoryStateData)state).getBranchRevisions().values().iterator().next();
+  }
+
+  private ProcessingResult resolved(String value, String name) {
+    ProcessingResult result = context.mock(ProcessingResult.class, name);
+    context.checking(new Expectations() {{
+      allowing(result).isFullyResolved(); will(returnValue(true));
+      allowing(result).getResult(); will(returnValue(value));
+    }});
+    return result;
+  }
+}
@@ -0,0 +1,127 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildRunnerContext;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitUtils;
+import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManager;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.GitAgentSSHService;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.GitMetaFactory;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.PluginConfigFactory;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.VcsRootEntry;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+
+/**
+ * Runs the preliminary merge step against real repositories: 'origin' has 'main' and 'feature'
+ * branches, 'main' has a commit which is not in 'feature', builds check out 'feature' from 'origin'.
+ */
+public abstract class PremergeGitTestCase {
+  protected File tempDir;
+  protected File mirrorDir;
+  protected TestGitRepository origin;
+  protected String featureSHA;
+  protected String mainSHA;
+  /**
+   * Merged trees known to the server, by trees key
+   */
+  protected Map<String, String> builtTrees;
+
+  private Mockery context;
+  private MirrorManager mirrorManager;
+  private PluginConfigFactory configFactory;
+  private GitAgentSSHService sshService;
+  private GitMetaFactory gitMetaFactory;
+
+  @BeforeMethod
+  public void createRepositories() throws IOException {
+    tempDir = TestGitRepository.createTempDir();
+    mirrorDir = new File(tempDir, "mirror");
+    builtTrees = new HashMap<>();
+    origin = TestGitRepository.init(new File(tempDir, "origin"));
+    origin.git("config", "uploadpack.allowFilter", "true");
+    origin.commit("readme.txt", "readme");
+    origin.git("checkout", "-q", "-b", "feature");
+    featureSHA = origin.commit("feature.txt", "feature");
+    origin.git("checkout", "-q", "main");
+    mainSHA = origin.commit("main.txt", "main");
+
+    context = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+      setThreadingPolicy(new Synchroniser());
+    }};
+    mirrorManager = context.mock(MirrorManager.class);
+    configFactory = context.mock(PluginConfigFactory.class);
+    sshService = context.mock(GitAgentSSHService.class);
+    gitMetaFactory = context.mock(GitMetaFactory.class);
+    context.checking(new Expectations() {{
+      allowing(mirrorManager).getMirrorDir(with(any(String.class))); will(returnValue(mirrorDir));
+    }});
+  }
+
+  @AfterMethod
+  public void deleteRepositories() {
+    FileUtil.delete(tempDir);
+  }
+
+  protected TestGitRepository checkout(String name, String... options) {
+    String[] cloneOptions = new String[options.length + 2];
+    cloneOptions[0] = "--branch";
+    cloneOptions[1] = "feature";
+    System.arraycopy(options, 0, cloneOptions, 2, options.length);
+    return TestGitRepository.cloneOf(origin, new File(tempDir, name), cloneOptions);
+  }
+
+  protected MockPremergeBuildProcess runPremerge(TestGitRepository checkout, MockBuildLogger logger, Map<String, String> parameters) {
+    return runPremerge(checkout, logger, parameters, Collections.emptyMap());
+  }
+
+  protected MockPremergeBuildProcess runPremerge(TestGitRepository checkout,
+                                                 MockBuildLogger logger,
+                                                 Map<String, String> parameters,
+                                                 Map<String, String> sharedParameters) {
+    VcsRootEntry entry = new VcsRootEntry(new MockVcsRoot().setUrl("git@...0"), new CheckoutRules("."));
+    return runPremerge(checkout.getDir(), Collections.singletonList(entry), logger, parameters, sharedParameters);
+  }
+
+  /**
+   * Runs the step in a build with the given roots, each of them checks out 'feature'.
+   */
+  protected MockPremergeBuildProcess runPremerge(File checkoutDirectory,
+                                                 List<VcsRootEntry> entries,
+                                                 MockBuildLogger logger,
+                                                 Map<String, String> parameters,
+                                                 Map<String, String> sharedParameters) {
+    AgentRunningBuild runningBuild = new MockRunnerBuildBuilder().setBuildId(780)
+                                                                 .setCheckoutDirectory(checkoutDirectory)
+                                                                 .setVcsRootEntries(entries)
+                                                                 .setBuildLogger(logger)
+                                                                 .build();
+    for (VcsRootEntry entry : entries) {
+      runningBuild.addSharedConfigParameter(GitUtils.getGitRootBranchParamName(entry.getVcsRoot()), "refs/heads/feature");
+    }
+    sharedParameters.forEach(runningBuild::addSharedConfigParameter);
+    BuildRunnerContext runnerContext = new MockBuildRunnerCtx();
+    parameters.forEach(runnerContext::addConfigParameter);
+    MockPremergeBuildProcess process = new MockPremergeBuildProcess(configFactory,
+                                                                    sshService,
+                                                                    gitMetaFactory,
+                                                                    mirrorManager,
+                                                                    runningBuild,
+                                                                    runnerContext);
+    process.setBranchSupportClass(GitPremergeBranchSupport.class);
+    process.setBuiltTrees(builtTrees);
+    process.start();
+    process.waitFor();
+    return process;
+  }
+}
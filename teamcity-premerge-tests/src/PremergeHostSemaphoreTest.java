@@ -0,0 +1,104 @@
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import premerge.PremergeHostSemaphore;
+
+public class PremergeHostSemaphoreTest {
+  private File lockDir;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    lockDir = new File(TestGitRepository.createTempDir(), "locks");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(lockDir.getParentFile());
+  }
+
+  @Test
+  public void permitsAreTakenUpToLimit() throws Exception {
+    MockBuildLogger logger = new MockBuildLogger();
+    try (PremergeHostSemaphore.Permit ignored1 = PremergeHostSemaphore.acquire(lockDir, PremergeHostSemaphore.FETCH, 2, logger);
+         PremergeHostSemaphore.Permit ignored2 = PremergeHostSemaphore.acquire(lockDir, PremergeHostSemaphore.FETCH, 2, logger)) {
+      Assert.assertTrue(new File(lockDir, "fetch.0.lock").isFile());
+      Assert.assertTrue(new File(lockDir, "fetch.1.lock").isFile());
+    }
+    Assert.assertTrue(logger.getMessages().isEmpty());
+  }
+
+  @Test
+  public void acquireWaitsForReleasedPermit() throws Exception {
+    PremergeHostSemaphore.Permit held = PremergeHostSemaphore.acquire(lockDir, PremergeHostSemaphore.MERGE, 1, null);
+    MockBuildLogger logger = new MockBuildLogger();
+    CountDownLatch acquired = new CountDownLatch(1);
+    AtomicReference<Exception> error = new AtomicReference<>();
+    Thread waiter = new Thread(() -> {
+      try (PremergeHostSemaphore.Permit ignored = PremergeHostSemaphore.acquire(lockDir, PremergeHostSemaphore.MERGE, 1, logger)) {
+        acquired.countDown();
+      } catch (VcsException e) {
+        error.set(e);
+      }
+    });
+    waiter.start();
+
+    Assert.assertFalse(acquired.await(500, TimeUnit.MILLISECONDS));
+    Assert.assertTrue(logger.hasMessage("All 1 host merge slots are busy"));
+    held.close();
+    Assert.assertTrue(acquired.await(10, TimeUnit.SECONDS));
+    waiter.join();
+    Assert.assertNull(error.get());
+  }
+
+  @Test
+  public void kindsHaveSeparateSlots() throws Exception {
+    try (PremergeHostSemaphore.Permit ignored = PremergeHostSemaphore.acquire(lockDir, PremergeHostSemaphore.FETCH, 1, null)) {
+      CountDownLatch acquired = new CountDownLatch(1);
+      Thread merge = new Thread(() -> {
+        try (PremergeHostSemaphore.Permit ignored2 = PremergeHostSemaphore.acquire(lockDir, PremergeHostSemaphore.MERGE, 1, null)) {
+          acquired.countDown();
+        } catch (VcsException e) {
+          // the latch is not released
+        }
+      });
+      merge.start();
+      Assert.assertTrue(acquired.await(10, TimeUnit.SECONDS));
+      merge.join();
+    }
+  }
+
+  @Test
+  public void closedPermitIsTakenAgain() throws Exception {
+    PremergeHostSemaphore.acquire(lockDir, PremergeHostSemaphore.FETCH, 1, null).close();
+    MockBuildLogger logger = new MockBuildLogger();
+    try (PremergeHostSemaphore.Permit ignored = PremergeHostSemaphore.acquire(lockDir, PremergeHostSemaphore.FETCH, 1, logger)) {
+      Assert.assertTrue(logger.getMessages().isEmpty());
+    }
+  }
+
+  @Test
+  public void interruptedWaitFails() throws Exception {
+    try (PremergeHostSemaphore.Permit ignored = PremergeHostSemaphore.acquire(lockDir, PremergeHostSemaphore.FETCH, 1, null)) {
+      AtomicReference<Exception> error = new AtomicReference<>();
+      Thread waiter = new Thread(() -> {
+        try {
+          PremergeHostSemaphore.acquire(lockDir, PremergeHostSemaphore.FETCH, 1, null).close();
+        } catch (VcsException e) {
+          error.set(e);
+        }
+      });
+      waiter.start();
+      Thread.sleep(300);
+      waiter.interrupt();
+      waiter.join();
+      Assert.assertNotNull(error.get());
+    }
+  }
+}
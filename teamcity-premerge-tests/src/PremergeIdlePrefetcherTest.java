@@ -0,0 +1,137 @@
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.agent.BuildFinishedStatus;
+import jetbrains.buildServer.agent.oauth.AgentTokenStorage;
+import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManager;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentPluginConfig;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.PluginConfigFactory;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import premerge.PremergeConstants;
+import premerge.PremergeIdlePrefetcher;
+
+public class PremergeIdlePrefetcherTest {
+  private File tempDir;
+  private TestGitRepository origin;
+  private File mirrorDir;
+  private String nextMainSHA;
+  private Map<String, String> agentParameters;
+  private TestIdlePrefetcher prefetcher;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    tempDir = TestGitRepository.createTempDir();
+    origin = TestGitRepository.init(new File(tempDir, "origin"));
+    origin.commit("readme.txt", "readme");
+    mirrorDir = new File(tempDir, "mirror");
+    TestGitRepository.run(tempDir, "clone", "-q", "--bare", origin.getUrl(), mirrorDir.getAbsolutePath());
+    nextMainSHA = origin.commit("main.txt", "main");
+
+    agentParameters = new HashMap<>();
+    agentParameters.put(PremergeIdlePrefetcher.INTERVAL_MINUTES_PARAM, "1");
+
+    Mockery context = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+      setThreadingPolicy(new Synchroniser());
+    }};
+    EventDispatcher<AgentLifeCycleListener> dispatcher = context.mock(EventDispatcher.class);
+    BuildAgentConfiguration agentConfiguration = context.mock(BuildAgentConfiguration.class);
+    PluginConfigFactory configFactory = context.mock(PluginConfigFactory.class);
+    AgentPluginConfig config = context.mock(AgentPluginConfig.class);
+    MirrorManager mirrorManager = context.mock(MirrorManager.class);
+    context.checking(new Expectations() {{
+      allowing(dispatcher).addListener(with(any(AgentLifeCycleListener.class)));
+      allowing(agentConfiguration).getConfigurationParameters(); will(returnValue(agentParameters));
+      allowing(configFactory).createConfig(with(any(AgentRunningBuild.class)), with(any(VcsRoot.class))); will(returnValue(config));
+      allowing(config).getPathToGit(); will(returnValue("git"));
+      allowing(mirrorManager).getMirrorDir(origin.getUrl()); will(returnValue(mirrorDir));
+      allowing(mirrorManager).getMirrorDir(with(any(String.class))); will(returnValue(new File(tempDir, "other-mirror")));
+    }});
+    prefetcher = new TestIdlePrefetcher(dispatcher, agentConfiguration, configFactory, mirrorManager, context.mock(AgentTokenStorage.class));
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(tempDir);
+  }
+
+  @Test
+  public void targetIsFetchedByStepFetchUrl() {
+    finishBuild();
+    prefetcher.tick();
+
+    Assert.assertEquals(TestGitRepository.run(mirrorDir, "rev-parse", "refs/heads/main"), nextMainSHA);
+    Assert.assertFalse(new File(tempDir, "other-mirror").exists());
+  }
+
+  @Test
+  public void nothingIsFetchedWhileBuildRuns() {
+    finishBuild();
+    prefetcher.buildStarted(new MockRunnerBuildBuilder().setBuildId(2).build());
+    prefetcher.tick();
+
+    Assert.assertNotEquals(TestGitRepository.run(mirrorDir, "rev-parse", "refs/heads/main"), nextMainSHA);
+  }
+
+  @Test
+  public void missingMirrorIsNotCreated() {
+    FileUtil.delete(mirrorDir);
+    finishBuild();
+    prefetcher.tick();
+
+    Assert.assertFalse(mirrorDir.exists());
+  }
+
+  @Test
+  public void nothingIsFetchedWithoutInterval() {
+    agentParameters.remove(PremergeIdlePrefetcher.INTERVAL_MINUTES_PARAM);
+    finishBuild();
+    agentParameters.put(PremergeIdlePrefetcher.INTERVAL_MINUTES_PARAM, "1");
+    prefetcher.tick();
+
+    Assert.assertNotEquals(TestGitRepository.run(mirrorDir, "rev-parse", "refs/heads/main"), nextMainSHA);
+  }
+
+  private void finishBuild() {
+    AgentRunningBuild build = new MockRunnerBuildBuilder().setBuildId(1).build();
+    build.addSharedConfigParameter(PremergeConstants.TARGET_BRANCH_SHARED_PARAM, "main");
+    prefetcher.buildStarted(build);
+    prefetcher.buildFinished(build, BuildFinishedStatus.FINISHED_SUCCESS);
+  }
+
+  private class TestIdlePrefetcher extends PremergeIdlePrefetcher {
+    TestIdlePrefetcher(EventDispatcher<AgentLifeCycleListener> dispatcher,
+                       BuildAgentConfiguration agentConfiguration,
+                       PluginConfigFactory configFactory,
+                       MirrorManager mirrorManager,
+                       AgentTokenStorage tokenStorage) {
+      super(dispatcher, agentConfiguration, configFactory, mirrorManager, tokenStorage);
+    }
+
+    @NotNull
+    @Override
+    protected String getFetchUrl(@NotNull AgentRunningBuild build, @NotNull VcsRoot root) {
+      // the VCS root's own 'url' property is "git@...0", the step fetches from the resolved URL
+      return origin.getUrl();
+    }
+
+    @Override
+    protected void tick() {
+      super.tick();
+    }
+  }
+}
@@ -0,0 +1,139 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import premerge.PremergeGitCommandLine;
+import premerge.PremergeMergeCache;
+
+public class PremergeMergeCacheTest {
+  private File tempDir;
+  private TestGitRepository repository;
+  private String[] commits;
+
+  @BeforeMethod
+  public void createRepository() throws IOException {
+    tempDir = TestGitRepository.createTempDir();
+    repository = TestGitRepository.init(new File(tempDir, "repository"));
+    commits = new String[4];
+    for (int i = 0; i < commits.length; i++) {
+      commits[i] = repository.commit("file.txt", "content " + i);
+    }
+  }
+
+  @AfterMethod
+  public void deleteRepository() {
+    FileUtil.delete(tempDir);
+  }
+
+  @Test
+  public void findTest() throws Exception {
+    PremergeMergeCache cache = createCache(10, 7);
+    Assert.assertNull(cache.find(commits[0], commits[1]));
+
+    cache.put(commits[0], commits[1], commits[2]);
+    Assert.assertEquals(cache.find(commits[0], commits[1]), commits[2]);
+    Assert.assertNull(cache.find(commits[1], commits[0]));
+    Assert.assertEquals(createCache(10, 7).find(commits[0], commits[1]), commits[2]);
+  }
+
+  @Test
+  public void leastRecentlyUsedIsEvicted() throws Exception {
+    PremergeMergeCache cache = createCache(2, 7);
+    cache.put(commits[0], commits[1], commits[3]);
+    Thread.sleep(10);
+    cache.put(commits[1], commits[2], commits[3]);
+    Thread.sleep(10);
+    Assert.assertNotNull(cache.find(commits[0], commits[1]));
+    Thread.sleep(10);
+    cache.put(commits[2], commits[0], commits[3]);
+
+    Assert.assertNotNull(cache.find(commits[0], commits[1]));
+    Assert.assertNull(cache.find(commits[1], commits[2]));
+    Assert.assertNotNull(cache.find(commits[2], commits[0]));
+    Assert.assertFalse(loadIndex().stringPropertyNames().contains(key(1, 2)));
+  }
+
+  @Test
+  public void oldEntriesAreEvicted() throws Exception {
+    PremergeMergeCache cache = createCache(10, 7);
+    cache.put(commits[0], commits[1], commits[3]);
+    cache.put(commits[1], commits[2], commits[3]);
+    Properties index = loadIndex();
+    index.setProperty(key(0, 1), String.valueOf(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(8)));
+    saveIndex(index);
+
+    cache.put(commits[2], commits[0], commits[3]);
+
+    Assert.assertNull(cache.find(commits[0], commits[1]));
+    Assert.assertNotNull(cache.find(commits[1], commits[2]));
+    Assert.assertNotNull(cache.find(commits[2], commits[0]));
+  }
+
+  @Test
+  public void brokenAccessTimeIsEvictedFirst() throws Exception {
+    PremergeMergeCache cache = createCache(2, 7);
+    cache.put(commits[0], commits[1], commits[3]);
+    cache.put(commits[1], commits[2], commits[3]);
+    Properties index = loadIndex();
+    index.setProperty(key(1, 2), "broken");
+    saveIndex(index);
+
+    cache.put(commits[2], commits[0], commits[3]);
+
+    Assert.assertNotNull(cache.find(commits[0], commits[1]));
+    Assert.assertNull(cache.find(commits[1], commits[2]));
+  }
+
+  @Test
+  public void mergeModesAreCachedSeparately() throws Exception {
+    createCache(10, 7).put(commits[0], commits[1], commits[2]);
+
+    Assert.assertNull(createCache(true).find(commits[0], commits[1]));
+    createCache(true).put(commits[0], commits[1], commits[3]);
+    Assert.assertEquals(createCache(true).find(commits[0], commits[1]), commits[3]);
+    Assert.assertEquals(createCache(10, 7).find(commits[0], commits[1]), commits[2]);
+  }
+
+  @Test
+  public void entriesWithoutModeAreNotFound() throws Exception {
+    repository.git("update-ref", "refs/premerge-cache/" + commits[0] + "/" + commits[1], commits[2]);
+
+    Assert.assertNull(createCache(10, 7).find(commits[0], commits[1]));
+    Assert.assertNull(createCache(true).find(commits[0], commits[1]));
+  }
+
+  private PremergeMergeCache createCache(int maxEntries, int maxAgeDays) {
+    return new PremergeMergeCache(new PremergeGitCommandLine("git", repository.getDir()), new File(repository.getDir(), ".git"), false, maxEntries, maxAgeDays);
+  }
+
+  private PremergeMergeCache createCache(boolean deterministic) {
+    return new PremergeMergeCache(new PremergeGitCommandLine("git", repository.getDir()), new File(repository.getDir(), ".git"), deterministic, 10, 7);
+  }
+
+  private String key(int source, int target) {
+    return "merge/" + commits[source] + "/" + commits[target];
+  }
+
+  private Properties loadIndex() throws IOException {
+    Properties index = new Properties();
+    try (InputStream in = new FileInputStream(new File(repository.getDir(), ".git/premerge-cache.properties"))) {
+      index.load(in);
+    }
+    return index;
+  }
+
+  private void saveIndex(Properties index) throws IOException {
+    try (OutputStream out = new FileOutputStream(new File(repository.getDir(), ".git/premerge-cache.properties"))) {
+      index.store(out, null);
+    }
+  }
+}
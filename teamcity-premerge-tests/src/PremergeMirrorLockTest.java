@@ -0,0 +1,211 @@
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import premerge.PremergeMirrorLock;
+
+public class PremergeMirrorLockTest {
+  private static final long OLD = TimeUnit.MINUTES.toMillis(30);
+
+  private File tempDir;
+  private File mirrorDir;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    tempDir = TestGitRepository.createTempDir();
+    mirrorDir = new File(tempDir, "mirror");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(tempDir);
+  }
+
+  @Test
+  public void secondThreadWaitsForFirst() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Thread holder = holdLock(release);
+    long startTime = System.currentTimeMillis();
+    Thread releaser = new Thread(() -> {
+      sleep(300);
+      release.countDown();
+    });
+    releaser.start();
+
+    MockBuildLogger logger = new MockBuildLogger();
+    try (PremergeMirrorLock lock = PremergeMirrorLock.acquire(mirrorDir, 10000, logger)) {
+      Assert.assertTrue(lock.isHostWide());
+      Assert.assertTrue(System.currentTimeMillis() - startTime >= 300);
+    }
+    Assert.assertTrue(logger.getWarnings().isEmpty());
+    holder.join();
+  }
+
+  @Test
+  public void inProcessTimeoutProceedsWithoutLock() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Thread holder = holdLock(release);
+
+    MockBuildLogger logger = new MockBuildLogger();
+    try (PremergeMirrorLock lock = PremergeMirrorLock.acquire(mirrorDir, 200, logger)) {
+      Assert.assertFalse(lock.isHostWide());
+    }
+    Assert.assertTrue(logger.hasWarning("locked by another build of the agent"));
+
+    release.countDown();
+    holder.join();
+    try (PremergeMirrorLock lock = PremergeMirrorLock.acquire(mirrorDir, 200, null)) {
+      Assert.assertTrue(lock.isHostWide());
+    }
+  }
+
+  @Test
+  public void fileLockOfAnotherChannelProceedsWithInProcessLock() throws Exception {
+    Assert.assertTrue(mirrorDir.mkdirs());
+    MockBuildLogger logger = new MockBuildLogger();
+    try (FileChannel channel = FileChannel.open(new File(mirrorDir, "premerge.lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+         FileLock ignored = channel.lock()) {
+      try (PremergeMirrorLock lock = PremergeMirrorLock.acquire(mirrorDir, 200, logger)) {
+        Assert.assertFalse(lock.isHostWide());
+      }
+    }
+    Assert.assertTrue(logger.hasWarning("locked by another process"));
+
+    try (PremergeMirrorLock lock = PremergeMirrorLock.acquire(mirrorDir, 200, null)) {
+      Assert.assertTrue(lock.isHostWide());
+    }
+  }
+
+  @Test
+  public void staleLocksOfFetchAreRemoved() throws Exception {
+    File packedRefsLock = lockFile("packed-refs.lock", OLD);
+    File foreignLock = lockFile("premerge-other.lock", OLD);
+    File branchLock = lockFile("refs/heads/main.lock", OLD);
+    File otherBranchLock = lockFile("refs/heads/other.lock", OLD);
+    File freshBranchLock = lockFile("refs/heads/fresh.lock", 0);
+
+    try (PremergeMirrorLock lock = PremergeMirrorLock.acquire(mirrorDir, 200, null)) {
+      lock.removeStaleRefLock("main");
+      lock.removeStaleRefLock("refs/heads/fresh");
+    }
+
+    Assert.assertFalse(packedRefsLock.exists());
+    Assert.assertFalse(branchLock.exists());
+    Assert.assertTrue(foreignLock.exists());
+    Assert.assertTrue(otherBranchLock.exists());
+    Assert.assertTrue(freshBranchLock.exists());
+  }
+
+  @Test
+  public void refLocksAreKeptWithoutFileLock() throws Exception {
+    File branchLock = lockFile("refs/heads/main.lock", OLD);
+    try (FileChannel channel = FileChannel.open(new File(mirrorDir, "premerge.lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+         FileLock ignored = channel.lock();
+         PremergeMirrorLock lock = PremergeMirrorLock.acquire(mirrorDir, 200, null)) {
+      lock.removeStaleRefLock("main");
+    }
+
+    Assert.assertTrue(branchLock.exists());
+  }
+
+  @Test
+  public void fetchStartedAfterRequestIsReused() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Thread holder = holdLock(release);
+    Thread fetcher = new Thread(() -> {
+      try (PremergeMirrorLock lock = PremergeMirrorLock.acquire(mirrorDir, 10000, null)) {
+        lock.markFetched("main");
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    fetcher.start();
+    sleep(100);
+    boolean[] reused = new boolean[2];
+    Thread waiter = new Thread(() -> {
+      try (PremergeMirrorLock lock = PremergeMirrorLock.acquire(mirrorDir, 10000, null)) {
+        reused[0] = lock.isFetchedSinceRequested("main");
+        reused[1] = lock.isFetchedSinceRequested("other");
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    waiter.start();
+    sleep(100);
+
+    release.countDown();
+    holder.join();
+    fetcher.join();
+    waiter.join();
+    Assert.assertTrue(reused[0]);
+    Assert.assertFalse(reused[1]);
+  }
+
+  @Test
+  public void fetchStartedBeforeRequestIsNotReused() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch fetched = new CountDownLatch(1);
+    Thread holder = new Thread(() -> {
+      try (PremergeMirrorLock lock = PremergeMirrorLock.acquire(mirrorDir, 10000, null)) {
+        lock.markFetched("main");
+        fetched.countDown();
+        release.await();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    holder.start();
+    Assert.assertTrue(fetched.await(10, TimeUnit.SECONDS));
+    Thread releaser = new Thread(() -> {
+      sleep(100);
+      release.countDown();
+    });
+    releaser.start();
+
+    try (PremergeMirrorLock lock = PremergeMirrorLock.acquire(mirrorDir, 10000, null)) {
+      Assert.assertFalse(lock.isFetchedSinceRequested("main"));
+    }
+    holder.join();
+  }
+
+  /**
+   * Starts a thread which takes the lock and holds it until the latch is released.
+   */
+  private Thread holdLock(CountDownLatch release) throws InterruptedException {
+    CountDownLatch locked = new CountDownLatch(1);
+    Thread holder = new Thread(() -> {
+      try (PremergeMirrorLock ignored = PremergeMirrorLock.acquire(mirrorDir, 10000, null)) {
+        locked.countDown();
+        release.await();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    holder.start();
+    Assert.assertTrue(locked.await(10, TimeUnit.SECONDS));
+    return holder;
+  }
+
+  private File lockFile(String path, long age) throws Exception {
+    File file = new File(mirrorDir, path);
+    Assert.assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+    Assert.assertTrue(file.createNewFile());
+    Assert.assertTrue(file.setLastModified(System.currentTimeMillis() - age));
+    return file;
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
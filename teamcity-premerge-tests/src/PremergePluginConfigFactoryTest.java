@@ -0,0 +1,131 @@
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildAgent;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.buildTriggers.vcs.git.Constants;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitVersion;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentPluginConfig;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.GitDetector;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.GitExec;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.PluginConfigFactory;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import premerge.PremergeConstants;
+import premerge.PremergePluginConfigFactory;
+
+public class PremergePluginConfigFactoryTest {
+  private Mockery context;
+  private PluginConfigFactory delegate;
+  private GitDetector gitDetector;
+  private PremergePluginConfigFactory factory;
+
+  @BeforeMethod
+  public void setUp() {
+    context = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    delegate = context.mock(PluginConfigFactory.class);
+    gitDetector = context.mock(GitDetector.class);
+    BuildAgentConfiguration agentConfig = context.mock(BuildAgentConfiguration.class);
+    EventDispatcher<AgentLifeCycleListener> dispatcher = context.mock(EventDispatcher.class);
+    context.checking(new Expectations() {{
+      allowing(dispatcher).addListener(with(any(AgentLifeCycleListener.class)));
+    }});
+    factory = new PremergePluginConfigFactory(delegate, gitDetector, agentConfig, dispatcher);
+  }
+
+  @Test
+  public void gitIsDetectedOncePerAgent() throws Exception {
+    AgentRunningBuild first = build(1, true);
+    AgentRunningBuild second = build(2, true);
+    context.checking(new Expectations() {{
+      oneOf(gitDetector).getGitPathAndVersion(with(any(VcsRoot.class)), with(any(BuildAgentConfiguration.class)), with(any(AgentRunningBuild.class)));
+      will(returnValue(gitExec("/usr/bin/git")));
+    }});
+
+    AgentPluginConfig firstConfig = factory.createConfig(first, root("one", "git@...0"));
+    AgentPluginConfig secondConfig = factory.createConfig(first, root("two", "git@...1"));
+    AgentPluginConfig nextBuildConfig = factory.createConfig(second, root("one", "git@...0"));
+
+    Assert.assertEquals(firstConfig.getPathToGit(), "/usr/bin/git");
+    Assert.assertEquals(secondConfig.getPathToGit(), "/usr/bin/git");
+    Assert.assertEquals(nextBuildConfig.getPathToGit(), "/usr/bin/git");
+    Assert.assertNotSame(nextBuildConfig, firstConfig);
+    context.assertIsSatisfied();
+  }
+
+  @Test
+  public void gitPathSettingsGetSeparateDetection() throws Exception {
+    AgentRunningBuild build = build(1, true);
+    AgentRunningBuild buildWithGitPath = build(2, true);
+    buildWithGitPath.addSharedEnvironmentVariable("TEAMCITY_GIT_PATH", "/opt/git/bin/git");
+    context.checking(new Expectations() {{
+      exactly(3).of(gitDetector).getGitPathAndVersion(with(any(VcsRoot.class)), with(any(BuildAgentConfiguration.class)), with(any(AgentRunningBuild.class)));
+      will(returnValue(gitExec("/usr/bin/git")));
+    }});
+
+    factory.createConfig(build, root("one", "git@...0"));
+    factory.createConfig(build, root("one", "git@...0", "/usr/local/bin/git"));
+    factory.createConfig(buildWithGitPath, root("one", "git@...0"));
+    factory.createConfig(build, root("two", "git@...0"));
+    context.assertIsSatisfied();
+  }
+
+  @Test
+  public void gitIsDetectedAgainAfterConfigurationReload() throws Exception {
+    AgentRunningBuild build = build(1, true);
+    context.checking(new Expectations() {{
+      exactly(2).of(gitDetector).getGitPathAndVersion(with(any(VcsRoot.class)), with(any(BuildAgentConfiguration.class)), with(any(AgentRunningBuild.class)));
+      will(returnValue(gitExec("/usr/bin/git")));
+    }});
+
+    factory.createConfig(build, root("one", "git@...0"));
+    factory.afterAgentConfigurationLoaded(context.mock(BuildAgent.class));
+    factory.createConfig(build, root("one", "git@...0"));
+    context.assertIsSatisfied();
+  }
+
+  @Test
+  public void cacheIsOffByDefault() throws Exception {
+    AgentRunningBuild build = build(1, false);
+    AgentPluginConfig config = context.mock(AgentPluginConfig.class);
+    context.checking(new Expectations() {{
+      exactly(2).of(delegate).createConfig(with(build), with(any(VcsRoot.class))); will(returnValue(config));
+      never(gitDetector);
+    }});
+
+    factory.createConfig(build, root("one", "git@...0"));
+    factory.createConfig(build, root("one", "git@...0"));
+    context.assertIsSatisfied();
+  }
+
+  private static GitExec gitExec(String path) {
+    return new GitExec(path, new GitVersion(2, 40, 0));
+  }
+
+  private static AgentRunningBuild build(int buildId, boolean cache) {
+    AgentRunningBuild build = new MockRunnerBuildBuilder().setBuildId(buildId).build();
+    if (cache) {
+      build.addSharedConfigParameter(PremergeConstants.CACHE_PLUGIN_CONFIG_PARAM, "true");
+    }
+    return build;
+  }
+
+  private static VcsRoot root(String password, String url) {
+    return root(password, url, null);
+  }
+
+  private static VcsRoot root(String password, String url, String gitPath) {
+    MockVcsRoot root = new MockVcsRoot().setProperty(Constants.PASSWORD, password);
+    if (gitPath != null) {
+      root.setProperty(Constants.AGENT_GIT_PATH, gitPath);
+    }
+    return root.setUrl(url);
+  }
+}
@@ -0,0 +1,217 @@
+import java.util.*;
+import jetbrains.buildServer.parameters.ProcessingResult;
+import jetbrains.buildServer.parameters.ValueResolver;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.buildDistribution.AgentsFilterContext;
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import jetbrains.buildServer.serverSide.buildDistribution.WaitReason;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import premerge.PremergeConstants;
+import premerge.PremergeQueueOptimizer;
+
+public class PremergeQueueOptimizerTest {
+  private static final int DEBOUNCE_SECONDS = 30;
+
+  private Mockery context;
+  private List<SQueuedBuild> queue;
+  private List<SQueuedBuild> removed;
+  private String coalesce;
+  private SBuildType buildType;
+  private PremergeQueueOptimizer optimizer;
+
+  @BeforeMethod
+  public void setUp() {
+    context = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    queue = new ArrayList<>();
+    removed = new ArrayList<>();
+    coalesce = "true";
+
+    EventDispatcher<BuildServerListener> dispatcher = context.mock(EventDispatcher.class);
+    BuildQueue buildQueue = context.mock(BuildQueue.class);
+    SBuildRunnerDescriptor runner = context.mock(SBuildRunnerDescriptor.class);
+    buildType = context.mock(SBuildType.class);
+    context.checking(new Expectations() {{
+      allowing(dispatcher).addListener(with(any(BuildServerListener.class)));
+      allowing(buildQueue).getItems(); will(returnValue(queue));
+      allowing(buildType).getBuildRunners(); will(returnValue(Collections.singletonList(runner)));
+      allowing(buildType).isEnabled(with(any(String.class))); will(returnValue(true));
+      allowing(runner).getType(); will(returnValue(PremergeConstants.TYPE));
+      allowing(runner).getId(); will(returnValue("RUNNER_1"));
+      allowing(runner).getParameters(); will(returnValue(Collections.singletonMap(PremergeConstants.TARGET_BRANCH, "%target%")));
+    }});
+    optimizer = new PremergeQueueOptimizer(dispatcher, buildQueue);
+  }
+
+  @Test
+  public void olderBuildOfSameBranchIsRemoved() {
+    SQueuedBuild older = queuedBuild("older", "feature", 60, false, false);
+    queuedBuild("otherBranch", "bugfix", 60, false, false);
+    SQueuedBuild newer = queuedBuild("newer", "feature", 0, false, false);
+
+    optimizer.buildTypeAddedToQueue(newer);
+
+    Assert.assertEquals(removed, Collections.singletonList(older));
+  }
+
+  @Test
+  public void buildWithOtherTargetBranchIsNotRemoved() {
+    queuedBuild("release", "feature", "release", 60, false, false);
+    SQueuedBuild newer = queuedBuild("newer", "feature", 0, false, false);
+
+    optimizer.buildTypeAddedToQueue(newer);
+
+    Assert.assertTrue(removed.isEmpty());
+  }
+
+  @Test
+  public void newerBuildIsNotRemoved() {
+    queuedBuild("newer", "feature", 0, false, false);
+    SQueuedBuild older = queuedBuild("older", "feature", 60, false, false);
+
+    optimizer.buildTypeAddedToQueue(older);
+
+    Assert.assertTrue(removed.isEmpty());
+  }
+
+  @Test
+  public void buildsTriggeredByUserOrWithFixedRevisionsAreKept() {
+    queuedBuild("byUser", "feature", 60, true, false);
+    queuedBuild("fixed", "feature", 60, false, true);
+    SQueuedBuild newer = queuedBuild("newer", "feature", 0, false, false);
+
+    optimizer.buildTypeAddedToQueue(newer);
+
+    Assert.assertTrue(removed.isEmpty());
+  }
+
+  @Test
+  public void buildWithFixedRevisionsDoesNotReplaceOthers() {
+    queuedBuild("older", "feature", 60, false, false);
+    SQueuedBuild fixed = queuedBuild("fixed", "feature", 0, false, true);
+
+    optimizer.buildTypeAddedToQueue(fixed);
+
+    Assert.assertTrue(removed.isEmpty());
+  }
+
+  @Test
+  public void nothingIsRemovedWhenDisabled() {
+    coalesce = "false";
+    queuedBuild("older", "feature", 60, false, false);
+    SQueuedBuild newer = queuedBuild("newer", "feature", 0, false, false);
+
+    optimizer.buildTypeAddedToQueue(newer);
+
+    Assert.assertTrue(removed.isEmpty());
+  }
+
+  @Test
+  public void buildWaitsForDebounce() {
+    WaitReason waitReason = filter(queuedBuild("queued", "feature", 10, false, false));
+
+    Assert.assertNotNull(waitReason);
+    Assert.assertTrue(waitReason.getDescription().contains("for newer pushes"));
+  }
+
+  @Test
+  public void buildStartsAfterDebounce() {
+    Assert.assertNull(filter(queuedBuild("queued", "feature", DEBOUNCE_SECONDS + 1, false, false)));
+  }
+
+  @Test
+  public void buildsTriggeredByUserOrWithFixedRevisionsDoNotWait() {
+    Assert.assertNull(filter(queuedBuild("byUser", "feature", 0, true, false)));
+    Assert.assertNull(filter(queuedBuild("fixed", "feature", 0, false, true)));
+  }
+
+  @Test
+  public void buildDoesNotWaitWhenDisabled() {
+    coalesce = "false";
+    Assert.assertNull(filter(queuedBuild("queued", "feature", 0, false, false)));
+  }
+
+  /**
+   * Returns the wait reason set by the agents filter for the build.
+   */
+  private WaitReason filter(SQueuedBuild queuedBuild) {
+    String name = queuedBuild.getItemId();
+    AgentsFilterContext filterContext = context.mock(AgentsFilterContext.class, "context" + name);
+    QueuedBuildInfo queuedBuildInfo = context.mock(QueuedBuildInfo.class, "info" + name);
+    context.checking(new Expectations() {{
+      allowing(filterContext).getStartingBuild(); will(returnValue(queuedBuildInfo));
+      allowing(queuedBuildInfo).getBuildPromotionInfo(); will(returnValue(queuedBuild.getBuildPromotion()));
+      allowing(queuedBuildInfo).getTriggeredBy(); will(returnValue(queuedBuild.getTriggeredBy()));
+      allowing(queuedBuildInfo).getWhenQueued(); will(returnValue(queuedBuild.getWhenQueued()));
+    }});
+    return optimizer.filterAgents(filterContext).getWaitReason();
+  }
+
+  /**
+   * Adds a build of the configuration to the queue. Its promotion resolves the queue settings,
+   * the build configuration itself resolves none of them.
+   */
+  private SQueuedBuild queuedBuild(String name, String branchName, int secondsAgo, boolean triggeredByUser, boolean fixedRevisions) {
+    return queuedBuild(name, branchName, "main", secondsAgo, triggeredByUser, fixedRevisions);
+  }
+
+  private SQueuedBuild queuedBuild(String name, String branchName, String targetBranch, int secondsAgo, boolean triggeredByUser, boolean fixedRevisions) {
+    SQueuedBuild queuedBuild = context.mock(SQueuedBuild.class, name);
+    BuildPromotion promotion = context.mock(BuildPromotion.class, "promotion" + name);
+    TriggeredBy triggeredBy = context.mock(TriggeredBy.class, "triggeredBy" + name);
+    ValueResolver resolver = context.mock(ValueResolver.class, "resolver" + name);
+    Branch branch = context.mock(Branch.class, "branch" + name);
+    List<BuildRevision> revisions = fixedRevisions
+                                    ? Collections.singletonList(context.mock(BuildRevision.class, "revision" + name))
+                                    : Collections.emptyList();
+    Date whenQueued = new Date(System.currentTimeMillis() - secondsAgo * 1000L);
+    context.checking(new Expectations() {{
+      allowing(queuedBuild).getItemId(); will(returnValue(name));
+      allowing(queuedBuild).getBuildType(); will(returnValue(buildType));
+      allowing(queuedBuild).getBuildTypeId(); will(returnValue("bt1"));
+      allowing(queuedBuild).getBuildPromotion(); will(returnValue(promotion));
+      allowing(queuedBuild).getTriggeredBy(); will(returnValue(triggeredBy));
+      allowing(queuedBuild).getWhenQueued(); will(returnValue(whenQueued));
+      allowing(queuedBuild).isPersonal(); will(returnValue(false));
+      allowing(queuedBuild).removeFromQueue(with(aNull(User.class)), with(any(String.class))); will(new CustomAction("remove") {
+        @Override
+        public Object invoke(Invocation invocation) {
+          removed.add(queuedBuild);
+          return null;
+        }
+      });
+      allowing(triggeredBy).isTriggeredByUser(); will(returnValue(triggeredByUser));
+      allowing(promotion).getBuildType(); will(returnValue(buildType));
+      allowing(promotion).getBranch(); will(returnValue(branch));
+      allowing(promotion).getRevisions(); will(returnValue(revisions));
+      allowing(promotion).getDependedOnMe(); will(returnValue(Collections.emptyList()));
+      allowing(promotion).getValueResolver(); will(returnValue(resolver));
+      allowing(branch).isDefaultBranch(); will(returnValue(false));
+      allowing(branch).getName(); will(returnValue(branchName));
+      allowing(resolver).resolve("%" + PremergeConstants.COALESCE_QUEUE_PARAM + "%"); will(returnValue(resolved(coalesce, name + "coalesce")));
+      allowing(resolver).resolve("%target%"); will(returnValue(resolved(targetBranch, name + "target")));
+      allowing(resolver).resolve("%" + PremergeConstants.QUEUE_DEBOUNCE_SECONDS_PARAM + "%"); will(returnValue(resolved(String.valueOf(DEBOUNCE_SECONDS), name + "debounce")));
+    }});
+    queue.add(queuedBuild);
+    return queuedBuild;
+  }
+
+  private ProcessingResult resolved(String value, String name) {
+    ProcessingResult result = context.mock(ProcessingResult.class, name);
+    context.checking(new Expectations() {{
+      allowing(result).isFullyResolved(); will(returnValue(true));
+      allowing(result).getResult(); will(returnValue(value));
+    }});
+    return result;
+  }
+}
@@ -0,0 +1,138 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import premerge.PremergeRefStore;
+
+public class PremergeRefStoreTest {
+  private static final String SHA1 = "1111111111111111111111111111111111111111";
+  private static final String SHA2 = "2222222222222222222222222222222222222222";
+
+  private File repositoryDir;
+
+  @BeforeMethod
+  public void createRepository() throws IOException {
+    repositoryDir = Files.createTempDirectory("premerge-refs").toFile();
+    write(".git/HEAD", "ref: refs/heads/feature\n");
+    write(".git/refs/heads/feature", SHA1 + "\n");
+    write(".git/packed-refs", "# pack-refs with: peeled fully-peeled sorted\n" + SHA2 + " refs/heads/main\n^" + SHA1 + "\n");
+  }
+
+  @AfterMethod
+  public void deleteRepository() {
+    FileUtil.delete(repositoryDir);
+  }
+
+  @Test
+  public void resolveTest() throws IOException {
+    PremergeRefStore refStore = PremergeRefStore.open(repositoryDir);
+    Assert.assertNotNull(refStore);
+    Assert.assertEquals(refStore.resolve("HEAD"), SHA1);
+    Assert.assertEquals(refStore.resolve("main"), SHA2);
+    Assert.assertEquals(refStore.resolve("refs/heads/main"), SHA2);
+    Assert.assertNull(refStore.resolve("MERGE_HEAD"));
+    Assert.assertNull(refStore.resolve("unknown"));
+  }
+
+  @Test
+  public void updateRefTest() throws IOException {
+    PremergeRefStore refStore = PremergeRefStore.open(repositoryDir);
+    Assert.assertNotNull(refStore);
+    refStore.updateRef("refs/heads/premerge/780", SHA2, "branch: Created from main");
+    refStore.updateRef("refs/heads/main", SHA1, "test");
+    Assert.assertEquals(refStore.resolve("premerge/780"), SHA2);
+    Assert.assertEquals(refStore.resolve("main"), SHA1);
+    Assert.assertFalse(new File(repositoryDir, ".git/refs/heads/premerge/780.lock").exists());
+  }
+
+  @Test
+  public void reflogIsWrittenForBranches() throws IOException {
+    PremergeRefStore refStore = PremergeRefStore.open(repositoryDir);
+    Assert.assertNotNull(refStore);
+    refStore.updateRef("refs/heads/premerge/780", SHA2, "branch: Created from main");
+    refStore.updateRef("refs/heads/main", SHA1, "pinned");
+
+    String[] created = read(".git/logs/refs/heads/premerge/780").split("\t");
+    Assert.assertTrue(created[0].startsWith("0000000000000000000000000000000000000000 " + SHA2 + " "));
+    Assert.assertEquals(created[1], "branch: Created from main\n");
+    Assert.assertTrue(read(".git/logs/refs/heads/main").startsWith(SHA2 + " " + SHA1 + " "));
+    Assert.assertFalse(new File(repositoryDir, ".git/logs/HEAD").exists());
+  }
+
+  @Test
+  public void checkedOutBranchIsLoggedToHead() throws IOException {
+    PremergeRefStore refStore = PremergeRefStore.open(repositoryDir);
+    Assert.assertNotNull(refStore);
+    refStore.updateRef("refs/heads/feature", SHA2, "test");
+
+    Assert.assertTrue(read(".git/logs/HEAD").startsWith(SHA1 + " " + SHA2 + " "));
+  }
+
+  @Test
+  public void reflogFollowsLogAllRefUpdates() throws IOException {
+    write(".git/config", "[core]\n\tbare = false\n\tlogAllRefUpdates = false\n");
+    write(".git/logs/refs/heads/main", "");
+    PremergeRefStore refStore = PremergeRefStore.open(repositoryDir);
+    Assert.assertNotNull(refStore);
+    refStore.updateRef("refs/heads/premerge/780", SHA2, "test");
+    refStore.updateRef("refs/heads/main", SHA1, "test");
+
+    Assert.assertFalse(new File(repositoryDir, ".git/logs/refs/heads/premerge/780").exists());
+    Assert.assertFalse(read(".git/logs/refs/heads/main").isEmpty());
+
+    write(".git/config", "[core]\n\tlogAllRefUpdates = always\n");
+    refStore.updateRef("refs/premerge/780", SHA2, "test");
+    Assert.assertTrue(new File(repositoryDir, ".git/logs/refs/premerge/780").exists());
+  }
+
+  @Test
+  public void nameConflictsAreRejected() throws IOException {
+    write(".git/packed-refs", "# pack-refs with: peeled fully-peeled sorted\n" + SHA2 + " refs/heads/main\n" + SHA2 + " refs/heads/release/1\n");
+    PremergeRefStore refStore = PremergeRefStore.open(repositoryDir);
+    Assert.assertNotNull(refStore);
+
+    for (String ref : new String[]{"refs/heads/main/premerge", "refs/heads/release", "refs/heads/feature/premerge", "refs/heads"}) {
+      try {
+        refStore.updateRef(ref, SHA1, "test");
+        Assert.fail("'" + ref + "' is created");
+      } catch (IOException e) {
+        Assert.assertTrue(e.getMessage().contains("conflicts"), e.getMessage());
+      }
+    }
+    Assert.assertFalse(new File(repositoryDir, ".git/refs/heads/release").exists());
+    Assert.assertFalse(new File(repositoryDir, ".git/refs/heads/main").exists());
+  }
+
+  @Test
+  public void refsAreReadableByGit() throws IOException {
+    File dir = TestGitRepository.createTempDir();
+    try {
+      TestGitRepository repository = TestGitRepository.init(dir);
+      String sha = repository.commit("readme.txt", "readme");
+      PremergeRefStore refStore = PremergeRefStore.open(dir);
+      Assert.assertNotNull(refStore);
+      refStore.updateRef("refs/heads/premerge/780", sha, "branch: Created from HEAD");
+
+      Assert.assertEquals(repository.git("rev-parse", "premerge/780"), sha);
+      Assert.assertEquals(repository.git("reflog", "show", "--format=%H %gs", "premerge/780"), sha + " branch: Created from HEAD");
+      Assert.assertNotEquals(TestGitRepository.exec(dir, "branch", "premerge/780/x").exitCode, 0);
+    } finally {
+      FileUtil.delete(dir);
+    }
+  }
+
+  private String read(String path) throws IOException {
+    return new String(Files.readAllBytes(new File(repositoryDir, path).toPath()), StandardCharsets.UTF_8);
+  }
+
+  private void write(String path, String content) throws IOException {
+    File file = new File(repositoryDir, path);
+    Assert.assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+}
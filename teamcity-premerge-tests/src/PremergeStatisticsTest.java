@@ -0,0 +1,65 @@
+import java.io.File;
+import java.io.IOException;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import premerge.PremergeStatistics;
+
+public class PremergeStatisticsTest {
+
+  @Test
+  public void parseTest() {
+    PremergeStatistics.ObjectsCount objects = PremergeStatistics.ObjectsCount.parse(
+      "count: 3\nsize: 2\nin-pack: 10\npacks: 1\nsize-pack: 5\nprune-packable: 0\ngarbage: 0\nsize-garbage: 0\n");
+    Assert.assertNotNull(objects);
+    Assert.assertEquals(objects.getCount(), 13);
+    Assert.assertEquals(objects.getSizeBytes(), 7 * 1024);
+  }
+
+  @Test
+  public void parseWithAlternatesTest() {
+    PremergeStatistics.ObjectsCount objects = PremergeStatistics.ObjectsCount.parse(
+      "count: 1\r\nsize: 4\r\nin-pack: 0\r\npacks: 0\r\nsize-pack: 0\r\nprune-packable: 0\r\ngarbage: 0\r\nsize-garbage: 0\r\n" +
+      "alternate: /agent/system/git/git-1A2B3C4D.git/objects\r\nalternate: \"/path with: colon/objects\"\r\n");
+    Assert.assertNotNull(objects);
+    Assert.assertEquals(objects.getCount(), 1);
+    Assert.assertEquals(objects.getSizeBytes(), 4 * 1024);
+  }
+
+  @Test
+  public void parseUnknownOutputTest() {
+    Assert.assertNull(PremergeStatistics.ObjectsCount.parse(""));
+    Assert.assertNull(PremergeStatistics.ObjectsCount.parse("warning: garbage found\ncount: many\n"));
+  }
+
+  @Test
+  public void parseRealOutputTest() throws IOException {
+    File tempDir = TestGitRepository.createTempDir();
+    try {
+      TestGitRepository origin = TestGitRepository.init(new File(tempDir, "origin"));
+      origin.commit("file.txt", "content");
+      File clone = new File(tempDir, "clone");
+      TestGitRepository.run(tempDir, "clone", "-q", "--shared", origin.getDir().getAbsolutePath(), clone.getAbsolutePath());
+
+      String output = TestGitRepository.run(clone, "count-objects", "-v");
+      Assert.assertTrue(output.contains("alternate: "));
+      PremergeStatistics.ObjectsCount objects = PremergeStatistics.ObjectsCount.parse(output);
+      Assert.assertNotNull(objects);
+      Assert.assertEquals(objects.getCount(), 0);
+    } finally {
+      FileUtil.delete(tempDir);
+    }
+  }
+
+  @Test
+  public void sinceIsNotNegativeTest() {
+    PremergeStatistics.ObjectsCount before = new PremergeStatistics.ObjectsCount(100, 4096);
+    PremergeStatistics.ObjectsCount fetched = new PremergeStatistics.ObjectsCount(110, 8192).since(before);
+    Assert.assertEquals(fetched.getCount(), 10);
+    Assert.assertEquals(fetched.getSizeBytes(), 4096);
+
+    PremergeStatistics.ObjectsCount packed = new PremergeStatistics.ObjectsCount(100, 1024).since(before);
+    Assert.assertEquals(packed.getCount(), 0);
+    Assert.assertEquals(packed.getSizeBytes(), 0);
+  }
+}
@@ -0,0 +1,97 @@
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import premerge.PremergeConstants;
+import premerge.PremergeTreeIndex;
+
+public class PremergeTreeIndexTest {
+  private Mockery context;
+  private Map<String, String> storedValues;
+  private SBuildType buildType;
+  private PremergeTreeIndex index;
+
+  @BeforeMethod
+  public void setUp() {
+    context = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    storedValues = new HashMap<>();
+    EventDispatcher<BuildServerListener> dispatcher = context.mock(EventDispatcher.class);
+    CustomDataStorage storage = context.mock(CustomDataStorage.class);
+    buildType = context.mock(SBuildType.class);
+    context.checking(new Expectations() {{
+      allowing(dispatcher).addListener(with(any(BuildServerListener.class)));
+      allowing(buildType).getCustomDataStorage(with(any(String.class))); will(returnValue(storage));
+      allowing(storage).getValues(); will(returnValue(storedValues));
+      allowing(storage).getValue(with(any(String.class))); will(new CustomAction("get value") {
+        @Override
+        public Object invoke(Invocation invocation) {
+          return storedValues.get((String)invocation.getParameter(0));
+        }
+      });
+      allowing(storage).putValue(with(any(String.class)), with(any(String.class))); will(new CustomAction("put value") {
+        @Override
+        public Object invoke(Invocation invocation) {
+          if (invocation.getParameter(1) == null) {
+            storedValues.remove((String)invocation.getParameter(0));
+          }
+          else {
+            storedValues.put((String)invocation.getParameter(0), (String)invocation.getParameter(1));
+          }
+          return null;
+        }
+      });
+      allowing(storage).flush();
+    }});
+    index = new PremergeTreeIndex(dispatcher);
+  }
+
+  @Test
+  public void successfulBuildIsFoundByTrees() {
+    finishBuild(10, "root:tree1", null, true);
+
+    Assert.assertEquals(index.findBuild(buildType, "root:tree1"), "10");
+    Assert.assertNull(index.findBuild(buildType, "root:tree2"));
+  }
+
+  @Test
+  public void failedBuildIsNotRemembered() {
+    finishBuild(10, "root:tree1", null, false);
+
+    Assert.assertNull(index.findBuild(buildType, "root:tree1"));
+  }
+
+  @Test
+  public void buildReusingAnotherIsNotRemembered() {
+    finishBuild(10, "root:tree1", null, true);
+    finishBuild(11, "root:tree1", "10", true);
+
+    Assert.assertEquals(index.findBuild(buildType, "root:tree1"), "10");
+  }
+
+  private void finishBuild(long buildId, String mergedTrees, String reusedBuildId, boolean successful) {
+    SRunningBuild build = context.mock(SRunningBuild.class, "build" + buildId);
+    ParametersProvider parameters = context.mock(ParametersProvider.class, "parameters" + buildId);
+    Status status = context.mock(Status.class, "status" + buildId);
+    context.checking(new Expectations() {{
+      allowing(build).getBuildType(); will(returnValue(buildType));
+      allowing(build).getBuildId(); will(returnValue(buildId));
+      allowing(build).getBuildStatus(); will(returnValue(status));
+      allowing(build).getCanceledInfo(); will(returnValue(null));
+      allowing(build).getParametersProvider(); will(returnValue(parameters));
+      allowing(status).isSuccessful(); will(returnValue(successful));
+      allowing(parameters).get(PremergeConstants.MERGED_TREE_SHARED_PARAM); will(returnValue(mergedTrees));
+      allowing(parameters).get(PremergeConstants.REUSED_BUILD_SHARED_PARAM); will(returnValue(reusedBuildId));
+    }});
+    index.buildFinished(build);
+  }
+}
@@ -0,0 +1,67 @@
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitUtils;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.VcsRootEntry;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import premerge.PremergeConstants;
+
+public class ReuseTreesTest extends PremergeGitTestCase {
+
+  @Test
+  public void mergedTreeIsReported() {
+    TestGitRepository checkout = checkout("checkout");
+    MockBuildLogger logger = new MockBuildLogger();
+    MockPremergeBuildProcess process = runPremerge(checkout, logger, reuseParameters("true"));
+
+    String key = "git@...0:" + checkout.git("rev-parse", "HEAD^{tree}");
+    Assert.assertEquals(process.getCheckedTrees(), Collections.singletonList(key));
+    Assert.assertTrue(logger.hasMessage("name='" + PremergeConstants.MERGED_TREE_SHARED_PARAM + "' value='" + key + "'"));
+  }
+
+  @Test
+  public void builtTreeIsReused() {
+    TestGitRepository first = checkout("first");
+    runPremerge(first, new MockBuildLogger(), reuseParameters("true"));
+    builtTrees.put("git@...0:" + first.git("rev-parse", "HEAD^{tree}"), "12");
+
+    MockBuildLogger logger = new MockBuildLogger();
+    runPremerge(checkout("second"), logger, reuseParameters("stop"));
+
+    Assert.assertTrue(logger.hasMessage("already built successfully in build with id 12"));
+    Assert.assertTrue(logger.hasMessage("##teamcity[buildStop"));
+    Assert.assertFalse(logger.hasMessage(PremergeConstants.MERGED_TREE_SHARED_PARAM));
+  }
+
+  @Test
+  public void skippedRootIsPartOfKey() {
+    TestGitRepository one = checkout("one");
+    TestGitRepository two = checkout("two");
+    MockVcsRoot second = new MockVcsRoot();
+    List<VcsRootEntry> entries = Arrays.asList(new VcsRootEntry(new MockVcsRoot().setUrl("git@...0"), new CheckoutRules("+:.=>one")),
+                                               new VcsRootEntry(second.setUrl("git@...1"), new CheckoutRules("+:.=>two")));
+    MockPremergeBuildProcess process = runPremerge(tempDir, entries, new MockBuildLogger(), reuseParameters("true"),
+                                                   Collections.singletonMap(GitUtils.getGitRootBranchParamName(second), "refs/heads/main"));
+
+    Assert.assertEquals(process.getCheckedTrees(), Collections.singletonList(
+      "git@...0:" + one.git("rev-parse", "HEAD^{tree}") + ",git@...1:" + two.git("rev-parse", "HEAD^{tree}")));
+  }
+
+  @Test
+  public void nothingIsCheckedWithoutReuse() {
+    MockPremergeBuildProcess process = runPremerge(checkout("checkout"), new MockBuildLogger(), Collections.emptyMap());
+
+    Assert.assertTrue(process.getCheckedTrees().isEmpty());
+  }
+
+  private static Map<String, String> reuseParameters(String value) {
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put(PremergeConstants.REUSE_TREES_PARAM, value);
+    return parameters;
+  }
+}
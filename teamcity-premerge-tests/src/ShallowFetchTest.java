@@ -0,0 +1,49 @@
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import premerge.PremergeConstants;
+
+public class ShallowFetchTest extends PremergeGitTestCase {
+
+  @Test
+  public void shallowCheckoutIsDeepenedUntilMergeBase() {
+    TestGitRepository checkout = checkout("checkout", "--depth", "1");
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put(PremergeConstants.SHALLOW_FETCH_DEPTH_PARAM, "1");
+    MockPremergeBuildProcess process = runPremerge(checkout, new MockBuildLogger(), parameters);
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertEquals(checkout.git("rev-parse", "HEAD^2"), mainSHA);
+    Assert.assertEquals(checkout.git("rev-parse", "refs/remotes/origin/feature"), featureSHA);
+    Assert.assertTrue(process.getGitSupports().get(0).getSequence().contains("fetch origin +refs/heads/feature:refs/remotes/origin/feature"));
+    Assert.assertEquals(process.getBuild().getSharedConfigParameters().get(PremergeConstants.FETCH_DEPTH_SHARED_PARAM + ".git@...0"), "2");
+  }
+
+  @Test
+  public void fullCheckoutFetchesOnlyTarget() {
+    TestGitRepository checkout = checkout("checkout");
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put(PremergeConstants.SHALLOW_FETCH_DEPTH_PARAM, "1");
+    MockPremergeBuildProcess process = runPremerge(checkout, new MockBuildLogger(), parameters);
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertEquals(checkout.git("rev-parse", "HEAD^2"), mainSHA);
+    Assert.assertEquals(process.getGitSupports().get(0).getSequence().get(0), "fetch origin +main:main");
+    Assert.assertFalse(process.getGitSupports().get(0).getSequence().contains("fetch origin +refs/heads/feature:refs/remotes/origin/feature"));
+  }
+
+  @Test
+  public void depthIsIgnoredWithMirror() {
+    TestGitRepository checkout = checkout("checkout");
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put(PremergeConstants.SHALLOW_FETCH_DEPTH_PARAM, "1");
+    parameters.put(PremergeConstants.FETCH_VIA_MIRROR_PARAM, "true");
+    MockBuildLogger logger = new MockBuildLogger();
+    MockPremergeBuildProcess process = runPremerge(checkout, logger, parameters);
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertTrue(logger.hasWarning(PremergeConstants.SHALLOW_FETCH_DEPTH_PARAM));
+    Assert.assertNull(process.getBuild().getSharedConfigParameters().get(PremergeConstants.FETCH_DEPTH_SHARED_PARAM + ".git@...0"));
+  }
+}
@@ -0,0 +1,257 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.BuildFinishedStatus;
+import jetbrains.buildServer.agent.BuildRunnerSettings;
+import jetbrains.buildServer.agent.oauth.AgentTokenStorage;
+import jetbrains.buildServer.buildTriggers.vcs.git.AuthSettings;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitUtils;
+import jetbrains.buildServer.buildTriggers.vcs.git.MirrorManager;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.*;
+import jetbrains.buildServer.parameters.ProcessingResult;
+import jetbrains.buildServer.parameters.ValueResolver;
+import jetbrains.buildServer.ssh.SshKnownHostsManager;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.VcsRoot;
+import jetbrains.buildServer.vcs.VcsRootEntry;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import premerge.PremergeConstants;
+import premerge.PremergeMirrorLock;
+import premerge.PremergeTargetPrefetcher;
+
+/**
+ * Prefetches the target of a build into the mirror and runs the build's preliminary merge step after or before it.
+ * Prefetch tasks are run by the test when it calls {@link #runPrefetch()}.
+ */
+public class TargetPrefetchTest extends PremergeGitTestCase {
+  private static final int BUILD_ID = 780;
+  // the external id of the mock root, it is a part of the precomputed merge ref
+  private static final String ROOT_ID = "Root";
+
+  private Mockery context;
+  private List<Runnable> tasks;
+  private List<String> prefetchSequence;
+  private MockBuildLogger prefetchLogger;
+  private AgentGitVcsRoot gitRoot;
+  private AgentRunningBuild build;
+  private PremergeTargetPrefetcher prefetcher;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    tasks = new ArrayList<>();
+    prefetchSequence = Collections.synchronizedList(new ArrayList<>());
+    prefetchLogger = new MockBuildLogger();
+    context = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+      setThreadingPolicy(new Synchroniser());
+    }};
+    EventDispatcher<AgentLifeCycleListener> dispatcher = context.mock(EventDispatcher.class);
+    PluginConfigFactory configFactory = context.mock(PluginConfigFactory.class);
+    AgentPluginConfig config = context.mock(AgentPluginConfig.class);
+    MirrorManager mirrorManager = context.mock(MirrorManager.class);
+    AuthSettings authSettings = context.mock(AuthSettings.class);
+    gitRoot = context.mock(AgentGitVcsRoot.class);
+    context.checking(new Expectations() {{
+      allowing(dispatcher).addListener(with(any(AgentLifeCycleListener.class)));
+      allowing(configFactory).createConfig(with(any(AgentRunningBuild.class)), with(any(VcsRoot.class))); will(returnValue(config));
+      allowing(config).getPathToGit(); will(returnValue("git"));
+      allowing(config).getGitVersion(); will(returnValue(TestGitRepository.getGitVersion()));
+      allowing(config).isUseNativeSSH(); will(returnValue(false));
+      allowing(config).getIdleTimeoutSeconds(); will(returnValue(60));
+      allowing(config).isFetchTags(); will(returnValue(false));
+      allowing(config).getGitProgressMode(); will(returnValue(AgentPluginConfig.GitProgressMode.DEBUG));
+      allowing(mirrorManager).getMirrorDir(origin.getUrl()); will(returnValue(mirrorDir));
+      allowing(gitRoot).getAuthSettings(); will(returnValue(authSettings));
+    }});
+    prefetcher = new TestTargetPrefetcher(dispatcher, configFactory, context.mock(GitMetaFactory.class), context.mock(GitAgentSSHService.class),
+                                          mirrorManager, context.mock(AgentTokenStorage.class), context.mock(SshKnownHostsManager.class));
+  }
+
+  @AfterMethod
+  public void finishBuild() {
+    if (build != null) {
+      prefetcher.buildFinished(build, BuildFinishedStatus.FINISHED_SUCCESS);
+    }
+  }
+
+  @Test
+  public void prefetchedTargetIsNotFetchedByStep() {
+    startBuild(PremergeConstants.PREFETCH_TARGET_PARAM);
+    runPrefetch();
+    Assert.assertTrue(prefetchSequence.contains("fetch " + origin.getUrl() + " +main:main"));
+
+    MockBuildLogger logger = new MockBuildLogger();
+    MockPremergeBuildProcess process = runStep(checkout("checkout"), logger, mirrorParameters());
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertTrue(logger.hasMessage("was prefetched into mirror"));
+    Assert.assertFalse(process.getGitSupports().get(0).getSequence().contains("fetch " + origin.getUrl() + " +main:main"));
+  }
+
+  @Test
+  public void prefetchIsSkippedIfStepFetchedFirst() {
+    startBuild(PremergeConstants.PREFETCH_TARGET_PARAM);
+
+    MockPremergeBuildProcess process = runStep(checkout("checkout"), new MockBuildLogger(), mirrorParameters());
+    runPrefetch();
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertTrue(process.getGitSupports().get(0).getSequence().contains("fetch " + origin.getUrl() + " +main:main"));
+    Assert.assertTrue(prefetchSequence.isEmpty());
+    Assert.assertTrue(prefetchLogger.hasMessage("already fetched into mirror"));
+  }
+
+  @Test
+  public void prefetchIsForgottenWhenBuildFinishes() {
+    startBuild(PremergeConstants.PREFETCH_TARGET_PARAM);
+    runPrefetch();
+    Assert.assertTrue(PremergeTargetPrefetcher.isPrefetched(mirrorDir, BUILD_ID, "main"));
+
+    prefetcher.buildFinished(build, BuildFinishedStatus.FINISHED_SUCCESS);
+
+    Assert.assertFalse(PremergeTargetPrefetcher.isPrefetched(mirrorDir, BUILD_ID, "main"));
+  }
+
+  @Test
+  public void precomputedMergeIsRemovedWhenBuildFinishes() throws Exception {
+    startBuild(PremergeConstants.PREFETCH_TARGET_PARAM, PremergeConstants.PRECOMPUTE_MERGE_PARAM);
+    runPrefetch();
+    PremergeTargetPrefetcher.PrecomputedMerge merge = PremergeTargetPrefetcher.getPrecomputedMerge(BUILD_ID, ROOT_ID);
+    Assert.assertNotNull(merge);
+    Assert.assertTrue(merge.getRef().startsWith("refs/premerge-results/" + BUILD_ID + "/"));
+    String mergeCommit = TestGitRepository.run(mirrorDir, "rev-parse", merge.getRef());
+
+    TestGitRepository checkout = checkout("checkout");
+    MockBuildLogger logger = new MockBuildLogger();
+    MockPremergeBuildProcess process = runStep(checkout, logger, mirrorParameters(PremergeConstants.PRECOMPUTE_MERGE_PARAM));
+
+    Assert.assertEquals(process.getStatus().toString(), "SUCCESS");
+    Assert.assertTrue(logger.hasMessage("was computed while the sources were checked out"));
+    Assert.assertTrue(process.getGitSupports().get(0).getSequence().contains("fetch " + mirrorDir.getAbsolutePath() + " " + merge.getRef()));
+    Assert.assertEquals(checkout.git("rev-parse", "HEAD"), mergeCommit);
+
+    // another build of the agent fetches into the mirror while this one finishes
+    CountDownLatch locked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread fetch = new Thread(() -> {
+      try (PremergeMirrorLock ignored = PremergeMirrorLock.acquire(mirrorDir, 10000, null)) {
+        locked.countDown();
+        release.await();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    fetch.start();
+    Assert.assertTrue(locked.await(10, TimeUnit.SECONDS));
+    Thread finish = new Thread(() -> prefetcher.buildFinished(build, BuildFinishedStatus.FINISHED_SUCCESS));
+    finish.start();
+    finish.join(10000);
+    boolean finished = !finish.isAlive();
+    release.countDown();
+    fetch.join();
+    finish.join();
+
+    Assert.assertTrue(finished);
+    Assert.assertNull(PremergeTargetPrefetcher.getPrecomputedMerge(BUILD_ID, ROOT_ID));
+    Assert.assertEquals(TestGitRepository.run(mirrorDir, "for-each-ref", "refs/premerge-results/"), "");
+  }
+
+  private MockPremergeBuildProcess runStep(TestGitRepository checkout, MockBuildLogger logger, Map<String, String> parameters) {
+    VcsRootEntry entry = new VcsRootEntry(new MockVcsRoot().setUrl(ROOT_ID), new CheckoutRules("."));
+    return runPremerge(checkout.getDir(), Collections.singletonList(entry), logger, parameters, Collections.emptyMap());
+  }
+
+  private Map<String, String> mirrorParameters(String... enabled) {
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put(PremergeConstants.FETCH_VIA_MIRROR_PARAM, "true");
+    for (String parameter : enabled) {
+      parameters.put(parameter, "true");
+    }
+    return parameters;
+  }
+
+  /**
+   * Starts the build which checks out 'feature' and merges 'main' in its preliminary merge step.
+   */
+  private void startBuild(String... enabled) {
+    BuildRunnerSettings runner = context.mock(BuildRunnerSettings.class);
+    ValueResolver resolver = context.mock(ValueResolver.class);
+    ProcessingResult resolved = context.mock(ProcessingResult.class);
+    context.checking(new Expectations() {{
+      allowing(runner).getRunType(); will(returnValue(PremergeConstants.TYPE));
+      allowing(runner).isEnabled(); will(returnValue(true));
+      allowing(runner).getRunnerParameters(); will(returnValue(Collections.singletonMap(PremergeConstants.TARGET_BRANCH, "main")));
+      allowing(resolver).resolve("main"); will(returnValue(resolved));
+      allowing(resolved).getResult(); will(returnValue("main"));
+    }});
+    VcsRoot root = new MockVcsRoot().setUrl(ROOT_ID);
+    build = new MockRunnerBuildBuilder().setBuildId(BUILD_ID)
+                                        .setBuildLogger(prefetchLogger)
+                                        .setBuildRunners(Collections.singletonList(runner))
+                                        .setSharedParametersResolver(resolver)
+                                        .setBuildCurrentVersion(featureSHA)
+                                        .setVcsRootEntries(Collections.singletonList(new VcsRootEntry(root, new CheckoutRules("."))))
+                                        .build();
+    build.addSharedConfigParameter(GitUtils.getGitRootBranchParamName(root), "refs/heads/feature");
+    for (String parameter : enabled) {
+      build.addSharedConfigParameter(parameter, "true");
+    }
+    prefetcher.buildStarted(build);
+  }
+
+  private void runPrefetch() {
+    Assert.assertEquals(tasks.size(), 1);
+    tasks.remove(0).run();
+  }
+
+  private class TestTargetPrefetcher extends PremergeTargetPrefetcher {
+    TestTargetPrefetcher(EventDispatcher<AgentLifeCycleListener> dispatcher,
+                         PluginConfigFactory configFactory,
+                         GitMetaFactory gitMetaFactory,
+                         GitAgentSSHService sshService,
+                         MirrorManager mirrorManager,
+                         AgentTokenStorage tokenStorage,
+                         SshKnownHostsManager sshKnownHostsManager) {
+      super(dispatcher, configFactory, gitMetaFactory, sshService, mirrorManager, tokenStorage, sshKnownHostsManager);
+    }
+
+    @NotNull
+    @Override
+    protected AgentGitVcsRoot createGitVcsRoot(@NotNull AgentRunningBuild build, @NotNull VcsRoot root) {
+      return gitRoot;
+    }
+
+    @NotNull
+    @Override
+    protected String getFetchUrl(@NotNull AgentGitVcsRoot gitRoot) {
+      return origin.getUrl();
+    }
+
+    @NotNull
+    @Override
+    protected AgentGitFacade getFacade(@NotNull AgentRunningBuild build, @NotNull AgentPluginConfig config, @NotNull File mirrorDir) {
+      return TestGitRepository.facade(mirrorDir, prefetchSequence);
+    }
+
+    @Override
+    protected void execute(@NotNull Runnable task) {
+      tasks.add(task);
+    }
+  }
+}
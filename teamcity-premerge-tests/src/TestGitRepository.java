@@ -0,0 +1,143 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import jetbrains.buildServer.buildTriggers.vcs.git.GitVersion;
+import jetbrains.buildServer.buildTriggers.vcs.git.agent.AgentGitFacade;
+import org.testng.Assert;
+import premerge.PremergeNativeGitFacade;
+
+/**
+ * Real git repository in a temporary directory, used by the tests which run the plugin against native git.
+ */
+public class TestGitRepository {
+  private static final Pattern VERSION = Pattern.compile("(\\d+)\\.(\\d+)\\.(\\d+)");
+
+  private final File myDir;
+
+  private TestGitRepository(File dir) {
+    myDir = dir;
+  }
+
+  public static TestGitRepository init(File dir) {
+    dir.mkdirs();
+    run(dir, "init", "-q", "-b", "main");
+    return new TestGitRepository(dir);
+  }
+
+  public static TestGitRepository cloneOf(TestGitRepository origin, File dir, String... options) {
+    List<String> args = new ArrayList<>(Arrays.asList("clone", "-q"));
+    args.addAll(Arrays.asList(options));
+    args.add(origin.getUrl());
+    args.add(dir.getAbsolutePath());
+    run(dir.getParentFile(), args.toArray(new String[0]));
+    return new TestGitRepository(dir);
+  }
+
+  public static File createTempDir() throws IOException {
+    return Files.createTempDirectory("premerge").toFile();
+  }
+
+  public static GitVersion getGitVersion() {
+    Matcher matcher = VERSION.matcher(run(new File("."), "--version"));
+    Assert.assertTrue(matcher.find());
+    return new GitVersion(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3)));
+  }
+
+  public File getDir() {
+    return myDir;
+  }
+
+  public String getUrl() {
+    return "file://" + myDir.getAbsolutePath();
+  }
+
+  public String git(String... args) {
+    return run(myDir, args);
+  }
+
+  public String commit(String file, String content) throws IOException {
+    File target = new File(myDir, file);
+    target.getParentFile().mkdirs();
+    Files.write(target.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    git("add", file);
+    git("commit", "-q", "-m", "change " + file);
+    return git("rev-parse", "HEAD");
+  }
+
+  public boolean hasCommit(String sha) {
+    return exec(myDir, "cat-file", "-e", sha + "^{commit}").exitCode == 0;
+  }
+
+  /**
+   * @return the facade for the plugin's commands in the directory, run with the same settings as {@link #exec(File, String...)}
+   */
+  static AgentGitFacade facade(File dir, List<String> sequence) {
+    return new PremergeNativeGitFacade("git", dir).addConfig("user.name", "test")
+                                                  .addConfig("user.email", "test@example.com")
+                                                  .addConfig("protocol.file.allow", "always")
+                                                  .setSequence(sequence)
+                                                  .build();
+  }
+
+  static String run(File dir, String... args) {
+    Result result = exec(dir, args);
+    Assert.assertEquals(result.exitCode, 0, "git " + String.join(" ", args) + ": " + result.stderr);
+    return result.stdout.trim();
+  }
+
+  static Result exec(File dir, String... args) {
+    List<String> command = new ArrayList<>(Arrays.asList("git", "-c", "user.name=test", "-c", "user.email=test@example.com",
+                                                         "-c", "protocol.file.allow=always"));
+    command.addAll(Arrays.asList(args));
+    ProcessBuilder builder = new ProcessBuilder(command).directory(dir);
+    builder.environment().put("GIT_TERMINAL_PROMPT", "0");
+    try {
+      Process process = builder.start();
+      process.getOutputStream().close();
+      ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+      Thread errorReader = new Thread(() -> copy(process.getErrorStream(), stderr));
+      errorReader.start();
+      ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+      copy(process.getInputStream(), stdout);
+      int exitCode = process.waitFor();
+      errorReader.join();
+      return new Result(exitCode, stdout.toString("UTF-8"), stderr.toString("UTF-8"));
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void copy(InputStream in, ByteArrayOutputStream out) {
+    byte[] buffer = new byte[8192];
+    try {
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+    } catch (IOException ignored) {
+    }
+  }
+
+  static class Result {
+    final int exitCode;
+    final String stdout;
+    final String stderr;
+
+    Result(int exitCode, String stdout, String stderr) {
+      this.exitCode = exitCode;
+      this.stdout = stdout;
+      this.stderr = stderr;
+    }
+  }
+}